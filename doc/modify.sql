@@ -125,3 +125,18 @@ CREATE UNIQUE INDEX  uk_bl_conversation_member_active ON chat_conversation_membe
 -- -----------------------------------------------------------------------------
 ALTER TABLE chat_message
   MODIFY COLUMN shop_id BIGINT NULL COMMENT '店铺ID（无店铺进线时为 NULL，与 chat_conversation.shop_id 一致）';
+
+-- -----------------------------------------------------------------------------
+-- 2026-10-18 会话序号表：Redis 不可用时按号段分配 server_msg_id（替代 MAX(server_msg_id)+1）
+-- 申请号段：UPDATE conversation_seq SET seq = LAST_INSERT_ID(seq + N) WHERE conversation_id = ? AND dirty = 1
+--          无行或 dirty = 0 时先按 MAX(server_msg_id) 建行/抬升，再 UPDATE ... SET seq = LAST_INSERT_ID(seq + N), dirty = 1
+-- Java：com.treasurehunt.chat.component.manager.ConversationSeqManager
+-- -----------------------------------------------------------------------------
+CREATE TABLE conversation_seq (
+  conversation_id VARCHAR(128) NOT NULL COMMENT '会话ID（与 Redis 序列键同粒度）',
+  seq BIGINT NOT NULL DEFAULT 0 COMMENT '已分配出去的最大 server_msg_id（号段上界）',
+  dirty TINYINT NOT NULL DEFAULT 0 COMMENT '1=降级分配后 Redis 序列尚未抬升到 seq，各实例使用 Redis 序列前需先同步',
+  updated_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+  PRIMARY KEY (conversation_id),
+  KEY idx_dirty (dirty)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci COMMENT='会话序号表（server_msg_id 降级号段分配）';
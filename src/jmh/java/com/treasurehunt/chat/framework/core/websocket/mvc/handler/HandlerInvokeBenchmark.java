@@ -0,0 +1,93 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 处理器方法调用方式对比（WebSocketHandlerMapping 注册时可选的几种调用器）
+ *
+ * - direct：直接调用，作为下限
+ * - reflection：Method.invoke
+ * - methodHandle：findVirtual + bindTo 后 invokeWithArguments（HandlerMethod 的退回路径）
+ * - lambda：LambdaHandlerInvokers 生成的直接调用器（HandlerMethod 的默认路径）
+ *
+ * 处理器签名与线上一致："payload + session → 返回值"，参数数组每次调用复用，只比较调用开销
+ *
+ * 运行：mvn -Pjmh -DskipTests compile exec:exec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HandlerInvokeBenchmark {
+
+    /**
+     * 模拟控制器：与 @WsController 中的处理器方法形态相同
+     */
+    public static class SampleController {
+        public Object handle(Object payload, Object session) {
+            return payload;
+        }
+    }
+
+    private SampleController controller;
+    private Method method;
+    private MethodHandle methodHandle;
+    private LambdaHandlerInvokers.HandlerInvoker lambdaInvoker;
+    private Object payload;
+    private Object session;
+    private Object[] args;
+
+    @Setup
+    public void setup() throws Exception {
+        controller = new SampleController();
+        method = SampleController.class.getMethod("handle", Object.class, Object.class);
+        methodHandle = MethodHandles.lookup()
+                .findVirtual(SampleController.class, "handle",
+                        MethodType.methodType(Object.class, Object.class, Object.class))
+                .bindTo(controller);
+        lambdaInvoker = LambdaHandlerInvokers.create(controller, method);
+        if (lambdaInvoker == null) {
+            throw new IllegalStateException("lambda invoker generation failed");
+        }
+        payload = new Object();
+        session = new Object();
+        args = new Object[] {payload, session};
+    }
+
+    @Benchmark
+    public Object direct() {
+        return controller.handle(payload, session);
+    }
+
+    @Benchmark
+    public Object reflection() throws Exception {
+        return method.invoke(controller, args);
+    }
+
+    @Benchmark
+    public Object methodHandle() throws Throwable {
+        return methodHandle.invokeWithArguments(args);
+    }
+
+    @Benchmark
+    public Object lambda() throws Throwable {
+        return lambdaInvoker.invoke(args);
+    }
+}
@@ -0,0 +1,359 @@
+package com.treasurehunt.chat.component.async;
+
+import com.treasurehunt.chat.domain.ChatMessageDO;
+import com.treasurehunt.chat.mapper.ChatMessageMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * 消息合并写入器（group commit）
+ *
+ * 高峰期每条消息一个事务，MySQL 大部分时间花在每次提交的 redo fsync 上。
+ * 这里由单个写线程收集并发调用方提交的消息，一个事务内用多行 INSERT 写入并执行各自的同事务回调
+ * （如发送者已读指针），一次提交；每个调用方拿到自己那条消息的结果。
+ *
+ * - 顺序：同一会话的 serverMsgId 分配与入队由调用方放在 {@link #inOrder} 内完成（每个会话一把锁），
+ *   队列中同一会话的消息按 serverMsgId 递增排列，单写线程按入队顺序取出、每批再按 (conversationId, serverMsgId) 排序写入，
+ *   因此 N+1 不会早于 N 提交，按 gt(lastServerMsgId) 增量拉取不会跳过 N。
+ *   N 写入失败或调用方超时放弃时 N 不会出现（序号空洞），不会在之后补写到 N+1 之后
+ * - 收集窗口：先取走已排队的消息，不足一批时最多再等 window-micros；上一批提交期间到达的消息自然成为下一批
+ * - 失败：整批回滚后逐条在各自事务中重试（调用方已超时放弃的不再重试），唯一索引冲突（DuplicateKeyException）等异常只落到对应调用方，
+ *   调用方的幂等处理（回查已存在记录）保持不变
+ * - 超时：调用方最多等待 write-timeout-ms（含队列满时的入队等待），超时视为失败；尚未被写线程取走的消息不再写入，
+ *   已在事务中的消息可能仍会提交，客户端用同一 clientMsgId 重试时由唯一索引冲突回查到已存在的记录
+ * - 停机：关闭标志与入队在同一把锁下切换，关闭后的提交在调用线程上直接写入（仍在会话顺序锁内），不会遗留在队列中
+ * - 调用方不能处于事务中等待结果，否则等待期间占着连接，连接池耗尽时写线程拿不到连接
+ */
+@Slf4j
+@Component
+public class ChatMessageGroupWriter {
+
+    @Autowired
+    private ChatMessageMapper chatMessageMapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /** 关闭后每条消息在调用线程上单独一个事务写入 */
+    @Value("${chat.message-writer.enabled:true}")
+    private boolean enabled;
+
+    /** 单批最多条数（多行 INSERT 的行数） */
+    @Value("${chat.message-writer.max-batch:64}")
+    private int maxBatch;
+
+    /** 不足一批时额外等待的收集窗口（微秒），0 表示只合并已排队的消息 */
+    @Value("${chat.message-writer.window-micros:1000}")
+    private long windowMicros;
+
+    /** 待写队列容量，满时提交方阻塞（背压），最多阻塞 write-timeout-ms */
+    @Value("${chat.message-writer.queue-capacity:4096}")
+    private int queueCapacity;
+
+    /** 调用方等待提交结果的上限（毫秒） */
+    @Value("${chat.message-writer.write-timeout-ms:5000}")
+    private long writeTimeoutMs;
+
+    private TransactionTemplate transactionTemplate;
+    private BlockingQueue<PendingWrite> queue;
+    private Thread writerThread;
+    private volatile boolean running;
+
+    /** 入队持读锁，停机切换 running 持写锁：切换之后不会再有消息进入队列 */
+    private final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+
+    /** 会话顺序锁：每个会话一把，只在有线程持有或等待时存在；锁内只有序号分配与入队，不含提交等待 */
+    private final ConcurrentHashMap<String, OrderingLock> orderingLocks = new ConcurrentHashMap<>();
+
+    /** 同一批内按会话、序号排序写入 */
+    private static final Comparator<PendingWrite> WRITE_ORDER = Comparator
+            .comparing((PendingWrite write) -> write.message.getConversationId(),
+                    Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(write -> write.message.getServerMsgId(),
+                    Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        if (!enabled) {
+            log.info("消息合并写入已关闭，逐条事务写入");
+            return;
+        }
+        queue = new LinkedBlockingQueue<>(queueCapacity);
+        running = true;
+        writerThread = new Thread(this::runLoop, "chat-msg-group-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.info("消息合并写入已启用: maxBatch={}, windowMicros={}, queueCapacity={}", maxBatch, windowMicros, queueCapacity);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (writerThread == null) {
+            return;
+        }
+        lifecycleLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            lifecycleLock.writeLock().unlock();
+        }
+        try {
+            // 写线程把队列中剩余的消息写完后退出
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            log.warn("消息合并写线程未在超时内退出，剩余 {} 条", queue.size());
+            return;
+        }
+        // 兜底：写线程异常退出时队列中可能仍有消息，在当前线程补写
+        PendingWrite write;
+        while ((write = queue.poll()) != null) {
+            if (!write.future.isDone()) {
+                writeOne(write);
+            }
+        }
+    }
+
+    /**
+     * 在会话顺序锁内执行 work：同一会话的 serverMsgId 分配与 {@link #submit} 必须放在同一次 inOrder 中，
+     * 入队顺序才与分配顺序一致。锁可重入；不要在锁内等待提交结果，幂等等待、回查 DB 等不分配序号的判定放在锁外。
+     * 锁内仍可能阻塞的只有序号分配本身（Redis 命令超时、懒初始化/降级路径的 DB 查询）、降级路径的直接写入和队列满时的入队等待（最多 write-timeout-ms），
+     * 锁按会话区分，阻塞只影响同一会话的后续消息，不波及其它会话
+     */
+    public <T> T inOrder(String conversationId, Supplier<T> work) {
+        String key = conversationId != null ? conversationId : "";
+        OrderingLock lock = orderingLocks.compute(key, (k, existing) -> {
+            OrderingLock l = existing != null ? existing : new OrderingLock();
+            l.users++;
+            return l;
+        });
+        lock.lock();
+        try {
+            return work.get();
+        } finally {
+            lock.unlock();
+            orderingLocks.computeIfPresent(key, (k, existing) -> --existing.users == 0 ? null : existing);
+        }
+    }
+
+    /**
+     * 写入一条消息并等待提交，异常原样抛出（如 DuplicateKeyException）；超过 write-timeout-ms 抛 IllegalStateException
+     * 不保证与同会话其它消息的提交顺序，需要顺序时在 {@link #inOrder} 内 {@link #submit}、锁外 {@link #await}
+     *
+     * @param message         消息
+     * @param sameTransaction 与消息同一事务执行的操作（可为 null），失败时该消息一并回滚
+     */
+    public void write(ChatMessageDO message, Runnable sameTransaction) {
+        await(submit(message, sameTransaction));
+    }
+
+    /**
+     * 提交一条消息，返回其提交结果；入队等待与提交等待共用 write-timeout-ms，到期时结果以 TimeoutException 失败
+     */
+    public CompletableFuture<Void> submit(ChatMessageDO message, Runnable sameTransaction) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+        return submit(message, sameTransaction, deadline)
+                .orTimeout(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 等待 {@link #submit} 的提交结果，异常原样抛出（如 DuplicateKeyException）；超时抛 IllegalStateException
+     */
+    public void await(CompletableFuture<Void> committed) {
+        try {
+            committed.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                throw new IllegalStateException("chat message write timed out after " + writeTimeoutMs + "ms", cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 队列满时最多阻塞到 deadline（System.nanoTime 时间）
+     */
+    private CompletableFuture<Void> submit(ChatMessageDO message, Runnable sameTransaction, long deadline) {
+        PendingWrite write = new PendingWrite(message, sameTransaction);
+        if (!enabled) {
+            writeOne(write);
+            return write.future;
+        }
+        boolean handled = false;
+        lifecycleLock.readLock().lock();
+        try {
+            if (running) {
+                if (!queue.offer(write, Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    write.future.completeExceptionally(new TimeoutException("chat message write queue full"));
+                }
+                handled = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.future.completeExceptionally(e);
+            handled = true;
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+        if (!handled) {
+            // 已停机：写线程不再取队列，在调用线程上直接写入
+            writeOne(write);
+        }
+        return write.future;
+    }
+
+    /**
+     * 在独立事务中执行不参与合并的写操作（如降级路径的 ON DUPLICATE KEY 插入）
+     */
+    public void executeInTransaction(Runnable work) {
+        transactionTemplate.executeWithoutResult(status -> work.run());
+    }
+
+    private void runLoop() {
+        List<PendingWrite> group = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                queue.drainTo(group, maxBatch - group.size());
+                if (group.size() < maxBatch && windowMicros > 0 && running) {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                    while (group.size() < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        group.add(next);
+                        queue.drainTo(group, maxBatch - group.size());
+                    }
+                }
+                writeGroup(group);
+            } catch (InterruptedException e) {
+                // 只在停机时由外部中断：已收集的这批照常写入，剩余消息继续按顺序写完
+                running = false;
+                writeGroup(group);
+            } catch (Throwable t) {
+                log.error("消息合并写线程异常", t);
+                for (PendingWrite write : group) {
+                    write.future.completeExceptionally(t);
+                }
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void writeGroup(List<PendingWrite> group) {
+        // 调用方已超时放弃的消息不再写入（其结果已是失败）
+        group.removeIf(write -> write.future.isDone());
+        if (group.isEmpty()) {
+            return;
+        }
+        if (group.size() == 1) {
+            writeOne(group.get(0));
+            return;
+        }
+        group.sort(WRITE_ORDER);
+        List<ChatMessageDO> rows = new ArrayList<>(group.size());
+        for (PendingWrite write : group) {
+            rows.add(write.message);
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                chatMessageMapper.insertBatch(rows);
+                for (PendingWrite write : group) {
+                    if (write.sameTransaction != null) {
+                        write.sameTransaction.run();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // 整批已回滚：逐条重试，把失败精确落到对应的调用方
+            log.warn("合并写入失败，逐条重试: size={}, error={}", group.size(), e.getMessage());
+            for (PendingWrite write : group) {
+                // 批量事务期间调用方已超时放弃的不再写入：调用方已被告知失败，之后补写会让"失败"的消息出现
+                if (!write.future.isDone()) {
+                    writeOne(write);
+                }
+            }
+            return;
+        }
+        for (PendingWrite write : group) {
+            write.future.complete(null);
+        }
+        log.debug("合并写入消息: {} 条", group.size());
+    }
+
+    private void writeOne(PendingWrite write) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                chatMessageMapper.insertOne(write.message);
+                if (write.sameTransaction != null) {
+                    write.sameTransaction.run();
+                }
+            });
+            write.future.complete(null);
+        } catch (RuntimeException e) {
+            write.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 会话顺序锁，users 只在 orderingLocks.compute 内修改
+     */
+    private static final class OrderingLock extends ReentrantLock {
+        /** 持有或等待该锁的 inOrder 调用数（含重入），归零时移出 */
+        private int users;
+    }
+
+    /**
+     * 一条待写消息
+     */
+    private static final class PendingWrite {
+        private final ChatMessageDO message;
+        private final Runnable sameTransaction;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingWrite(ChatMessageDO message, Runnable sameTransaction) {
+            this.message = message;
+            this.sameTransaction = sameTransaction;
+        }
+    }
+}
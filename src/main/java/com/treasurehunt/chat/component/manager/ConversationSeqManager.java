@@ -0,0 +1,295 @@
+package com.treasurehunt.chat.component.manager;
+
+import com.treasurehunt.chat.domain.ConversationSeqDO;
+import com.treasurehunt.chat.mapper.ChatMessageMapper;
+import com.treasurehunt.chat.mapper.ConversationSeqMapper;
+import com.treasurehuntshop.mall.common.constants.RedisKeyConstants;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 会话序号降级分配（Redis 不可用时使用）
+ *
+ * 原降级方式是 MAX(server_msg_id)+1：并发写者会算出同一个值撞 uq_conv_server，且 MAX 随会话消息量变慢。
+ * 现改为 conversation_seq 表按号段分配：
+ * 1. UPDATE ... SET seq = LAST_INSERT_ID(seq + N) 原子取一段 [seq-N+1, seq]，各实例号段互不重叠
+ * 2. 行已是 dirty 时只执行这一条按主键的 UPDATE（降级期间的常规路径）：dirty 期间各实例在 Redis INCR 前都会先同步该行，
+ *    Redis 序列不会越过 seq。只有无行或 dirty=0（Redis 恢复权威后的首次降级分配）时，才先把序号行抬到
+ *    MAX(server_msg_id)（走 uq_conv_server 索引），覆盖上次同步之后 Redis 继续分配出去的序号。
+ *    其它实例尚未拉取到 dirty 的短暂窗口内若 INCR 到已分配的值，由 uq_conv_server 拦下并走 {@link #repairAfterConflict}
+ * 3. Redis 恢复后把 Redis 序列抬到表中已分配的最大值，再丢弃本地号段，之后回到 Redis INCR
+ *
+ * 同步是全局的：号段分配同时把行标记为 dirty，每个实例（不只是分配号段的实例）都定期拉取 dirty 会话；
+ * Redis 停机期间 DB 照常可用，因此 Redis 恢复时各实例手里已有 dirty 列表，对这些会话先抬升 Redis 序列再 INCR，
+ * 抬升成功后清除 dirty。刚好在最后一次拉取之后才被标记的会话，若仍因 INCR 到旧值撞上 uq_conv_server，
+ * 由 {@link #repairAfterConflict} 按表与消息表的最大值修复 Redis 序列，客户端重试即可成功
+ *
+ * 号段在独立事务中提交：消息事务回滚不会让表回退，避免其它实例拿到重复号段。
+ *
+ * 号段长度默认 1：每条消息一次按主键的 UPDATE，各实例的分配按行锁串行，序号与发送先后一致；此时本地号段缓存不起作用，
+ * 只在调大号段时省去段内的 UPDATE。
+ * 号段大于 1 会破坏跨实例的顺序：同一会话的两个实例（客服与顾客通常连在不同实例上）各拿一段，如 [1..20] 与 [21..40]，
+ * 两边交替发送时序号与发送时间交错，已收到 21 的客户端按 gt(server_msg_id, 21) 增量拉取会永久漏掉另一实例的 2..20。
+ * 只有确认一个会话只会在单个实例上降级分配时才可调大；调大后降级结束时本地号段未用完的部分还会形成空洞
+ */
+@Slf4j
+@Component
+public class ConversationSeqManager {
+
+    /**
+     * Lua 脚本：只抬不降
+     * KEYS[1] = 序列键, ARGV[1] = 下限
+     */
+    private static final String LUA_RAISE_TO = "local cur = tonumber(redis.call('GET', KEYS[1]) or '0')\n" +
+            "if cur < tonumber(ARGV[1]) then\n" +
+            "  redis.call('SET', KEYS[1], ARGV[1])\n" +
+            "end\n" +
+            "return 'OK'";
+
+    @Autowired
+    private ConversationSeqMapper conversationSeqMapper;
+
+    @Autowired
+    private ChatMessageMapper chatMessageMapper;
+
+    @Autowired
+    private StatefulRedisConnection<String, String> redisConnection;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /** 单次拉取的 dirty 会话上限 */
+    private static final int DIRTY_FETCH_LIMIT = 1000;
+
+    /** 每次从 conversation_seq 申请的号段长度（大于 1 时多实例同一会话的序号不再按发送先后递增，见类注释） */
+    @Value("${chat.seq.segment-size:1}")
+    private int segmentSize;
+
+    private TransactionTemplate requiresNew;
+
+    /** 降级期间分配过号段、尚未同步回 Redis 的会话 */
+    private final ConcurrentHashMap<String, Segment> segments = new ConcurrentHashMap<>();
+
+    /** 全局 dirty 会话（任意实例降级分配过、Redis 序列尚未抬升）-> 拉取时的 seq */
+    private final ConcurrentHashMap<String, Long> dirty = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        requiresNew = new TransactionTemplate(transactionManager);
+        requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        if (segmentSize < 1) {
+            segmentSize = 1;
+        }
+    }
+
+    /**
+     * 降级分配下一个 serverMsgId
+     */
+    public long next(String conversationId) {
+        while (true) {
+            Segment segment = segments.computeIfAbsent(conversationId, k -> new Segment());
+            synchronized (segment) {
+                if (segment.retired) {
+                    // 刚被同步回 Redis 并移出，重新取（会建新号段）
+                    continue;
+                }
+                if (segment.next > segment.max) {
+                    long max = allocateSegment(conversationId);
+                    segment.next = max - segmentSize + 1;
+                    segment.max = max;
+                    log.info("Allocated seq segment from DB. conversationId={}, range=[{}, {}]",
+                            conversationId, segment.next, segment.max);
+                }
+                return segment.next++;
+            }
+        }
+    }
+
+    /**
+     * 会话有未同步的降级号段（本实例的或任意实例标记的 dirty）时，先把 Redis 序列抬到表中的已分配上界，再允许 Redis INCR
+     * 没有降级号段时只是两次 Map 判空
+     */
+    public void reconcileIfNeeded(String conversationId, RedisCommands<String, String> commands) {
+        if (segments.isEmpty() && dirty.isEmpty()) {
+            return;
+        }
+        Segment segment = segments.get(conversationId);
+        if (segment != null) {
+            reconcile(conversationId, segment, commands);
+        } else if (dirty.containsKey(conversationId)) {
+            reconcileDirty(conversationId, commands);
+        }
+    }
+
+    /**
+     * Redis 序列分配的 serverMsgId 撞上 uq_conv_server（且不是同一 clientMsgId 的重复消息）时调用：
+     * 把 Redis 序列抬到 max(conversation_seq.seq, MAX(server_msg_id))，下一次分配即不再冲突
+     */
+    public void repairAfterConflict(String conversationId) {
+        try {
+            Long seq = conversationSeqMapper.selectSeq(conversationId);
+            Long maxId = chatMessageMapper.getMaxServerMsgIdByConvId(conversationId);
+            long floor = Math.max(seq != null ? seq : 0L, maxId != null ? maxId : 0L);
+            raiseRedis(conversationId, floor, redisConnection.sync());
+            log.warn("Redis seq repaired after serverMsgId conflict. conversationId={}, floor={}", conversationId, floor);
+        } catch (Exception ex) {
+            log.warn("Redis seq repair failed. conversationId={}", conversationId, ex);
+        }
+    }
+
+    /**
+     * 定期拉取全局 dirty 会话（Redis 不可用时照常执行，恢复前各实例已知道哪些会话要先同步）
+     */
+    @Scheduled(fixedDelayString = "${chat.seq.dirty-poll-interval-ms:1000}")
+    public void refreshDirty() {
+        try {
+            List<ConversationSeqDO> rows = conversationSeqMapper.selectDirty(DIRTY_FETCH_LIMIT);
+            Set<String> seen = new HashSet<>();
+            for (ConversationSeqDO row : rows) {
+                seen.add(row.getConversationId());
+                dirty.put(row.getConversationId(), row.getSeq());
+            }
+            // 已被其它实例同步的会话不再需要检查
+            if (rows.size() < DIRTY_FETCH_LIMIT) {
+                dirty.keySet().retainAll(seen);
+            }
+        } catch (Exception ex) {
+            log.warn("Poll dirty conversation_seq failed, keep last snapshot. size={}", dirty.size(), ex);
+        }
+    }
+
+    /**
+     * 查询表中已分配的最大序号（Redis 懒初始化时与 MAX(server_msg_id) 取大），失败返回 null
+     */
+    public Long currentSeq(String conversationId) {
+        try {
+            return conversationSeqMapper.selectSeq(conversationId);
+        } catch (Exception ex) {
+            log.warn("Query conversation_seq failed for conversationId={}", conversationId, ex);
+            return null;
+        }
+    }
+
+    /**
+     * 定期把降级号段（本实例的与全局 dirty 的）同步回 Redis（Redis 仍不可用时下个周期再试）
+     */
+    @Scheduled(fixedDelayString = "${chat.seq.reconcile-interval-ms:5000}")
+    public void reconcilePending() {
+        if (segments.isEmpty() && dirty.isEmpty()) {
+            return;
+        }
+        RedisCommands<String, String> commands = redisConnection.sync();
+        try {
+            for (String conversationId : new ArrayList<>(segments.keySet())) {
+                Segment segment = segments.get(conversationId);
+                if (segment != null) {
+                    reconcile(conversationId, segment, commands);
+                }
+            }
+            for (String conversationId : new ArrayList<>(dirty.keySet())) {
+                reconcileDirty(conversationId, commands);
+            }
+        } catch (Exception ex) {
+            log.warn("Seq reconcile with Redis failed, will retry. pending={}, dirty={}", segments.size(), dirty.size(), ex);
+        }
+    }
+
+    private void reconcile(String conversationId, Segment segment, RedisCommands<String, String> commands) {
+        synchronized (segment) {
+            if (segment.retired) {
+                return;
+            }
+            Long seq = conversationSeqMapper.selectSeq(conversationId);
+            if (seq != null) {
+                raiseRedis(conversationId, seq, commands);
+                markSynced(conversationId, seq);
+            }
+            segment.retired = true;
+            segments.remove(conversationId, segment);
+            log.info("Seq reconciled with Redis. conversationId={}, seq={}", conversationId, seq);
+        }
+    }
+
+    /**
+     * 其它实例降级分配过的会话：按表中当前上界抬升 Redis 序列并清除 dirty
+     */
+    private void reconcileDirty(String conversationId, RedisCommands<String, String> commands) {
+        Long seq = conversationSeqMapper.selectSeq(conversationId);
+        if (seq != null) {
+            raiseRedis(conversationId, seq, commands);
+            markSynced(conversationId, seq);
+            log.info("Dirty seq reconciled with Redis. conversationId={}, seq={}", conversationId, seq);
+        }
+        dirty.remove(conversationId);
+    }
+
+    private void raiseRedis(String conversationId, long floor, RedisCommands<String, String> commands) {
+        commands.eval(LUA_RAISE_TO, ScriptOutputType.STATUS,
+                new String[] { RedisKeyConstants.CHAT_SERVER_MSG_ID_KEY + conversationId },
+                String.valueOf(floor));
+    }
+
+    /**
+     * 清除 dirty 失败不影响正确性（只是下个周期再同步一次），不向上抛
+     */
+    private void markSynced(String conversationId, long seq) {
+        try {
+            conversationSeqMapper.markSynced(conversationId, seq);
+        } catch (Exception ex) {
+            log.warn("Clear conversation_seq dirty flag failed. conversationId={}", conversationId, ex);
+        }
+    }
+
+    /**
+     * 在独立事务中申请号段：行已是 dirty 时直接分配；否则先把序号行抬到不低于 chat_message 当前最大值（无行时建行），再分配
+     * 上次同步之后 Redis 继续分配的序号只体现在消息表里，不先抬升的话新号段会与之重叠
+     *
+     * @return 号段上界
+     */
+    private long allocateSegment(String conversationId) {
+        Long max = requiresNew.execute(status -> {
+            ConversationSeqDO seq = new ConversationSeqDO();
+            seq.setConversationId(conversationId);
+            seq.setStep(segmentSize);
+            if (conversationSeqMapper.allocateSegmentIfDirty(seq) == 1) {
+                return seq.getSeq();
+            }
+            Long maxId = chatMessageMapper.getMaxServerMsgIdByConvId(conversationId);
+            conversationSeqMapper.raiseTo(conversationId, maxId != null ? maxId : 0L);
+            if (conversationSeqMapper.allocateSegment(seq) != 1) {
+                throw new IllegalStateException("conversation_seq row missing after init: " + conversationId);
+            }
+            return seq.getSeq();
+        });
+        if (max == null) {
+            throw new IllegalStateException("conversation_seq allocation returned null: " + conversationId);
+        }
+        return max;
+    }
+
+    /**
+     * 本地号段 [next, max]，初始为空段
+     */
+    private static final class Segment {
+        private long next = 1;
+        private long max = 0;
+        /** 已同步回 Redis 并移出 */
+        private boolean retired;
+    }
+}
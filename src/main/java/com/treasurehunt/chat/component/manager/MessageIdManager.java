@@ -26,11 +26,15 @@ public class MessageIdManager {
     @Autowired
     private ChatMessageMapper chatMessageMapper;
 
+    @Autowired
+    private ConversationSeqManager conversationSeqManager;
+
     /**
      * 懒初始化 + 允许空洞：仅在会话第一次需要递增且 Redis 无 key 时，从数据库读取最大 server_msg_id 做初始化。
      * Redis 不可用时抛出异常并记录错误,然后采用降级处理,也就是自己根据server_msg_id字段自增,只是插入数据库的地方,要
      * 采用新的方式插入,onduplicate的那种方式,如果有onduplicate,就自动加1,也就是当前方法要返回redis的状态,如果redis真的
      * 不可用了,插入的方式就是onduplicate自动加1的方式了,否则还是原来的方式,防止重复处理消息,也就是真的不可用的时候,要牺牲幂等性了
+     * 降级时的序号由 ConversationSeqManager 从 conversation_seq 表按号段分配（并发安全），表也不可用时才退回 MAX+1
      */
     public MessageIdGenerateResult generateServerMsgId(String conversationId) {
         if (conversationId == null || conversationId.isEmpty()) {
@@ -42,6 +46,8 @@ public class MessageIdManager {
         // 1) 快路径：已有 key，直接自增（仅包裹 Redis 操作）
         try {
             RedisCommands<String, String> commands = redisConnection.sync();
+            // Redis 刚恢复：先把降级期间从表里分出去的序号同步回来
+            conversationSeqManager.reconcileIfNeeded(conversationId, commands);
             if (commands.exists(key) > 0) {
                 Long next = commands.incr(key);
                 if (next == null) {
@@ -54,12 +60,7 @@ public class MessageIdManager {
             }
         } catch (Exception ex) {
             log.error("Redis quick-path failed, will fallback. conversationId={}", conversationId, ex);
-            Long maxId = safeQueryMaxId(conversationId);
-            Long fallback = (maxId == null) ? 1L : (maxId + 1L);
-            return MessageIdGenerateResult.builder()
-                    .redisAvailable(false)
-                    .serverMsgId(fallback)
-                    .build();
+            return degraded(conversationId);
         }
 
         // 2) 慢路径：首次初始化，需要 DB 的 maxId；DB 查询放在 Redis try-catch 之外
@@ -82,7 +83,10 @@ public class MessageIdManager {
                             .build();
                 }
 
-                String initial = (maxId != null) ? String.valueOf(maxId) : "0";
+                // 曾经降级过的会话，表中已分配的序号可能大于已落库的最大值
+                Long seq = conversationSeqManager.currentSeq(conversationId);
+                long floor = Math.max(maxId != null ? maxId : 0L, seq != null ? seq : 0L);
+                String initial = String.valueOf(floor);
                 commands.set(key, initial);
                 Long next = commands.incr(key);
                 if (next == null) {
@@ -101,14 +105,36 @@ public class MessageIdManager {
             }
         } catch (Exception ex) {
             log.error("Redis init-path failed, downgrade. conversationId={}", conversationId, ex);
-            Long fallback = (maxId == null) ? 1L : (maxId + 1L);
-            return MessageIdGenerateResult.builder()
-                    .redisAvailable(false)
-                    .serverMsgId(fallback)
-                    .build();
+            return degraded(conversationId);
         }
     }
 
+    /**
+     * 降级分配：conversation_seq 号段；表也不可用时退回 MAX(server_msg_id)+1（并发下可能重复，由唯一索引兜底）
+     */
+    private MessageIdGenerateResult degraded(String conversationId) {
+        long next;
+        try {
+            next = conversationSeqManager.next(conversationId);
+        } catch (Exception ex) {
+            log.error("DB seq allocation failed, fallback to MAX+1. conversationId={}", conversationId, ex);
+            Long maxId = safeQueryMaxId(conversationId);
+            next = (maxId == null) ? 1L : (maxId + 1L);
+        }
+        return MessageIdGenerateResult.builder()
+                .redisAvailable(false)
+                .serverMsgId(next)
+                .build();
+    }
+
+    /**
+     * 分配出的 serverMsgId 撞上唯一索引且不是同一 clientMsgId 的重复消息：Redis 序列落后于表（降级期间的号段未及同步），
+     * 修复后由客户端重试
+     */
+    public void onServerMsgIdConflict(String conversationId) {
+        conversationSeqManager.repairAfterConflict(conversationId);
+    }
+
     /**
      * 探活/只读查询：返回会话当前已知的最大 serverMsgId。
      * 行为：优先从 Redis 读取；失败或没有则查询 DB 的 MAX(server_msg_id)。
@@ -0,0 +1,41 @@
+package com.treasurehunt.chat.config;
+
+import com.treasurehunt.chat.security.HandshakeAdmissionController;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+
+/**
+ * 建连完成后归还握手准入名额
+ *
+ * 握手准入限制的是整个建连过程：名额在连接建立回调（含在线状态注册等切面逻辑）执行完后才归还，
+ * 回调异常或连接在建立前关闭时同样归还（只归还一次）
+ */
+public class AdmissionReleasingHandler extends WebSocketHandlerDecorator {
+
+    private final HandshakeAdmissionController admissionController;
+
+    public AdmissionReleasingHandler(WebSocketHandler delegate, HandshakeAdmissionController admissionController) {
+        super(delegate);
+        this.admissionController = admissionController;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        try {
+            super.afterConnectionEstablished(session);
+        } finally {
+            admissionController.releasePermit(session.getAttributes());
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        try {
+            super.afterConnectionClosed(session, closeStatus);
+        } finally {
+            admissionController.releasePermit(session.getAttributes());
+        }
+    }
+}
@@ -18,8 +18,16 @@ import java.util.concurrent.TimeUnit;
 @Configuration
 public class ChatThreadPoolConfig {
 
+    /**
+     * 幂等等待续跑线程池的排队上限，也是同时挂起的异步幂等等待数上限（IdempotencyService 按此发放许可，
+     * 拿到许可的续跑任务一定能入队，拿不到的请求在处理线程上直接回查 DB）
+     */
+    public static final int IDEMPOTENCY_RESUME_MAX_PENDING = 256;
+
     private ThreadPoolTaskExecutor conversationTaskExecutor;
 
+    private ThreadPoolTaskExecutor idempotencyResumeExecutor;
+
     /**
      * 会话处理线程池
      * 用于会话创建、客服分配等异步任务
@@ -45,6 +53,29 @@ public class ChatThreadPoolConfig {
         return conversationTaskExecutor;
     }
 
+    /**
+     * 幂等等待续跑线程池
+     * 重复请求等到 DONE 信号（或超时）后，回查 DB 与后续落库在这里执行，不占 Lettuce 订阅线程和 CompletableFuture 超时线程；
+     * 拒绝策略为 AbortPolicy：满了绝不退回到完成信号的线程上执行
+     */
+    @Bean("idempotencyResumeExecutor")
+    public TaskExecutor idempotencyResumeExecutor() {
+        idempotencyResumeExecutor = new ThreadPoolTaskExecutor();
+        idempotencyResumeExecutor.setCorePoolSize(16);
+        idempotencyResumeExecutor.setMaxPoolSize(16);
+        idempotencyResumeExecutor.setQueueCapacity(IDEMPOTENCY_RESUME_MAX_PENDING);
+        idempotencyResumeExecutor.setThreadNamePrefix("ChatIdempResume-");
+        idempotencyResumeExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        idempotencyResumeExecutor.setWaitForTasksToCompleteOnShutdown(true);
+        idempotencyResumeExecutor.setAwaitTerminationSeconds(10);
+        idempotencyResumeExecutor.initialize();
+
+        log.info("幂等等待续跑线程池初始化完成: threads={}, queue={}",
+                idempotencyResumeExecutor.getCorePoolSize(), idempotencyResumeExecutor.getQueueCapacity());
+
+        return idempotencyResumeExecutor;
+    }
+
     /**
      * 优雅停机，关闭会话处理线程池
      */
@@ -56,6 +87,7 @@ public class ChatThreadPoolConfig {
         printConversationThreadPoolStatus();
         
         shutdownExecutor("会话处理线程池", conversationTaskExecutor);
+        shutdownExecutor("幂等等待续跑线程池", idempotencyResumeExecutor);
         
         // 关闭后再次打印状态
         log.info("=== 关闭后的会话处理线程池状态 ===");
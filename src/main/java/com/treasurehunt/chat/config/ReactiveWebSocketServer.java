@@ -0,0 +1,224 @@
+package com.treasurehunt.chat.config;
+
+import com.treasurehunt.chat.framework.core.websocket.compression.NettyDeflateSupport;
+import com.treasurehunt.chat.framework.core.websocket.compression.WebSocketCompressionPolicy;
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.ConversationAffinityRouter;
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.InstanceLoadReporter;
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.UserSessionMetadataManager;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
+import com.treasurehunt.chat.framework.core.websocket.reactive.ReactorNettyWebSocketSession;
+import com.treasurehunt.chat.security.HandshakeAdmissionController;
+import com.treasurehunt.chat.security.HandshakeAdmissionController.AdmissionResult;
+import com.treasurehunt.chat.websocket.AgentWebSocketHandler;
+import com.treasurehunt.chat.websocket.CustomerWebSocketHandler;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.NettyPipeline;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.http.server.WebsocketServerSpec;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 Reactor Netty 的 WebSocket 传输层（websocket.transport=reactive 时启用）
+ *
+ * 与 Servlet 传输层提供相同的路径（/chat/customer-service、/chat/agent-service），
+ * 连接通过 {@link ReactorNettyWebSocketSession} 适配成 Spring WebSocketSession 后交给原有的 handler，
+ * 业务代码、WsController、出站队列、存活探测无需改动。HTTP 接口仍由 Tomcat 提供（server.port），
+ * WebSocket 监听独立端口，网关需将 WS 路由指向 websocket.reactive.port
+ *
+ * 握手阶段执行与 {@link WebSocketHandshakeInterceptor} 相同的排空判断、负载重定向、准入控制与亲和提示
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "websocket.transport", havingValue = "reactive")
+public class ReactiveWebSocketServer implements SmartLifecycle {
+
+    private static final String RESUME_HEADER = "X-Ws-Resume";
+    private static final String REDIRECT_INSTANCE_HEADER = "X-Redirect-Instance";
+    private static final String AFFINITY_HEADER = "X-Affinity-Key";
+    private static final String PREFERRED_INSTANCE_HEADER = "X-Preferred-Instance";
+
+    @Autowired
+    private CustomerWebSocketHandler customerWebSocketHandler;
+
+    @Autowired
+    private AgentWebSocketHandler agentWebSocketHandler;
+
+    @Autowired
+    private HandshakeAdmissionController admissionController;
+
+    @Autowired(required = false)
+    private UserSessionMetadataManager userSessionMetadataManager;
+
+    @Autowired(required = false)
+    private InstanceLoadReporter loadReporter;
+
+    @Autowired(required = false)
+    private ConversationAffinityRouter affinityRouter;
+
+    @Autowired
+    private WebSocketCompressionPolicy compressionPolicy;
+
+    /** WebSocket 监听端口 */
+    @Value("${websocket.reactive.port:8087}")
+    private int port;
+
+    /** 单帧最大载荷（字节） */
+    @Value("${websocket.reactive.max-frame-payload:65536}")
+    private int maxFramePayload;
+
+    /** 单帧写出超时（毫秒） */
+    @Value("${websocket.reactive.write-timeout-ms:30000}")
+    private long writeTimeoutMs;
+
+    /** 执行 handler 回调的线程数上限（handler 内有 Redis/DB 阻塞调用，不能跑在事件循环上） */
+    @Value("${websocket.reactive.handler-threads:64}")
+    private int handlerThreads;
+
+    private volatile DisposableServer server;
+    private Scheduler handlerScheduler;
+
+    @Override
+    public void start() {
+        handlerScheduler = Schedulers.newBoundedElastic(handlerThreads, Integer.MAX_VALUE, "ws-reactive-handler");
+        server = HttpServer.create()
+                .port(port)
+                // permessage-deflate：按策略协商，小帧跳过压缩（见 NettyDeflateSupport）
+                .doOnChannelInit((observer, channel, remoteAddress) ->
+                        NettyDeflateSupport.install(channel, compressionPolicy, NettyPipeline.HttpTrafficHandler))
+                .route(routes -> routes
+                        .get("/chat/customer-service", (req, res) -> upgrade(req, res, customerWebSocketHandler))
+                        .get("/chat/agent-service", (req, res) -> upgrade(req, res, agentWebSocketHandler)))
+                .bindNow();
+        log.info("Reactive WebSocket server started on port {}", port);
+    }
+
+    @Override
+    public void stop() {
+        DisposableServer current = server;
+        if (current != null) {
+            current.disposeNow(Duration.ofSeconds(5));
+            server = null;
+        }
+        if (handlerScheduler != null) {
+            handlerScheduler.dispose();
+        }
+        log.info("Reactive WebSocket server stopped");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return server != null;
+    }
+
+    /**
+     * 停机时排在 GracefulDrainLifecycle（DEFAULT_PHASE）之后：先排空会话，再关闭监听
+     */
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 1;
+    }
+
+    private Publisher<Void> upgrade(HttpServerRequest req, HttpServerResponse res, WebSocketHandler handler) {
+        // 1. 实例排空中
+        if (userSessionMetadataManager != null && userSessionMetadataManager.isDraining()) {
+            return reject(res, 1);
+        }
+        URI uri = buildUri(req);
+        MultiValueMap<String, String> params = UriComponentsBuilder.fromUri(uri).build().getQueryParams();
+        boolean resuming = "true".equalsIgnoreCase(req.requestHeaders().get(RESUME_HEADER))
+                || "1".equals(params.getFirst("resume"));
+
+        // 2. 负载感知重定向
+        String redirectTarget = !resuming && loadReporter != null ? loadReporter.redirectTarget() : null;
+        if (redirectTarget != null) {
+            res.header(REDIRECT_INSTANCE_HEADER, redirectTarget);
+            if (loadReporter.isRedirectEnforce()) {
+                return reject(res, 0);
+            }
+        }
+
+        // 3. 准入控制
+        AdmissionResult result = admissionController.tryAdmit(resuming);
+        if (!result.isAdmitted()) {
+            log.debug("WebSocket握手被拒绝: reason={}, resuming={}", result.getReason(), resuming);
+            return reject(res, result.getRetryAfterSeconds());
+        }
+        HttpHeaders headers = new HttpHeaders();
+        req.requestHeaders().forEach(e -> headers.add(e.getKey(), e.getValue()));
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        attributes.put("resuming", resuming);
+        if (result.isPermitHeld()) {
+            // 名额在连接建立回调执行完后归还（AdmissionReleasingHandler），升级失败或连接结束时兜底归还
+            admissionController.holdPermit(attributes);
+        }
+
+        // 4. 告知首选实例
+        String affinityKey = resolveAffinityKey(req, params);
+        if (affinityRouter != null && affinityKey != null) {
+            String preferred = affinityRouter.preferredInstance(affinityKey);
+            res.header(PREFERRED_INSTANCE_HEADER, preferred);
+            attributes.put("preferredInstance", preferred);
+        }
+        InetSocketAddress local = req.hostAddress();
+        InetSocketAddress remote = req.remoteAddress() instanceof InetSocketAddress
+                ? (InetSocketAddress) req.remoteAddress() : null;
+
+        WebsocketServerSpec spec = WebsocketServerSpec.builder()
+                .maxFramePayloadLength(maxFramePayload)
+                .protocols(String.join(",", WsFrameFormat.SUPPORTED_PROTOCOLS))
+                .build();
+        return res.sendWebsocket((in, out) -> {
+                    ReactorNettyWebSocketSession session = new ReactorNettyWebSocketSession(uri, headers, attributes,
+                            local, remote, in, out, maxFramePayload, Duration.ofMillis(writeTimeoutMs));
+                    return session.handle(new AdmissionReleasingHandler(handler, admissionController), handlerScheduler);
+                }, spec)
+                .doFinally(s -> admissionController.releasePermit(attributes));
+    }
+
+    private Mono<Void> reject(HttpServerResponse res, int retryAfterSeconds) {
+        return res.status(HttpResponseStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+                .send();
+    }
+
+    private URI buildUri(HttpServerRequest req) {
+        String host = req.requestHeaders().get(HttpHeaders.HOST);
+        if (host == null) {
+            host = req.hostAddress() != null ? req.hostAddress().getHostString() + ":" + port : "localhost:" + port;
+        }
+        return URI.create("ws://" + host + req.uri());
+    }
+
+    private String resolveAffinityKey(HttpServerRequest req, MultiValueMap<String, String> params) {
+        String key = req.requestHeaders().get(AFFINITY_HEADER);
+        if (key == null || key.isEmpty()) {
+            key = params.getFirst("conversationId");
+        }
+        if (key == null || key.isEmpty()) {
+            key = params.getFirst("shopId");
+        }
+        return key == null || key.isEmpty() ? null : key;
+    }
+}
@@ -1,19 +1,28 @@
 package com.treasurehunt.chat.config;
 
+import com.treasurehunt.chat.framework.core.websocket.compression.WebSocketCompressionFilter;
+import com.treasurehunt.chat.framework.core.websocket.compression.WebSocketCompressionPolicy;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
+import com.treasurehunt.chat.security.HandshakeAdmissionController;
 import com.treasurehunt.chat.websocket.AgentWebSocketHandler;
 import com.treasurehunt.chat.websocket.CustomerWebSocketHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.server.standard.ServerEndpointExporter;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
 /**
- * WebSocket配置类
+ * WebSocket配置类（Servlet 传输层，默认）
+ * websocket.transport=reactive 时改由 {@link ReactiveWebSocketServer} 提供 WebSocket 端点
  */
 @Configuration
+@ConditionalOnProperty(name = "websocket.transport", havingValue = "servlet", matchIfMissing = true)
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
 
@@ -26,19 +35,50 @@ public class WebSocketConfig implements WebSocketConfigurer {
     @Autowired
     private WebSocketHandshakeInterceptor handshakeInterceptor;
 
+    @Autowired
+    private WebSocketCompressionPolicy compressionPolicy;
+
+    @Autowired
+    private HandshakeAdmissionController admissionController;
+
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         // 注册客户聊天WebSocket处理器
-        registry.addHandler(customerWebSocketHandler, "/chat/customer-service")
+        // 握手准入名额在连接建立回调执行完后归还
+        registry.addHandler(new AdmissionReleasingHandler(customerWebSocketHandler, admissionController), "/chat/customer-service")
+                .setHandshakeHandler(handshakeHandler())
                 .addInterceptors(handshakeInterceptor)
                 .setAllowedOrigins("*"); // 允许跨域
 
         // 注册客服聊天WebSocket处理器
-        registry.addHandler(agentWebSocketHandler, "/chat/agent-service")
+        registry.addHandler(new AdmissionReleasingHandler(agentWebSocketHandler, admissionController), "/chat/agent-service")
+                .setHandshakeHandler(handshakeHandler())
                 .addInterceptors(handshakeInterceptor)
                 .setAllowedOrigins("*"); // 允许跨域
     }
 
+    /**
+     * 子协议协商：客户端通过 Sec-WebSocket-Protocol 选择帧编码（chat.cbor / chat.json），未声明时为 JSON
+     */
+    @Bean
+    public DefaultHandshakeHandler handshakeHandler() {
+        DefaultHandshakeHandler handshakeHandler = new DefaultHandshakeHandler();
+        handshakeHandler.setSupportedProtocols(WsFrameFormat.SUPPORTED_PROTOCOLS);
+        return handshakeHandler;
+    }
+
+    /**
+     * permessage-deflate 协商：Tomcat 直接按握手请求头协商，因此在进入 Tomcat 之前按策略改写报价
+     */
+    @Bean
+    public FilterRegistrationBean<WebSocketCompressionFilter> webSocketCompressionFilter() {
+        FilterRegistrationBean<WebSocketCompressionFilter> registration =
+                new FilterRegistrationBean<>(new WebSocketCompressionFilter(compressionPolicy));
+        registration.addUrlPatterns("/chat/customer-service", "/chat/agent-service");
+        registration.setName("webSocketCompressionFilter");
+        return registration;
+    }
+
     @Bean
     public ServerEndpointExporter serverEndpointExporter() {
         return new ServerEndpointExporter();
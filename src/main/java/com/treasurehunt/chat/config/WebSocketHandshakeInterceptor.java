@@ -1,46 +1,172 @@
 package com.treasurehunt.chat.config;
 
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.ConversationAffinityRouter;
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.InstanceLoadReporter;
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.UserSessionMetadataManager;
+import com.treasurehunt.chat.security.HandshakeAdmissionController;
+import com.treasurehunt.chat.security.HandshakeAdmissionController.AdmissionResult;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import java.util.Map;
 
 /**
- * WebSocket握手拦截器 - 用于调试
+ * WebSocket握手拦截器
+ *
+ * 握手准入：实例排空中或超出准入预算时直接返回 503 + Retry-After，
+ * 不进入后续的用户解析、在线状态写入与重连补偿查询
+ *
+ * 续连客户端通过请求头 X-Ws-Resume: true 或查询参数 resume=1 标识，享有预留额度
+ *
+ * 并发名额挂在会话属性上，握手失败时在 afterHandshake 归还，握手成功时由
+ * {@link AdmissionReleasingHandler} 在连接建立回调执行完后归还
+ *
+ * 会话亲和：握手携带 X-Affinity-Key 请求头或 conversationId / shopId 查询参数时，
+ * 在响应头 X-Preferred-Instance 中返回该 key 的首选实例，客户端/网关可据此重连到同一实例
+ *
+ * 负载均衡：当前实例连接数/调度延迟超过水位时，在响应头 X-Redirect-Instance 中给出负载更低的实例；
+ * 开启 websocket.load.redirect-enforce 后新连接直接以 503 拒绝（续连不受影响）
  */
 @Slf4j
 @Component
 public class WebSocketHandshakeInterceptor implements HandshakeInterceptor {
 
+    private static final String RESUME_HEADER = "X-Ws-Resume";
+    private static final String RESUME_PARAM = "resume";
+    private static final String AFFINITY_HEADER = "X-Affinity-Key";
+    private static final String PREFERRED_INSTANCE_HEADER = "X-Preferred-Instance";
+    private static final String REDIRECT_INSTANCE_HEADER = "X-Redirect-Instance";
+    /** afterHandshake 拿不到会话属性，通过请求属性取回以便握手失败时归还名额 */
+    private static final String HANDSHAKE_ATTRIBUTES = WebSocketHandshakeInterceptor.class.getName() + ".attributes";
+
+    @Autowired
+    private HandshakeAdmissionController admissionController;
+
+    @Autowired(required = false)
+    private UserSessionMetadataManager userSessionMetadataManager;
+
+    @Autowired(required = false)
+    private ConversationAffinityRouter affinityRouter;
+
+    @Autowired(required = false)
+    private InstanceLoadReporter loadReporter;
+
     @Override
     public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
                                    WebSocketHandler wsHandler, Map<String, Object> attributes) throws Exception {
-        log.info("=== WebSocket握手开始 ===");
-        log.info("Request URI: {}", request.getURI());
-        log.info("Request Headers: {}", request.getHeaders());
-        log.info("Remote Address: {}", request.getRemoteAddress());
-        log.info("WebSocket Handler: {}", wsHandler.getClass().getSimpleName());
-        
-        // 记录所有请求头
-        request.getHeaders().forEach((key, values) -> {
-            log.info("Header {}: {}", key, values);
-        });
-        
-        log.info("=== WebSocket握手结束 ===");
+        if (log.isDebugEnabled()) {
+            log.debug("WebSocket握手开始: uri={}, remote={}, handler={}, headers={}", request.getURI(),
+                    request.getRemoteAddress(), wsHandler.getClass().getSimpleName(), request.getHeaders());
+        }
+
+        // 1. 实例排空中，引导客户端连接其他实例
+        if (userSessionMetadataManager != null && userSessionMetadataManager.isDraining()) {
+            rejectWithRetryAfter(response, 1);
+            return false;
+        }
+
+        // 2. 负载感知重定向（只针对新连接，续连照常接入）
+        MultiValueMap<String, String> params = UriComponentsBuilder.fromUri(request.getURI()).build().getQueryParams();
+        boolean resuming = isResuming(request, params);
+        String redirectTarget = !resuming && loadReporter != null ? loadReporter.redirectTarget() : null;
+        if (redirectTarget != null) {
+            response.getHeaders().set(REDIRECT_INSTANCE_HEADER, redirectTarget);
+            if (loadReporter.isRedirectEnforce()) {
+                log.debug("WebSocket握手重定向: target={}", redirectTarget);
+                rejectWithRetryAfter(response, 0);
+                return false;
+            }
+        }
+
+        // 3. 准入控制（续连优先）
+        AdmissionResult result = admissionController.tryAdmit(resuming);
+        if (!result.isAdmitted()) {
+            log.debug("WebSocket握手被拒绝: reason={}, resuming={}", result.getReason(), resuming);
+            rejectWithRetryAfter(response, result.getRetryAfterSeconds());
+            return false;
+        }
+        if (result.isPermitHeld()) {
+            admissionController.holdPermit(attributes);
+            if (request instanceof ServletServerHttpRequest) {
+                ((ServletServerHttpRequest) request).getServletRequest().setAttribute(HANDSHAKE_ATTRIBUTES, attributes);
+            }
+        }
+        attributes.put("resuming", resuming);
+
+        // 4. 告知首选实例（不强制，当前实例照常接入）
+        String affinityKey = resolveAffinityKey(request, params);
+        if (affinityRouter != null && affinityKey != null) {
+            String preferred = affinityRouter.preferredInstance(affinityKey);
+            response.getHeaders().set(PREFERRED_INSTANCE_HEADER, preferred);
+            attributes.put("preferredInstance", preferred);
+        }
         return true; // 允许握手继续
     }
 
     @Override
     public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
                                WebSocketHandler wsHandler, Exception exception) {
+        // 握手成功时名额留到连接建立回调执行完后再归还；未升级成功则不会有连接回调，这里直接归还
+        if (exception != null || !isUpgraded(response)) {
+            releaseHandshakePermit(request);
+        }
         if (exception != null) {
             log.error("WebSocket握手失败", exception);
         } else {
-            log.info("WebSocket握手成功");
+            log.debug("WebSocket握手成功");
         }
     }
+
+    private boolean isUpgraded(ServerHttpResponse response) {
+        if (response instanceof ServletServerHttpResponse) {
+            return ((ServletServerHttpResponse) response).getServletResponse().getStatus()
+                    == HttpStatus.SWITCHING_PROTOCOLS.value();
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void releaseHandshakePermit(ServerHttpRequest request) {
+        if (request instanceof ServletServerHttpRequest) {
+            Object attributes = ((ServletServerHttpRequest) request).getServletRequest().getAttribute(HANDSHAKE_ATTRIBUTES);
+            if (attributes instanceof Map) {
+                admissionController.releasePermit((Map<String, Object>) attributes);
+            }
+        }
+    }
+
+    private boolean isResuming(ServerHttpRequest request, MultiValueMap<String, String> params) {
+        if ("true".equalsIgnoreCase(request.getHeaders().getFirst(RESUME_HEADER))) {
+            return true;
+        }
+        return "1".equals(params.getFirst(RESUME_PARAM));
+    }
+
+    private String resolveAffinityKey(ServerHttpRequest request, MultiValueMap<String, String> params) {
+        String key = request.getHeaders().getFirst(AFFINITY_HEADER);
+        if (key != null && !key.isEmpty()) {
+            return key;
+        }
+        key = params.getFirst("conversationId");
+        if (key == null || key.isEmpty()) {
+            key = params.getFirst("shopId");
+        }
+        return key == null || key.isEmpty() ? null : key;
+    }
+
+    private void rejectWithRetryAfter(ServerHttpResponse response, int retryAfterSeconds) {
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+    }
 }
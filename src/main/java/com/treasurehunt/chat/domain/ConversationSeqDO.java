@@ -0,0 +1,34 @@
+package com.treasurehunt.chat.domain;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+import java.util.Date;
+
+@Data
+@TableName("conversation_seq")
+public class ConversationSeqDO {
+
+    /** 会话ID（与 Redis 序列键同粒度） */
+    @TableId(value = "conversation_id", type = IdType.INPUT)
+    private String conversationId;
+
+    /** 已分配出去的最大 server_msg_id（号段上界） */
+    @TableField("seq")
+    private Long seq;
+
+    /** 1 表示降级分配后 Redis 序列尚未抬升到 seq，所有实例在使用 Redis 序列前都要先同步 */
+    @TableField("dirty")
+    private Integer dirty;
+
+    /** 本次申请的号段长度（仅作为 SQL 参数，不落库） */
+    @TableField(exist = false)
+    private Integer step;
+
+    /** 更新时间 */
+    @TableField("updated_at")
+    private Date updatedAt;
+}
@@ -0,0 +1,168 @@
+package com.treasurehunt.chat.framework.core.websocket.compression;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+import java.util.List;
+
+/**
+ * Reactor Netty 传输层的 permessage-deflate 支持
+ *
+ * 不使用 WebsocketServerSpec.compress(true)（只能全开、无阈值），而是在通道初始化时自行装配 Netty 的扩展握手：
+ * - 报价改写：按 {@link WebSocketCompressionPolicy} 剥离或追加 server_no_context_takeover
+ * - 压缩阈值：通过 WebSocketExtensionFilterProvider 让小于 min-size 的帧跳过压缩（RSV1=0 原样发送）
+ * - 无上下文接管：每条消息压缩完即释放 deflater，连接空闲时不持有压缩状态
+ * - 指标：在压缩编码器两侧各放一个计量 handler，记录压缩前后字节数与压缩耗时
+ *
+ * 握手成功后扩展 handler 会把编码器/解码器插在自己之后并移除自身，因此管道顺序（head → tail）为：
+ * 报价改写 → 压缩后计量 → 扩展握手（→ 压缩编解码器）→ 压缩前计量 → HttpTrafficHandler
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+public final class NettyDeflateSupport {
+
+    /** 帧头 RSV1 位：permessage-deflate 压缩标记 */
+    private static final int RSV1 = 0x4;
+    private static final int WINDOW_BITS = 15;
+
+    private NettyDeflateSupport() {
+    }
+
+    /**
+     * 在指定 handler 之前装配压缩相关 handler
+     *
+     * @param channel    新建的连接
+     * @param policy     压缩策略
+     * @param baseHandler 装配位置（HTTP 编解码之后的第一个 handler 名称）
+     */
+    public static void install(Channel channel, WebSocketCompressionPolicy policy, String baseHandler) {
+        ChannelPipeline pipeline = channel.pipeline();
+        if (!policy.isEnabled() || pipeline.get(baseHandler) == null) {
+            return;
+        }
+        int minSize = policy.getMinSize();
+        WebSocketExtensionFilterProvider filterProvider = new WebSocketExtensionFilterProvider() {
+            @Override
+            public WebSocketExtensionFilter encoderFilter() {
+                return frame -> frame.content().readableBytes() < minSize;
+            }
+
+            @Override
+            public WebSocketExtensionFilter decoderFilter() {
+                return WebSocketExtensionFilter.NEVER_SKIP;
+            }
+        };
+        PerMessageDeflateServerExtensionHandshaker handshaker = new PerMessageDeflateServerExtensionHandshaker(
+                policy.getLevel(), false, WINDOW_BITS, true, false, filterProvider);
+        CompressedFrameMeter compressedMeter = new CompressedFrameMeter();
+        pipeline.addBefore(baseHandler, "ws.deflate.offer", new OfferRewriter(policy));
+        pipeline.addBefore(baseHandler, "ws.deflate.compressed-meter", compressedMeter);
+        pipeline.addBefore(baseHandler, "ws.deflate", new WebSocketServerExtensionHandler(handshaker));
+        pipeline.addBefore(baseHandler, "ws.deflate.raw-meter", new RawFrameMeter(policy, compressedMeter));
+    }
+
+    /**
+     * 握手请求到达扩展 handler 之前改写 Sec-WebSocket-Extensions
+     */
+    private static final class OfferRewriter extends ChannelInboundHandlerAdapter {
+
+        private final WebSocketCompressionPolicy policy;
+
+        private OfferRewriter(WebSocketCompressionPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                HttpRequest request = (HttpRequest) msg;
+                List<String> offers = request.headers().getAll(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+                if (!offers.isEmpty()) {
+                    List<String> optIn = new QueryStringDecoder(request.uri()).parameters()
+                            .get(WebSocketCompressionPolicy.OPT_IN_PARAM);
+                    boolean accepted = policy.accept(optIn != null && !optIn.isEmpty() ? optIn.get(0) : null);
+                    String rewritten = policy.rewriteOffer(String.join(", ", offers), accepted);
+                    if (rewritten == null) {
+                        request.headers().remove(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+                    } else {
+                        request.headers().set(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS, rewritten);
+                    }
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    /**
+     * 压缩编码器之前（tail 侧）：记录原始大小与起始时间；低于阈值的帧只计数
+     * 出站写在事件循环上同步穿过编码器，因此 ctx.write 返回时该帧已完成压缩
+     */
+    private static final class RawFrameMeter extends ChannelOutboundHandlerAdapter {
+
+        private final WebSocketCompressionPolicy policy;
+        private final CompressedFrameMeter compressedMeter;
+
+        private RawFrameMeter(WebSocketCompressionPolicy policy, CompressedFrameMeter compressedMeter) {
+            this.policy = policy;
+            this.compressedMeter = compressedMeter;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (!isDataFrame(msg)) {
+                ctx.write(msg, promise);
+                return;
+            }
+            int raw = ((WebSocketFrame) msg).content().readableBytes();
+            if (raw < policy.getMinSize()) {
+                policy.recordSkipped();
+                ctx.write(msg, promise);
+                return;
+            }
+            compressedMeter.lastCompressed = -1;
+            long start = System.nanoTime();
+            ctx.write(msg, promise);
+            long elapsed = System.nanoTime() - start;
+            // 未协商压缩的连接，帧不会带 RSV1，不计入压缩比
+            if (compressedMeter.lastCompressed >= 0) {
+                policy.recordCompressed(raw, compressedMeter.lastCompressed, elapsed);
+            }
+        }
+    }
+
+    /**
+     * 压缩编码器之后（head 侧）：记录压缩后的大小
+     */
+    private static final class CompressedFrameMeter extends ChannelOutboundHandlerAdapter {
+
+        /** 仅在本连接的事件循环上读写 */
+        private int lastCompressed = -1;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (isDataFrame(msg) && (((WebSocketFrame) msg).rsv() & RSV1) != 0) {
+                lastCompressed = ((WebSocketFrame) msg).content().readableBytes();
+            }
+            ctx.write(msg, promise);
+        }
+    }
+
+    private static boolean isDataFrame(Object msg) {
+        return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame;
+    }
+}
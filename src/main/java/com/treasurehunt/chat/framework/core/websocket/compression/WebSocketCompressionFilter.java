@@ -0,0 +1,96 @@
+package com.treasurehunt.chat.framework.core.websocket.compression;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Servlet 传输层的 permessage-deflate 协商入口
+ *
+ * Tomcat 直接读取握手请求上的 Sec-WebSocket-Extensions 与内置扩展协商，Spring 的 HandshakeHandler
+ * 无法阻止或调整协商结果，因此在过滤器里按 {@link WebSocketCompressionPolicy} 改写该请求头后再交给 Tomcat
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+public class WebSocketCompressionFilter extends OncePerRequestFilter {
+
+    private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+
+    private final WebSocketCompressionPolicy policy;
+
+    public WebSocketCompressionFilter(WebSocketCompressionPolicy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String offer = joinHeader(request.getHeaders(EXTENSIONS_HEADER));
+        if (offer == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        boolean accepted = policy.accept(request.getParameter(WebSocketCompressionPolicy.OPT_IN_PARAM));
+        chain.doFilter(new ExtensionsRewrittenRequest(request, policy.rewriteOffer(offer, accepted)), response);
+    }
+
+    private static String joinHeader(Enumeration<String> values) {
+        if (values == null || !values.hasMoreElements()) {
+            return null;
+        }
+        List<String> all = Collections.list(values);
+        return String.join(", ", all);
+    }
+
+    /**
+     * 只替换 Sec-WebSocket-Extensions，其余请求头原样透传
+     */
+    private static final class ExtensionsRewrittenRequest extends HttpServletRequestWrapper {
+
+        private final String extensions;
+
+        private ExtensionsRewrittenRequest(HttpServletRequest request, String extensions) {
+            super(request);
+            this.extensions = extensions;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+                return extensions;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+                return extensions != null ? Collections.enumeration(List.of(extensions)) : Collections.emptyEnumeration();
+            }
+            return super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            List<String> names = new ArrayList<>();
+            Enumeration<String> original = super.getHeaderNames();
+            while (original.hasMoreElements()) {
+                String name = original.nextElement();
+                if (!EXTENSIONS_HEADER.equalsIgnoreCase(name) || extensions != null) {
+                    names.add(name);
+                }
+            }
+            return Collections.enumeration(names);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.treasurehunt.chat.framework.core.websocket.compression;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket permessage-deflate（RFC 7692）协商策略
+ *
+ * - mode=off：剥离客户端的 permessage-deflate 报价，不压缩
+ * - mode=opt-in（默认）：只有握手 URL 带 compress=1 的会话才协商（弱网移动端按需开启，浏览器默认报价不再自动生效）
+ * - mode=all：客户端报价即协商
+ *
+ * 协商时统一追加 server_no_context_takeover：服务端每条消息用完即释放压缩上下文，
+ * 空闲连接不常驻 32KB 滑动窗口和 zlib 状态，内存不随"已协商压缩的连接数"线性增长（代价是每条消息重新初始化 deflater）。
+ * RFC 7692 允许服务端在客户端未报价该参数时也在响应中携带它。
+ *
+ * 小于 min-size 的帧跳过压缩、以及压缩比/耗时指标只在 reactive 传输层生效；
+ * Tomcat 内置实现对所有数据帧压缩，且不提供逐帧的挂钩点
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class WebSocketCompressionPolicy {
+
+    /** 握手 URL 上的开启参数 */
+    public static final String OPT_IN_PARAM = "compress";
+
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    /** off / opt-in / all */
+    @Value("${websocket.compression.mode:opt-in}")
+    private String mode;
+
+    /** 小于该字节数的帧不压缩 */
+    @Value("${websocket.compression.min-size:1024}")
+    private int minSize;
+
+    /** deflate 压缩级别（1~9），越高越省带宽、越费 CPU */
+    @Value("${websocket.compression.level:6}")
+    private int level;
+
+    private Counter offersAccepted;
+    private Counter offersStripped;
+    private Counter rawBytes;
+    private Counter compressedBytes;
+    private Counter skippedFrames;
+    private Timer compressTimer;
+
+    @PostConstruct
+    public void init() {
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        offersAccepted = Counter.builder("chat.ws.compression.offers").tag("result", "accepted")
+                .description("客户端 permessage-deflate 报价处理结果").register(registry);
+        offersStripped = Counter.builder("chat.ws.compression.offers").tag("result", "stripped")
+                .description("客户端 permessage-deflate 报价处理结果").register(registry);
+        rawBytes = Counter.builder("chat.ws.compression.bytes").tag("stage", "raw").baseUnit("bytes")
+                .description("参与压缩的帧压缩前字节数").register(registry);
+        compressedBytes = Counter.builder("chat.ws.compression.bytes").tag("stage", "compressed").baseUnit("bytes")
+                .description("参与压缩的帧压缩后字节数").register(registry);
+        skippedFrames = Counter.builder("chat.ws.compression.skipped")
+                .description("低于阈值跳过压缩的帧数").register(registry);
+        compressTimer = Timer.builder("chat.ws.compression.encode")
+                .description("每帧压缩耗时").register(registry);
+        log.info("WebSocket压缩策略: mode={}, minSize={}, level={}", mode, minSize, level);
+    }
+
+    public boolean isEnabled() {
+        return !"off".equalsIgnoreCase(mode);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * 该次握手是否允许协商压缩
+     *
+     * @param optInValue 握手 URL 上 compress 参数的值，可为 null
+     */
+    public boolean accept(String optInValue) {
+        if (!isEnabled()) {
+            return false;
+        }
+        if ("all".equalsIgnoreCase(mode)) {
+            return true;
+        }
+        return "1".equals(optInValue) || "true".equalsIgnoreCase(optInValue);
+    }
+
+    /**
+     * 按策略改写 Sec-WebSocket-Extensions 请求头：
+     * 不允许压缩时移除 permessage-deflate 报价；允许时给每个 permessage-deflate 报价追加 server_no_context_takeover
+     *
+     * @return 改写后的头；没有剩余扩展时返回 null
+     */
+    public String rewriteOffer(String header, boolean accepted) {
+        if (header == null || header.isEmpty()) {
+            return header;
+        }
+        List<String> offers = new ArrayList<>();
+        boolean deflateOffered = false;
+        for (String offer : header.split(",")) {
+            String trimmed = offer.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int semicolon = trimmed.indexOf(';');
+            String name = (semicolon >= 0 ? trimmed.substring(0, semicolon) : trimmed).trim();
+            if (!PERMESSAGE_DEFLATE.equalsIgnoreCase(name)) {
+                offers.add(trimmed);
+                continue;
+            }
+            deflateOffered = true;
+            if (!accepted) {
+                continue;
+            }
+            offers.add(trimmed.contains(SERVER_NO_CONTEXT_TAKEOVER) ? trimmed : trimmed + "; " + SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (deflateOffered) {
+            (accepted ? offersAccepted : offersStripped).increment();
+        }
+        return offers.isEmpty() ? null : String.join(", ", offers);
+    }
+
+    void recordCompressed(int raw, int compressed, long nanos) {
+        rawBytes.increment(raw);
+        compressedBytes.increment(compressed);
+        compressTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordSkipped() {
+        skippedFrames.increment();
+    }
+}
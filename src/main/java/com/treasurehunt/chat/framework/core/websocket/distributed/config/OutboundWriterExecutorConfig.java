@@ -0,0 +1,31 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * 会话出站写线程池
+ * 每个会话同一时刻最多只有一个写任务在执行（单写者），因此队列长度上限约等于本机会话数
+ */
+@Configuration
+public class OutboundWriterExecutorConfig {
+
+    @Value("${websocket.outbound.writer-threads:8}")
+    private int writerThreads;
+
+    @Bean("wsOutboundWriterExecutor")
+    public TaskExecutor wsOutboundWriterExecutor() {
+        ThreadPoolTaskExecutor ex = new ThreadPoolTaskExecutor();
+        ex.setCorePoolSize(writerThreads);
+        ex.setMaxPoolSize(writerThreads);
+        ex.setQueueCapacity(Integer.MAX_VALUE);
+        ex.setThreadNamePrefix("ws-outbound-writer-");
+        ex.setWaitForTasksToCompleteOnShutdown(true);
+        ex.setAwaitTerminationSeconds(5);
+        ex.initialize();
+        return ex;
+    }
+}
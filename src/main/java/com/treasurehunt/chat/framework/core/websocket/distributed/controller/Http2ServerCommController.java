@@ -10,6 +10,8 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -66,22 +68,21 @@ public class Http2ServerCommController {
             Set<String> targetUserIds = (Set<String>) message.get("targetUserIds");
             
             if (targetUserIds != null) {
+                // 获取目标用户在本机的所有会话ID，一次 fan-out（提示帧只序列化一次）
+                List<String> localSessionIds = new ArrayList<>();
                 for (String userId : targetUserIds) {
-                    // 获取用户在本机的所有会话ID
                     Set<String> sessionIds = userSessionMetadataManager.getSessionIdsByUserId(userId);
                     if (sessionIds != null && !sessionIds.isEmpty()) {
-                        // 向每个会话推送通知
-                        for (String sessionId : sessionIds) {
-                            try {
-                                notifyPushSender.sendNotifyPullLocal(sessionId, conversationId, serverMsgId);
-                                log.debug("HTTP/2 relay: pushed to user={}, sessionId={}, conversationId={}", 
-                                    userId, sessionId, conversationId);
-                            } catch (Exception e) {
-                                log.error("HTTP/2 relay: failed to push to user={}, sessionId={}", userId, sessionId, e);
-                            }
-                        }
+                        localSessionIds.addAll(sessionIds);
                     }
                 }
+                try {
+                    int pushed = notifyPushSender.fanOutNotifyPullLocal(localSessionIds, conversationId, serverMsgId);
+                    log.debug("HTTP/2 relay: pushed to {} of {} sessions, conversationId={}",
+                        pushed, localSessionIds.size(), conversationId);
+                } catch (Exception e) {
+                    log.error("HTTP/2 relay: failed to push, conversationId={}", conversationId, e);
+                }
             }
             
             return Map.of("success", true, "message", "Push processed successfully");
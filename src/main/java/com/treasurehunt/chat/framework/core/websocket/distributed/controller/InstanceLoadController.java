@@ -0,0 +1,36 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.controller;
+
+import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.InstanceLoadReporter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 实例负载查询控制器
+ *
+ * 客户端建连前可先请求 /server/load/recommend 获取推荐实例，避免一次被 503 拒绝的握手
+ * 集群负载快照包含各实例地址，不对外暴露（通过 chat.instance.scheduling.lag 等指标观测）
+ *
+ * 框架层组件，不依赖业务层
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@RestController
+@RequestMapping("/server/load")
+public class InstanceLoadController {
+
+    @Autowired
+    private InstanceLoadReporter loadReporter;
+
+    /**
+     * 返回推荐接入的实例地址
+     */
+    @GetMapping("/recommend")
+    public Map<String, Object> recommend() {
+        return Map.of("instance", loadReporter.recommendInstance());
+    }
+}
@@ -7,11 +7,15 @@ import org.springframework.core.task.TaskExecutor;
 import com.treasurehunt.chat.framework.core.websocket.distributed.spi.InstanceRegistry;
 
 import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
 import io.lettuce.core.XGroupCreateArgs;
 import io.lettuce.core.XReadArgs;
 import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.models.stream.PendingMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -22,10 +26,15 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -76,7 +85,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * -
  * 广播模式：每个实例使用独立的 group（=instanceId）实现“广播”。如果是当前实例需要处理的用户，则处理成功后 ACK；若本实例无目标用户，直接 ACK。
  * Redis Stream 不支持逐条 TTL，不做消息 TTL；保留策略依赖 XADD MAXLEN 近似裁剪或按 MINID 裁剪（详见 application.yaml 的 chat.stream.max-length）。
- * - 阻塞消费：类似 RocketMQ，有消息就处理，没消息就阻塞等待
+ * - 阻塞消费：类似 RocketMQ，有消息就处理，没消息就阻塞等待（每次阻塞有上限，便于停机时及时退出读循环）
+ * - 接管与重试：定期 XAUTOCLAIM 组内空闲超过 chat.stream.claim-min-idle-ms 的未 ACK 记录（上一任槽位持有者遗留的、
+ *   推送失败未 ACK 的）并重新处理；提示帧是"去拉取"通知，重复下发无副作用。接管时用 XPENDING 读投递次数，
+ *   超过 chat.stream.max-deliveries 的记录记日志后 ACK 放弃，避免永远失败的记录无限重投、PEL 无限增长；
+ *   解析失败的记录重试也不会成功，直接 ACK
  * - 独立确认：每个实例独立确认消息处理
  * - 消费位置：类似 RocketMQ 的 CONSUME_FROM_FIRST_UNCONSUMED，从第一个未消费的消息开始读取
  *
@@ -124,6 +137,18 @@ public class ChatStreamConsumer {
     @Value("${chat.stream.max-length:10000}")
     private long maxLength;
 
+    /** 单次 XREADGROUP 阻塞上限（毫秒），停机时读循环最多再等这么久 */
+    @Value("${chat.stream.block-ms:2000}")
+    private long blockMs;
+
+    /** 未 ACK 记录空闲超过该值（毫秒）才会被 XAUTOCLAIM 接管重试 */
+    @Value("${chat.stream.claim-min-idle-ms:30000}")
+    private long claimMinIdleMs;
+
+    /** 单条记录最多投递次数（首次读取 + XAUTOCLAIM 接管），超过后 ACK 放弃 */
+    @Value("${chat.stream.max-deliveries:5}")
+    private long maxDeliveries;
+
     // ===================== 运行时字段 =====================
     private String instanceId;
 
@@ -144,6 +169,10 @@ public class ChatStreamConsumer {
     private final AtomicBoolean running = new AtomicBoolean(true);
     private RedisAsyncCommands<String, String> async;
     private final ExecutorService workers = Executors.newFixedThreadPool(4);
+    /** 停止拉取与发起新一轮读取互斥，保证停止后不会再有新的 XREADGROUP */
+    private final Object readLock = new Object();
+    /** 当前一轮读取（含分发）完成的信号 */
+    private volatile CompletableFuture<Void> currentRead = CompletableFuture.completedFuture(null);
     // ===================== 生命周期 =====================
 
     // 初始化资源改为在应用就绪后执行，避免与 Nacos 实例ID获取的时序冲突
@@ -202,6 +231,8 @@ public class ChatStreamConsumer {
     public void onReady() {
         // 在应用完全就绪后再初始化资源与创建消费组，确保能够拿到稳定的实例ID
         init();
+        // 先接管组内遗留的未 ACK 记录（上一任槽位持有者停机/崩溃时留下的）
+        claimPending("0-0");
         startConsumingLoop();
     }
 
@@ -216,58 +247,199 @@ public class ChatStreamConsumer {
     }
     @SuppressWarnings("unchecked")
     private void startConsumingLoop() {
-        log.info("Starting Redis Stream consumer for group chat messages...");
-        if (!running.get()) return;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (readLock) {
+            if (!running.get()) return;
+            currentRead = done;
+        }
+        log.debug("Starting Redis Stream read for group chat messages...");
         // 广播模式：每个实例独立消费，不需要消费者组
         // 使用实例ID作为消费者名称，从第一个未消费的消息开始读取（类似 RocketMQ 的 CONSUME_FROM_FIRST_UNCONSUMED）
         // 使用异步方式读取，借助lettuce的netty的事件驱动，
         async.xreadgroup(
                 Consumer.from(instanceId, instanceId),
-                XReadArgs.Builder.block(Duration.ZERO).count(100),
+                XReadArgs.Builder.block(Duration.ofMillis(blockMs)).count(100),
                 XReadArgs.StreamOffset.lastConsumed(STREAM_KEY)// 等价于 ReadOffset.lastConsumed()
         ).whenComplete((msgs, ex) -> {
-            if (!running.get()) return;
             if (ex != null) {
+                done.complete(null);
+                if (!running.get()) return;
                 log.error("xreadgroup error, retry in 3s", ex);
                 CompletableFuture.delayedExecutor(3, TimeUnit.SECONDS).execute(this::startConsumingLoop);
                 return;
             }
+            // 已被 XREADGROUP 读出的记录已进入本消费者的 PEL，即使已停止拉取也必须分发处理，否则只能等接管
+            dispatch(msgs);
+            done.complete(null);
+            // 继续下一轮异步读取（无 while；由 Netty 事件驱动），已停止时在入口处退出
+            startConsumingLoop();
+        });
+    }
+
+    /**
+     * 把记录交给 workers 处理，处理成功后 ACK
+     */
+    private void dispatch(List<StreamMessage<String, String>> msgs) {
+        if (msgs == null || msgs.isEmpty()) {
+            return;
+        }
+        for (StreamMessage<String, String> m : msgs) {
+            try {
+                workers.execute(() -> handle(m));
+            } catch (RejectedExecutionException e) {
+                // workers 已关闭：记录留在 PEL，由 XAUTOCLAIM 接管
+                log.warn("Workers closed, record left in PEL for takeover: {}", m.getId());
+            }
+        }
+    }
+
+    private void handle(StreamMessage<String, String> m) {
+        try {
+            log.debug("消费端接收到消息,准备消费消息: {}", m.getId());
+            boolean shouldAck = processMessage(m);
+            if (shouldAck) {
+                // 确认消息（广播模式下每个实例独立确认）；等 ACK 落到 Redis，排空时 worker 结束即代表 ACK 已完成
+                async.xack(STREAM_KEY, instanceId, m.getId()).get(5, TimeUnit.SECONDS);
+                log.debug("Processed and acknowledged message: {}", m.getId());
+            } else {
+                // 没有成功不提交ack，空闲超过 claim-min-idle-ms 后由 XAUTOCLAIM 重试
+                log.debug("Message not ACKed, will retry: {}", m.getId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("ACK interrupted, record left in PEL: {}", m.getId());
+        } catch (Throwable t) {
+            log.error("process fail {}", m.getId(), t);
+            // 处理失败的不 ACK，会重试
+        }
+    }
+
+    /**
+     * 定期接管组内空闲过久的未 ACK 记录（本消费者推送失败的、上一任槽位持有者遗留的）
+     */
+    @Scheduled(fixedDelayString = "${chat.stream.claim-interval-ms:30000}",
+            initialDelayString = "${chat.stream.claim-interval-ms:30000}")
+    public void reclaimPending() {
+        claimPending("0-0");
+    }
+
+    private void claimPending(String startId) {
+        if (!running.get() || async == null || instanceId == null) {
+            return;
+        }
+        XAutoClaimArgs<String> args = XAutoClaimArgs.Builder
+                .xautoclaim(Consumer.from(instanceId, instanceId), Duration.ofMillis(claimMinIdleMs), startId)
+                .count(100);
+        async.xautoclaim(STREAM_KEY, args).whenComplete((claimed, ex) -> {
+            if (ex != null) {
+                log.warn("XAUTOCLAIM failed, will retry next round: group={}", instanceId, ex);
+                return;
+            }
+            if (!claimed.getMessages().isEmpty()) {
+                log.info("Claimed pending stream records: group={}, count={}", instanceId, claimed.getMessages().size());
+                dispatchClaimed(claimed.getMessages());
+            }
+            String next = claimed.getId();
+            if (next != null && !"0-0".equals(next)) {
+                claimPending(next);
+            }
+        });
+    }
+
 
-            if (msgs != null && !msgs.isEmpty()) {
-                for (StreamMessage<String, String> m : msgs) {
-                    workers.execute(() -> {
-                        try {
-                            log.debug("消费端接收到消息,准备消费消息: {}", m.getId());
-                            boolean shouldAck = processMessage(m);
-                            if (shouldAck) {
-                                // 确认消息（广播模式下每个实例独立确认）
-                                async.xack(STREAM_KEY, instanceId, m.getId());
-                                log.debug("Processed and acknowledged message: {}", m.getId());
-                            } else {
-                                // 没有成功不提交ack
-                                log.debug("Message not ACKed, will retry: {}", m.getId());
-                            }
-                        } catch (Throwable t) {
-                            log.error("process fail {}", m.getId(), t);
-                            // 处理失败的不 ACK，会重试
-                        }
-                    });
+    /**
+     * 按投递次数分发接管到的记录：超过 max-deliveries 的 ACK 放弃，其余重新处理
+     * XAUTOCLAIM 已把这些记录转到本消费者名下并把投递次数加 1，按 ID 区间查本消费者的 XPENDING 即可拿到次数
+     */
+    private void dispatchClaimed(List<StreamMessage<String, String>> claimed) {
+        String firstId = claimed.get(0).getId();
+        String lastId = claimed.get(claimed.size() - 1).getId();
+        // 区间内还可能有本消费者未空闲的记录，放宽 limit 以免挤掉接管到的记录
+        async.xpending(STREAM_KEY, Consumer.from(instanceId, instanceId),
+                Range.create(firstId, lastId), Limit.from(claimed.size() * 2L)).whenComplete((pending, ex) -> {
+            if (ex != null) {
+                // 查不到次数时照常重试，下一轮接管再判断
+                log.warn("XPENDING failed, retry claimed records without delivery check: group={}", instanceId, ex);
+                dispatch(claimed);
+                return;
+            }
+            Map<String, Long> deliveries = new HashMap<>(pending.size() * 2);
+            for (PendingMessage p : pending) {
+                deliveries.put(p.getId(), p.getRedeliveryCount());
+            }
+            List<StreamMessage<String, String>> retry = new ArrayList<>(claimed.size());
+            for (StreamMessage<String, String> m : claimed) {
+                Long count = deliveries.get(m.getId());
+                if (count != null && count > maxDeliveries) {
+                    giveUp(m, count);
+                } else {
+                    retry.add(m);
                 }
             }
-            // 继续下一轮异步读取（无 while；由 Netty 事件驱动）
-            startConsumingLoop();
+            dispatch(retry);
         });
     }
 
+    /**
+     * 放弃一条多次投递仍失败的记录：记录完整内容后 ACK，移出 PEL
+     */
+    private void giveUp(StreamMessage<String, String> m, long deliveries) {
+        log.error("Stream record exceeded max deliveries, ACK and drop: id={}, group={}, deliveries={}, body={}",
+                m.getId(), instanceId, deliveries, m.getBody());
+        async.xack(STREAM_KEY, instanceId, m.getId()).whenComplete((acked, ex) -> {
+            if (ex != null) {
+                log.warn("ACK of dropped record failed, will retry next round: {}", m.getId(), ex);
+            }
+        });
+    }
 
     // 停机
     public void shutdown() {
         log.info("关闭消费资源");
         running.set(false);
-        connection.close();        // 让挂起的命令快速失败退出
+        if (connection != null) {
+            connection.close();        // 让挂起的命令快速失败退出
+        }
         workers.shutdown();
     }
 
+    /**
+     * 停止拉取新记录（在途的一轮读取读出的记录与已分发给 workers 的记录继续处理）
+     */
+    public void stopPolling() {
+        synchronized (readLock) {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 排空：停止拉取新记录，等在途的一轮读取返回并分发，再等 workers 处理完（含 ACK）后关闭连接
+     * 超时未完成的记录不 ACK，留在 PEL 中，由下一任槽位持有者启动时（及之后定期）XAUTOCLAIM 接手
+     *
+     * @param timeoutMs 最长等待时间（毫秒）
+     * @return 是否在超时前全部处理完
+     */
+    public boolean drain(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        stopPolling();
+        boolean finished = false;
+        try {
+            // 在途读取最多阻塞 block-ms；之后不会再有新的读取
+            currentRead.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            workers.shutdown();
+            finished = workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("等待在途 Stream 读取失败", e);
+        }
+        if (!finished) {
+            log.warn("Stream 消费排空超时，未完成的记录保留在 PEL: timeoutMs={}", timeoutMs);
+        }
+        shutdown();
+        return finished;
+    }
+
     @PreDestroy
     public void onDestroy() {
         shutdown();
@@ -279,10 +451,16 @@ public class ChatStreamConsumer {
      * @return true 如果应该ACK，false 如果不应该ACK
      */
     private boolean processMessage(StreamMessage<String, String> record) {
+        NotificationMessage message;
         try {
             // 解析消息
-            NotificationMessage message = parseMessage(record);
-
+            message = parseMessage(record);
+        } catch (RuntimeException e) {
+            // 格式错误的记录重试也不会成功，直接 ACK 丢弃（parseMessage 已记录原因）
+            log.error("Unparseable stream record, ACK and drop: id={}, body={}", record.getId(), record.getBody());
+            return true;
+        }
+        try {
             // 只处理本服务的消息
             if (!applicationName.equals(message.getServiceType())) {
                 return true; // 不是本服务消息，直接ACK
@@ -299,25 +477,27 @@ public class ChatStreamConsumer {
             boolean allPushSuccess = true;
 
             if (targetUserIds != null) {
+                // 收集全部目标会话后一次 fan-out：同一提示帧只序列化一次，所有会话共享
+                List<String> localSessionIds = new ArrayList<>();
                 for (String userId : targetUserIds) {
                     Set<String> sessionIds = userSessionMetadataManager.getSessionIdsByUserId(userId);
                     if (sessionIds != null && !sessionIds.isEmpty()) {
-                        hasLocalUsers = true;
-                        // 推送给客户端
-                        for (String sessionId : sessionIds) {
-                            try {
-                                notifyPushSender.sendNotifyPullLocal(
-                                        sessionId,
-                                        message.getConversationId(),
-                                        message.getServerMsgId());
-                                log.debug("Pushed message to local user: userId={}, sessionId={}, conversationId={}",
-                                        userId, sessionId, message.getConversationId());
-                            } catch (Exception e) {
-                                log.error("Failed to push message to user: userId={}, sessionId={}", userId, sessionId,
-                                        e);
-                                allPushSuccess = false;
-                            }
-                        }
+                        localSessionIds.addAll(sessionIds);
+                    }
+                }
+                if (!localSessionIds.isEmpty()) {
+                    hasLocalUsers = true;
+                    try {
+                        int pushed = notifyPushSender.fanOutNotifyPullLocal(
+                                localSessionIds,
+                                message.getConversationId(),
+                                message.getServerMsgId());
+                        log.debug("Pushed message to local sessions: sessions={}, pushed={}, conversationId={}",
+                                localSessionIds.size(), pushed, message.getConversationId());
+                    } catch (Exception e) {
+                        log.error("Failed to push message to local sessions: conversationId={}",
+                                message.getConversationId(), e);
+                        allPushSuccess = false;
                     }
                 }
             }
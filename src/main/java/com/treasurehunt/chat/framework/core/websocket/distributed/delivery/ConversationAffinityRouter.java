@@ -0,0 +1,157 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
+
+import com.treasurehunt.chat.framework.core.websocket.distributed.spi.InstanceRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 会话亲和路由（一致性哈希）
+ *
+ * 以会话ID或店铺ID为 key，在注册中心的活跃实例上做一致性哈希，得到该会话的"首选实例"。
+ * 握手时把首选实例告知客户端，客户端（或网关）据此重连，使同一会话的客户与客服尽量落在同一实例，
+ * 单聊推送即可本机直达，无需经过 ServerCommProtocolManager 跨实例转发。
+ *
+ * 成员变化时只有少量 key 迁移（虚拟节点保证分布均匀）。
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class ConversationAffinityRouter {
+
+    @Autowired(required = false)
+    private InstanceRegistry instanceRegistry;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.instance.ip}")
+    private String instanceIp;
+
+    /**
+     * 与 DistributedWebSocketAspect 写入 user:instance、ChatStreamConsumer / GracefulDrainLifecycle 标识实例的口径一致，
+     * 统一使用 server.port（websocket.instance.port 只用于 Nacos 实例匹配与 S2S 连接）
+     */
+    @Value("${server.port}")
+    private String serverPort;
+
+    /** 每个实例的虚拟节点数 */
+    @Value("${websocket.affinity.virtual-nodes:160}")
+    private int virtualNodes;
+
+    private volatile Set<String> ringMembers = Set.of();
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+
+    private Counter localDeliveryCounter;
+    private Counter remoteDeliveryCounter;
+
+    @PostConstruct
+    public void init() {
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        localDeliveryCounter = Counter.builder("chat.delivery.single")
+                .tag("target", "local")
+                .description("单聊推送目标在本实例的次数")
+                .register(registry);
+        remoteDeliveryCounter = Counter.builder("chat.delivery.single")
+                .tag("target", "remote")
+                .description("单聊推送需要跨实例转发的次数")
+                .register(registry);
+        Gauge.builder("chat.delivery.local.ratio", this, ConversationAffinityRouter::localDeliveryRatio)
+                .description("单聊推送本机直达比例")
+                .register(registry);
+    }
+
+    /**
+     * 当前实例地址 (IP:Port)，与 user:instance 中记录的实例地址口径一致（server.port）
+     */
+    public String getSelfAddress() {
+        return instanceIp + ":" + serverPort;
+    }
+
+    public boolean isSelf(String instanceAddress) {
+        return getSelfAddress().equals(instanceAddress);
+    }
+
+    /**
+     * 计算亲和 key 的首选实例
+     *
+     * @param affinityKey 会话ID或店铺ID
+     * @return 首选实例地址；成员列表不可用时返回当前实例
+     */
+    public String preferredInstance(String affinityKey) {
+        if (affinityKey == null || affinityKey.isEmpty()) {
+            return getSelfAddress();
+        }
+        TreeMap<Long, String> current = currentRing();
+        if (current.isEmpty()) {
+            return getSelfAddress();
+        }
+        SortedMap<Long, String> tail = current.tailMap(hash(affinityKey));
+        return tail.isEmpty() ? current.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    public void recordLocalDelivery() {
+        localDeliveryCounter.increment();
+    }
+
+    public void recordRemoteDelivery() {
+        remoteDeliveryCounter.increment();
+    }
+
+    private double localDeliveryRatio() {
+        double local = localDeliveryCounter.count();
+        double total = local + remoteDeliveryCounter.count();
+        return total == 0 ? 0 : local / total;
+    }
+
+    /**
+     * 成员集合变化时重建哈希环（读多写少，整体替换引用）
+     */
+    private TreeMap<Long, String> currentRing() {
+        Set<String> members = instanceRegistry != null ? instanceRegistry.getActiveInstanceAddresses() : Set.of();
+        if (members == null || members.isEmpty()) {
+            members = Set.of(getSelfAddress());
+        }
+        if (!members.equals(ringMembers)) {
+            synchronized (this) {
+                if (!members.equals(ringMembers)) {
+                    TreeMap<Long, String> rebuilt = new TreeMap<>();
+                    for (String member : members) {
+                        for (int i = 0; i < virtualNodes; i++) {
+                            rebuilt.put(hash(member + "#" + i), member);
+                        }
+                    }
+                    ring = rebuilt;
+                    ringMembers = Set.copyOf(members);
+                    log.info("Affinity ring rebuilt: members={}, virtualNodes={}", members, virtualNodes);
+                }
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希（分布均匀、无需额外依赖）
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,192 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
+
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.OutboundQueueManager;
+import com.treasurehunt.chat.vo.WebSocketUserInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 优雅停机排空（SmartLifecycle）
+ *
+ * 停机顺序（在 Web 容器优雅关闭之前执行，phase 取最大值）：
+ * 1. 标记排空：此后心跳/注册不再写入本实例的在线元数据
+ * 2. 停止拉取 Stream，在途读取读出的与已分发的记录继续处理
+ * 3. 清理本实例的 user:instance / user:sessions，新消息不再路由到这里
+ * 4. 向本机会话下发 /reconnect 控制帧（带随机抖动的重连延迟），避免客户端同时重连
+ * 5. 分批关闭会话（CloseStatus.SERVICE_RESTARTED），每批之间间隔固定时长
+ * 6. 等待在途 Stream 记录处理完毕（超时后未 ACK 的记录留在 PEL，由下一任槽位持有者 XAUTOCLAIM 接手）
+ * 7. 释放 SlotManager 租约：在途记录处理完才释放，避免新持有者与本实例同时处理同一批记录
+ *
+ * 整个过程受 websocket.drain.timeout-ms 约束，应小于 spring.lifecycle.timeout-per-shutdown-phase
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class GracefulDrainLifecycle implements SmartLifecycle {
+
+    @Autowired
+    private UserSessionMetadataManager userSessionMetadataManager;
+
+    @Autowired
+    private NotifyPushSender notifyPushSender;
+
+    @Autowired
+    private SlotManager slotManager;
+
+    @Autowired
+    private ChatStreamConsumer chatStreamConsumer;
+
+    @Autowired
+    private OutboundQueueManager outboundQueueManager;
+
+    @Value("${websocket.instance.ip}")
+    private String configuredInstanceIp;
+
+    @Value("${server.port}")
+    private String serverPort;
+
+    /** 是否启用排空 */
+    @Value("${websocket.drain.enabled:true}")
+    private boolean enabled;
+
+    /** 每批关闭的会话数 */
+    @Value("${websocket.drain.wave-size:200}")
+    private int waveSize;
+
+    /** 批次间隔（毫秒） */
+    @Value("${websocket.drain.wave-interval-ms:200}")
+    private long waveIntervalMs;
+
+    /** 重连延迟抖动上限（毫秒），客户端在 [0, max) 内随机延迟后重连 */
+    @Value("${websocket.drain.reconnect-jitter-max-ms:5000}")
+    private long reconnectJitterMaxMs;
+
+    /** 排空总超时（毫秒） */
+    @Value("${websocket.drain.timeout-ms:20000}")
+    private long timeoutMs;
+
+    private volatile boolean running = false;
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        drain();
+        running = false;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        try {
+            stop();
+        } finally {
+            callback.run();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 最先停止：保证在 Web 容器优雅关闭（拒绝新请求）之前完成会话迁移
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE;
+    }
+
+    private void drain() {
+        if (!enabled) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        String instanceAddress = configuredInstanceIp + ":" + serverPort;
+        log.info("开始优雅排空: instance={}, timeoutMs={}", instanceAddress, timeoutMs);
+
+        // 1. 标记排空
+        userSessionMetadataManager.markDraining();
+
+        // 2. 停止拉取 Stream（槽位租约在在途记录处理完后再释放）
+        chatStreamConsumer.stopPolling();
+
+        // 3. 清理在线元数据并下发重连帧
+        List<WebSocketSession> sessions = new ArrayList<>(userSessionMetadataManager.getLocalSessions());
+        int notified = 0;
+        for (WebSocketSession session : sessions) {
+            String userId = extractUserId(session);
+            if (userId != null) {
+                userSessionMetadataManager.clearUserPresence(userId, session.getId(), instanceAddress);
+            }
+            long delay = reconnectJitterMaxMs > 0 ? ThreadLocalRandom.current().nextLong(reconnectJitterMaxMs) : 0;
+            if (notifyPushSender.sendReconnect(session, delay, "SERVER_DRAINING")) {
+                notified++;
+            }
+        }
+        log.info("在线元数据已清理，重连帧已下发: sessions={}, notified={}", sessions.size(), notified);
+
+        // 4. 分批关闭会话（已分发的 Stream 记录同时继续处理）
+        int closed = 0;
+        int batch = Math.max(1, waveSize);
+        for (int i = 0; i < sessions.size(); i += batch) {
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("排空超时，剩余会话交由容器关闭: remaining={}", sessions.size() - i);
+                break;
+            }
+            int end = Math.min(sessions.size(), i + batch);
+            for (WebSocketSession session : sessions.subList(i, end)) {
+                try {
+                    if (session.isOpen()) {
+                        // 经由出站队列关闭，保证重连帧先于关闭帧发出
+                        outboundQueueManager.closeAfterFlush(session, CloseStatus.SERVICE_RESTARTED);
+                        closed++;
+                    }
+                } catch (Exception e) {
+                    log.debug("关闭会话失败: sessionId={}", session.getId(), e);
+                }
+            }
+            if (end < sessions.size()) {
+                sleepQuietly(waveIntervalMs);
+            }
+        }
+
+        // 5. 等待在途 Stream 记录处理完毕
+        boolean streamDrained = chatStreamConsumer.drain(Math.max(0, deadline - System.currentTimeMillis()));
+
+        // 6. 释放槽位租约，新实例可以立即接管
+        slotManager.releaseSlot();
+        log.info("优雅排空完成: closed={}, streamDrained={}", closed, streamDrained);
+    }
+
+    private String extractUserId(WebSocketSession session) {
+        Object userInfoObj = session.getAttributes().get("userInfo");
+        if (userInfoObj instanceof WebSocketUserInfo) {
+            return ((WebSocketUserInfo) userInfoObj).getUserId();
+        }
+        Object userId = session.getAttributes().get("userId");
+        return userId != null ? userId.toString() : null;
+    }
+
+    private void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
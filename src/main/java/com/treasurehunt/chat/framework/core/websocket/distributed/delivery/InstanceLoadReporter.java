@@ -0,0 +1,290 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
+
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.OutboundQueueManager;
+import com.treasurehunt.chat.framework.core.websocket.distributed.spi.InstanceRegistry;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 实例负载上报与负载感知重定向
+ *
+ * - 每个实例定期把 连接数 / 调度延迟 / 出站队列深度 写入 Redis Hash：chat:instance:load:<service>（field = IP:Port）
+ * - 同一次定时任务顺带拉取全量快照缓存在本地，握手时只读本地快照，不额外访问 Redis
+ * - 本实例连接数高于水位（绝对下限与集群均值 × 系数取大）时，在水位以下的同伴实例中按"二选一"
+ *   （随机取两个，选负载低的）给出重定向提示：快照在一个上报周期内不变，总选最低的那个会让所有被重定向的客户端
+ *   在周期内涌向同一实例
+ *
+ * 调度延迟：Servlet 容器没有事件循环，这里用独立线程以固定间隔自测调度漂移，
+ * 漂移升高说明 CPU 饱和或 GC 停顿，与事件循环延迟的含义一致
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class InstanceLoadReporter {
+
+    @Autowired
+    private StatefulRedisConnection<String, String> redisConnection;
+
+    @Autowired
+    private UserSessionMetadataManager userSessionMetadataManager;
+
+    @Autowired
+    private OutboundQueueManager outboundQueueManager;
+
+    @Autowired
+    private ConversationAffinityRouter affinityRouter;
+
+    @Autowired(required = false)
+    private InstanceRegistry instanceRegistry;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Value("${spring.application.name}")
+    private String serviceName;
+
+    /** 上报间隔（毫秒） */
+    @Value("${websocket.load.report-interval-ms:5000}")
+    private long reportIntervalMs;
+
+    /** 连接数低于该值时不做重定向 */
+    @Value("${websocket.load.min-connections:200}")
+    private int minConnections;
+
+    /** 超过集群平均连接数的倍数后开始重定向 */
+    @Value("${websocket.load.watermark-factor:1.2}")
+    private double watermarkFactor;
+
+    /** 调度延迟超过该值（毫秒）视为过载，同样触发重定向 */
+    @Value("${websocket.load.lag-watermark-ms:200}")
+    private long lagWatermarkMs;
+
+    /** 超过水位时是否拒绝新握手（false 仅在响应头中给出重定向提示，当前实例照常接入） */
+    @Value("${websocket.load.redirect-enforce:false}")
+    private boolean redirectEnforce;
+
+    private static final long PROBE_INTERVAL_MS = 100;
+
+    private final ScheduledExecutorService lagProbe = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ws-load-lag-probe");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong windowMaxLagMs = new AtomicLong();
+    private volatile long lastLagMs = 0;
+    private volatile long lastProbeNanos = System.nanoTime();
+
+    private volatile List<InstanceLoad> snapshot = Collections.emptyList();
+
+    @PostConstruct
+    public void init() {
+        lagProbe.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            long lag = Math.max(0, (now - lastProbeNanos) / 1_000_000 - PROBE_INTERVAL_MS);
+            lastProbeNanos = now;
+            windowMaxLagMs.accumulateAndGet(lag, Math::max);
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        Gauge.builder("chat.instance.scheduling.lag", this, r -> r.lastLagMs)
+                .description("调度延迟（上一个上报窗口内的最大值，毫秒）")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        lagProbe.shutdownNow();
+    }
+
+    /**
+     * 上报本实例负载并刷新集群快照
+     */
+    @Scheduled(fixedDelayString = "${websocket.load.report-interval-ms:5000}")
+    public void report() {
+        lastLagMs = windowMaxLagMs.getAndSet(0);
+        if (userSessionMetadataManager.isDraining()) {
+            // 排空中不再接收新连接，直接移除自身负载信息
+            try {
+                redisConnection.sync().hdel(key(), affinityRouter.getSelfAddress());
+            } catch (Exception ignore) {}
+            return;
+        }
+        InstanceLoad self = new InstanceLoad(affinityRouter.getSelfAddress(),
+                userSessionMetadataManager.getLocalSessions().size(),
+                lastLagMs,
+                outboundQueueManager.getTotalDepth(),
+                System.currentTimeMillis());
+        try {
+            redisConnection.sync().hset(key(), self.getAddress(), self.encode());
+            redisConnection.sync().expire(key(), Math.max(60, reportIntervalMs * 6 / 1000));
+            snapshot = readSnapshot();
+        } catch (Exception e) {
+            log.warn("Instance load report failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 计算重定向目标：本实例超过水位时，在水位以下且负载低于本实例的同伴中二选一返回，否则返回 null
+     */
+    public String redirectTarget() {
+        List<InstanceLoad> loads = snapshot;
+        if (loads.size() < 2) {
+            return null;
+        }
+        String selfAddress = affinityRouter.getSelfAddress();
+        boolean selfReported = false;
+        long total = 0;
+        for (InstanceLoad load : loads) {
+            total += load.getConnections();
+            if (load.getAddress().equals(selfAddress)) {
+                selfReported = true;
+            }
+        }
+        if (!selfReported) {
+            return null;
+        }
+        int currentConnections = userSessionMetadataManager.getLocalSessions().size();
+        double watermark = Math.max(minConnections, (double) total / loads.size() * watermarkFactor);
+        boolean overloaded = currentConnections > watermark || lastLagMs >= lagWatermarkMs;
+        if (!overloaded) {
+            return null;
+        }
+        List<InstanceLoad> candidates = new ArrayList<>(loads.size());
+        for (InstanceLoad load : loads) {
+            if (!load.getAddress().equals(selfAddress) && load.getLagMs() < lagWatermarkMs
+                    && load.getConnections() <= watermark && load.getConnections() < currentConnections) {
+                candidates.add(load);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0).getAddress();
+        }
+        // 二选一：随机取两个不同的候选，返回负载低的
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(candidates.size());
+        int j = random.nextInt(candidates.size() - 1);
+        if (j >= i) {
+            j++;
+        }
+        InstanceLoad first = candidates.get(i);
+        InstanceLoad second = candidates.get(j);
+        return (second.score() < first.score() ? second : first).getAddress();
+    }
+
+    /**
+     * 推荐接入的实例：过载时为 redirectTarget() 二选一选出的同伴（随机两个合格候选中负载较低者，不是全局最低），否则为当前实例
+     */
+    public String recommendInstance() {
+        String target = redirectTarget();
+        return target != null ? target : affinityRouter.getSelfAddress();
+    }
+
+    public boolean isRedirectEnforce() {
+        return redirectEnforce;
+    }
+
+    private List<InstanceLoad> readSnapshot() {
+        Map<String, String> all = redisConnection.sync().hgetall(key());
+        Set<String> active = instanceRegistry != null ? instanceRegistry.getActiveInstanceAddresses() : Collections.emptySet();
+        long staleBefore = System.currentTimeMillis() - reportIntervalMs * 3;
+        List<InstanceLoad> loads = new ArrayList<>(all.size());
+        for (Map.Entry<String, String> e : all.entrySet()) {
+            InstanceLoad load = InstanceLoad.decode(e.getKey(), e.getValue());
+            if (load == null || load.getTimestamp() < staleBefore) {
+                continue;
+            }
+            if (!active.isEmpty() && !active.contains(load.getAddress())) {
+                continue;
+            }
+            loads.add(load);
+        }
+        return Collections.unmodifiableList(loads);
+    }
+
+    private String key() {
+        return "chat:instance:load:" + serviceName;
+    }
+
+    /**
+     * 单个实例的负载快照（Hash 值格式：connections|lagMs|queueDepth|timestamp）
+     */
+    public static class InstanceLoad {
+        private final String address;
+        private final int connections;
+        private final long lagMs;
+        private final int queueDepth;
+        private final long timestamp;
+
+        public InstanceLoad(String address, int connections, long lagMs, int queueDepth, long timestamp) {
+            this.address = address;
+            this.connections = connections;
+            this.lagMs = lagMs;
+            this.queueDepth = queueDepth;
+            this.timestamp = timestamp;
+        }
+
+        String encode() {
+            return connections + "|" + lagMs + "|" + queueDepth + "|" + timestamp;
+        }
+
+        static InstanceLoad decode(String address, String value) {
+            try {
+                String[] parts = value.split("\\|");
+                return new InstanceLoad(address, Integer.parseInt(parts[0]), Long.parseLong(parts[1]),
+                        Integer.parseInt(parts[2]), Long.parseLong(parts[3]));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        /** 排序分数：连接数为主，出站积压作为次要因素 */
+        long score() {
+            return connections + queueDepth / 10L;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public long getLagMs() {
+            return lagMs;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
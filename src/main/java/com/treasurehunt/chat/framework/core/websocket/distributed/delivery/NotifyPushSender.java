@@ -1,18 +1,30 @@
 package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.OutboundQueueManager;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * NotifyPushSender：将标准的 notifyPull 响应包，推送给本地 WebSocket 会话。
  * 仅处理本机直推场景；跨实例由对端实例的收件箱消费者负责转发。
+ * 发送经由会话出站队列：调用线程只入队，合并窗口（websocket.outbound.notify-coalesce-ms）内
+ * 同一会话收到的提示合并为一帧，每个 conversation 只保留最大 serverMsgId。
+ * 同一条提示发给多个会话（群聊、多端登录）时走 {@link #fanOutNotifyPullLocal}：帧按编码格式只序列化一次，
+ * 所有会话共享同一个不可变帧实例；帧内没有按接收者区分的字段。
  */
 @Component
 @Slf4j
@@ -21,26 +33,132 @@ public class NotifyPushSender {
 	@Autowired
 	private UserSessionMetadataManager userSessionMetadataManager;
 
-	private final ObjectMapper objectMapper = new ObjectMapper();
+	@Autowired
+	private OutboundQueueManager outboundQueueManager;
 
 	public void sendNotifyPullLocal(String sessionId, String conversationId, long serverMsgId) {
 		WebSocketSession session = userSessionMetadataManager.getLocalSession(sessionId);
 		if (session == null || !session.isOpen()) return;
+		WsFrameFormat format = WsFrameFormat.of(session);
+		outboundQueueManager.sendHint(session, conversationId, serverMsgId, hints -> buildNotifyPull(hints, format));
+	}
+
+	/**
+	 * 同一条提示推送给多个本地会话
+	 * 单提示帧按编码格式各只序列化一次（首个用到该格式的会话触发），各会话出站队列入队的是同一个帧实例；
+	 * 只有合并窗口内某会话还收到了其它提示时，才为该会话单独编码合并帧。
+	 * CPU 开销随会话数线性增长的只剩入队，不再是 会话数 × 序列化
+	 *
+	 * @param sessionIds 本机会话ID
+	 * @return 成功入队的会话数（不在本机、已关闭或队列拒绝的不计）
+	 */
+	public int fanOutNotifyPullLocal(Collection<String> sessionIds, String conversationId, long serverMsgId) {
+		if (sessionIds == null || sessionIds.isEmpty()) return 0;
+		SharedHintFrame shared = new SharedHintFrame(conversationId, serverMsgId);
+		int accepted = 0;
+		for (String sessionId : sessionIds) {
+			WebSocketSession session = userSessionMetadataManager.getLocalSession(sessionId);
+			if (session == null || !session.isOpen()) continue;
+			WsFrameFormat format = WsFrameFormat.of(session);
+			boolean queued = outboundQueueManager.sendHint(session, conversationId, serverMsgId,
+					hints -> shared.matches(hints) ? shared.frame(format) : buildNotifyPull(hints, format));
+			if (queued) accepted++;
+		}
+		return accepted;
+	}
+
+	/**
+	 * 合并窗口内的提示编码为一帧：顶层字段保持单会话格式（取首个会话），
+	 * 多个会话时额外携带 conversations 列表，每项为该会话的最大 serverMsgId；按会话协商的子协议编码
+	 */
+	private static WebSocketMessage<?> buildNotifyPull(Map<String, Long> hints, WsFrameFormat format) throws Exception {
+		Map.Entry<String, Long> first = hints.entrySet().iterator().next();
+		Map<String, Object> env = new HashMap<>();
+		env.put("interfaceName", "/notifyPull");
+		env.put("version", 1);
+		env.put("success", true);
+		env.put("errorMessage", null);
+		Map<String, Object> payload = new HashMap<>();
+		payload.put("conversationId", first.getKey());
+		payload.put("timestamp", System.currentTimeMillis());
+		payload.put("serverMsgId", first.getValue());
+		payload.put("status", "PENDING");
+		if (hints.size() > 1) {
+			List<Map<String, Object>> conversations = new ArrayList<>(hints.size());
+			for (Map.Entry<String, Long> e : hints.entrySet()) {
+				Map<String, Object> item = new HashMap<>();
+				item.put("conversationId", e.getKey());
+				item.put("serverMsgId", e.getValue());
+				conversations.add(item);
+			}
+			payload.put("conversations", conversations);
+		}
+		env.put("payload", payload);
+		return WsMessageCodec.encode(env, format);
+	}
+
+	/**
+	 * 一次 fan-out 共享的单提示帧，每种编码格式懒编码一次
+	 * 文本帧实例不可变（UTF-8 字节随实例缓存），可同时排在多个会话的出站队列中；
+	 * 二进制帧只共享底层字节数组
+	 */
+	private static final class SharedHintFrame {
+
+		private final String conversationId;
+		private final long serverMsgId;
+		private final Map<String, Long> hints;
+		private final Map<WsFrameFormat, WebSocketMessage<?>> frames = new EnumMap<>(WsFrameFormat.class);
+
+		private SharedHintFrame(String conversationId, long serverMsgId) {
+			this.conversationId = conversationId;
+			this.serverMsgId = serverMsgId;
+			this.hints = Collections.singletonMap(conversationId, serverMsgId);
+		}
+
+		/**
+		 * 会话合并后的提示恰好只有本条时才能复用共享帧
+		 */
+		private boolean matches(Map<String, Long> sessionHints) {
+			if (sessionHints.size() != 1) return false;
+			Long msgId = sessionHints.get(conversationId);
+			return msgId != null && msgId == serverMsgId;
+		}
+
+		private synchronized WebSocketMessage<?> frame(WsFrameFormat format) throws Exception {
+			WebSocketMessage<?> frame = frames.get(format);
+			if (frame == null) {
+				frame = buildNotifyPull(hints, format);
+				frames.put(format, frame);
+			}
+			if (frame instanceof BinaryMessage) {
+				// ByteBuffer 的读位置在发送时会前移：每个会话拿一个共享底层字节的独立视图
+				return new BinaryMessage(((BinaryMessage) frame).getPayload().duplicate(), true);
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * 下发重连控制帧：客户端收到后在 reconnectDelayMs 之后重连（由负载均衡分配到其他实例）
+	 */
+	public boolean sendReconnect(WebSocketSession session, long reconnectDelayMs, String reason) {
+		if (session == null || !session.isOpen()) return false;
 		try {
 			Map<String, Object> env = new HashMap<>();
-			env.put("interfaceName", "/notifyPull");
+			env.put("interfaceName", "/reconnect");
 			env.put("version", 1);
 			env.put("success", true);
 			env.put("errorMessage", null);
 			Map<String, Object> payload = new HashMap<>();
-			payload.put("conversationId", conversationId);
+			payload.put("reason", reason);
+			payload.put("reconnectDelayMs", reconnectDelayMs);
 			payload.put("timestamp", System.currentTimeMillis());
-			payload.put("serverMsgId", serverMsgId);
-			payload.put("status", "PENDING");
 			env.put("payload", payload);
-			String json = objectMapper.writeValueAsString(env);
-			session.sendMessage(new TextMessage(json));
-		} catch (Exception ignored) { }
+			return outboundQueueManager.send(session, WsMessageCodec.encode(env, session));
+		} catch (Exception e) {
+			log.debug("send reconnect frame failed: sessionId={}", session.getId(), e);
+			return false;
+		}
 	}
 }
 
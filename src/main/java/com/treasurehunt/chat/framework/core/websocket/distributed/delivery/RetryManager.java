@@ -1,6 +1,7 @@
 package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
 
 import com.treasurehunt.chat.framework.core.websocket.distributed.spi.ServerCommProtocolManager;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
@@ -299,8 +300,7 @@ public class RetryManager {
 			String configJson = nacosConfigService.getConfig("websocket-distributed-notification-retry-config", "DEFAULT_GROUP", 5000);
 			if (configJson != null && !configJson.isEmpty()) {
 				// 解析 JSON 配置
-				com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
-				return mapper.readValue(configJson, RetryConfig.class);
+				return WsMessageCodec.readValue(configJson, RetryConfig.class);
 			}
 		} catch (Exception e) {
 			log.warn("Failed to get retry config from Nacos, using default", e);
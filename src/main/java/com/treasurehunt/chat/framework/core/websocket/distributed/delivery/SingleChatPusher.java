@@ -29,6 +29,12 @@ public class SingleChatPusher {
     @Autowired
     private RetryManager retryManager;
 
+    @Autowired
+    private ConversationAffinityRouter affinityRouter;
+
+    @Autowired
+    private NotifyPushSender notifyPushSender;
+
     // 配置参数
     @Value("${spring.application.name}")
     private String applicationName;
@@ -56,7 +62,22 @@ public class SingleChatPusher {
                 return;
             }
 
-            // 2. 创建推送消息
+            // 2. 目标就在本实例：直接入本机会话出站队列，不走 RetryManager 与跨实例通信
+            if (affinityRouter.isSelf(targetInstanceAddress)) {
+                Set<String> sessionIds = userSessionMetadataManager.getSessionIdsByUserId(targetUserId);
+                if (sessionIds != null && !sessionIds.isEmpty()) {
+                    // 多端登录时同一提示帧只序列化一次
+                    notifyPushSender.fanOutNotifyPullLocal(sessionIds, conversationId, serverMsgId);
+                    affinityRouter.recordLocalDelivery();
+                    log.debug("Single chat message delivered locally: conversationId={}, serverMsgId={}, targetUserId={}",
+                            conversationId, serverMsgId, targetUserId);
+                    return;
+                }
+                // 元数据指向本机但本机已无会话（刚断开/漂移中），交给重试机制按最新地址投递
+            }
+            affinityRouter.recordRemoteDelivery();
+
+            // 3. 创建推送消息
             NotificationMessage message = new NotificationMessage(
                     applicationName, //使用Spring应用名作为服务类型
                     conversationId,
@@ -65,7 +86,7 @@ public class SingleChatPusher {
                     Set.of(targetUserId) // 目标用户列表
             );
 
-            // 3. 使用重试机制推送
+            // 4. 使用重试机制推送
             retryManager.executeWithRetry(targetUserId, message, targetInstanceAddress);
 
             log.debug("Single chat message pushed: conversationId={}, serverMsgId={}, senderId={}, targetUserId={}",
@@ -52,6 +52,10 @@ public class SlotManager {
     private StatefulRedisConnection<String, String> connection;
     private RedisCommands<String, String> sync;
 
+    /** 仅当租约仍归自己时才删除（释放槽位用） */
+    private static final String LUA_RELEASE_IF_OWNER =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) else return 0 end";
+
     private volatile Integer heldSlotId;
     private volatile String currentOwnerId;
 
@@ -156,6 +160,25 @@ public class SlotManager {
         }
     }
 
+    /**
+     * 主动释放槽位（优雅停机时调用）
+     * 仅当租约仍归当前 owner 时才删除，避免误删已被他人接管的租约；释放后不发布 SlotLeaseLostEvent
+     */
+    public void releaseSlot() {
+        Integer slot = heldSlotId;
+        String owner = currentOwnerId;
+        heldSlotId = null;
+        currentOwnerId = null;
+        if (sync == null || slot == null || owner == null) return;
+        try {
+            Long deleted = sync.eval(LUA_RELEASE_IF_OWNER, io.lettuce.core.ScriptOutputType.INTEGER,
+                    new String[]{keyLease(slot)}, owner);
+            log.info("Slot released: service={}, slot={}, owner={}, deleted={}", serviceName, slot, owner, deleted);
+        } catch (Exception e) {
+            log.warn("Slot release failed, lease will expire in {}s: service={}, slot={}", leaseSeconds, serviceName, slot, e);
+        }
+    }
+
     private void renewLease(String ownerId) {
         if (sync == null || heldSlotId == null) return;
         try {
@@ -0,0 +1,200 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.support.caching.CacheAccessor;
+import io.lettuce.core.support.caching.CacheFrontend;
+import io.lettuce.core.support.caching.ClientSideCaching;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * user:instance 近端缓存（Redis 服务端辅助的客户端缓存）
+ *
+ * - 正常模式：独立连接开启 CLIENT TRACKING（RESP3），键被任何客户端修改/过期时 Redis 推送失效消息，本地立即剔除；
+ *   本地条目仍带一个较长的安全 TTL，兜底连接重连期间可能漏掉的失效消息
+ * - 降级模式：服务端不支持 tracking（RESP2 / Redis < 6）时，改为普通 GET + 本地短 TTL
+ * - 只缓存在线用户（值非空），离线用户每次都回源，保证上线后立刻可见
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class UserInstanceNearCache {
+
+    @Autowired
+    private RedisClient redisClient;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    /** 是否启用近端缓存 */
+    @Value("${websocket.near-cache.enabled:true}")
+    private boolean enabled;
+
+    /** tracking 模式下的安全 TTL（毫秒） */
+    @Value("${websocket.near-cache.tracking-ttl-ms:60000}")
+    private long trackingTtlMs;
+
+    /** 降级模式下的本地 TTL（毫秒） */
+    @Value("${websocket.near-cache.fallback-ttl-ms:2000}")
+    private long fallbackTtlMs;
+
+    /** 最大缓存条目数，超过后整体清空（在线用户规模下足够，避免引入额外的 LRU 依赖） */
+    @Value("${websocket.near-cache.max-entries:100000}")
+    private int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private StatefulRedisConnection<String, String> connection;
+    private CacheFrontend<String, String> frontend;
+    private volatile boolean tracking = false;
+
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Counter invalidationCounter;
+
+    @PostConstruct
+    public void init() {
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        hitCounter = Counter.builder("chat.presence.nearcache.hits").register(registry);
+        missCounter = Counter.builder("chat.presence.nearcache.misses").register(registry);
+        invalidationCounter = Counter.builder("chat.presence.nearcache.invalidations")
+                .description("收到的 Redis 失效消息数")
+                .register(registry);
+        Gauge.builder("chat.presence.nearcache.hit.ratio", this, UserInstanceNearCache::hitRatio).register(registry);
+        Gauge.builder("chat.presence.nearcache.size", entries, ConcurrentHashMap::size).register(registry);
+        Gauge.builder("chat.presence.nearcache.tracking", this, c -> c.tracking ? 1 : 0).register(registry);
+
+        if (!enabled) {
+            return;
+        }
+        try {
+            this.connection = redisClient.connect(StringCodec.UTF8);
+            this.frontend = ClientSideCaching.enable(new TrackingAccessor(), connection, TrackingArgs.Builder.enabled());
+            this.tracking = true;
+            log.info("User instance near-cache enabled with CLIENT TRACKING");
+        } catch (Exception e) {
+            this.tracking = false;
+            log.warn("CLIENT TRACKING unavailable, near-cache falls back to local TTL={}ms: {}", fallbackTtlMs, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        try {
+            if (frontend != null) frontend.close();
+        } catch (Exception ignore) {}
+        try {
+            if (connection != null) connection.close();
+        } catch (Exception ignore) {}
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 读取 key 对应的值：命中本地直接返回，否则回源
+     *
+     * @param key      Redis 键（user:instance:<uid>）
+     * @param fallback 降级模式下的回源函数（使用调用方自己的连接）
+     */
+    public String get(String key, Function<String, String> fallback) {
+        if (!enabled) {
+            return fallback.apply(key);
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired()) {
+            hitCounter.increment();
+            return entry.value;
+        }
+        missCounter.increment();
+        if (tracking && frontend != null) {
+            try {
+                // CacheFrontend 会在同一连接上 GET 并登记 tracking，随后通过 TrackingAccessor.put 写回本地
+                return frontend.get(key);
+            } catch (Exception e) {
+                log.debug("Near-cache tracking read failed, fallback to direct GET: key={}", key, e);
+            }
+        }
+        String value = fallback.apply(key);
+        if (value != null) {
+            putLocal(key, value, fallbackTtlMs);
+        } else {
+            entries.remove(key);
+        }
+        return value;
+    }
+
+    /**
+     * 本实例主动修改/删除 key 后剔除本地条目（tracking 模式下 Redis 也会推送失效消息，这里只是加速）
+     */
+    public void evict(String key) {
+        entries.remove(key);
+    }
+
+    private void putLocal(String key, String value, long ttlMs) {
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMs));
+    }
+
+    private double hitRatio() {
+        double hits = hitCounter.count();
+        double total = hits + missCounter.count();
+        return total == 0 ? 0 : hits / total;
+    }
+
+    /**
+     * tracking 模式下的本地存储：CacheFrontend 回源后 put，收到失效消息时 evict
+     */
+    private class TrackingAccessor implements CacheAccessor<String, String> {
+
+        @Override
+        public String get(String key) {
+            Entry entry = entries.get(key);
+            return entry != null && !entry.isExpired() ? entry.value : null;
+        }
+
+        @Override
+        public void put(String key, String value) {
+            putLocal(key, value, trackingTtlMs);
+        }
+
+        @Override
+        public void evict(String key) {
+            invalidationCounter.increment();
+            entries.remove(key);
+        }
+    }
+
+    private static final class Entry {
+        private final String value;
+        private final long expireAt;
+
+        private Entry(String value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expireAt;
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package com.treasurehunt.chat.framework.core.websocket.distributed.delivery;
 
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.OutboundQueueManager;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.sync.RedisCommands;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketSession;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -29,16 +33,40 @@ public class UserSessionMetadataManager {
     @Autowired
     private StatefulRedisConnection<String, String> redisConnection;
 
+    @Autowired
+    private OutboundQueueManager outboundQueueManager;
+
+    @Autowired(required = false)
+    private UserInstanceNearCache userInstanceNearCache;
+
     // 本机会话缓存（用于快速查找WebSocketSession对象）
     private static final ConcurrentHashMap<String, WebSocketSession> LOCAL_SESSIONS = new ConcurrentHashMap<>();
     
     // Redis Key 前缀
     private static final String USER_SESSIONS_KEY = "user:sessions:";
     private static final String USER_INSTANCE_KEY = "user:instance:";
+
+    /**
+     * 排空时原子清理：移除会话，集合为空时删除；user:instance 仍指向本实例时才删除（比较并删除）
+     * KEYS[1] = user:sessions:{userId}, KEYS[2] = user:instance:{userId}
+     * ARGV[1] = sessionId, ARGV[2] = 本实例地址
+     * 返回 1 表示删除了 user:instance
+     */
+    private static final String LUA_CLEAR_PRESENCE_IF_OWNER =
+            "redis.call('SREM', KEYS[1], ARGV[1])\n" +
+            "if redis.call('SCARD', KEYS[1]) == 0 then redis.call('DEL', KEYS[1]) end\n" +
+            "if redis.call('GET', KEYS[2]) == ARGV[2] then return redis.call('DEL', KEYS[2]) else return 0 end";
     
     // TTL 设置
     private static final long SESSION_TTL_MINUTES = 5;
 
+    // 心跳续期节流：同一会话在该间隔内只写一次 Redis（每次写 user:instance 都会触发近端缓存失效）
+    private static final long HEARTBEAT_REFRESH_INTERVAL_MS = 60_000;
+    private final ConcurrentHashMap<String, Long> lastHeartbeatRefresh = new ConcurrentHashMap<>();
+
+    // 排空标记：优雅停机期间不再写入/续期本实例的在线元数据，避免清理后被心跳重新写回
+    private volatile boolean draining = false;
+
     /**
      * 注册用户会话元数据（连接建立时调用）
      * @param userId 用户ID
@@ -46,6 +74,9 @@ public class UserSessionMetadataManager {
      * @param instanceAddress 实例地址 (IP:Port)
      */
     public void registerUserSession(String userId, String sessionId, String instanceAddress) {
+        if (draining) {
+            return;
+        }
         if (userId != null && sessionId != null && instanceAddress != null) {
             try {
                 RedisCommands<String, String> commands = redisConnection.sync();
@@ -69,7 +100,16 @@ public class UserSessionMetadataManager {
      * @param instanceAddress 当前实例地址 (IP:Port)
      */
     public void heartbeat(String userId, String sessionId, String instanceAddress) {
+        if (draining) {
+            return;
+        }
         if (userId != null && sessionId != null && instanceAddress != null) {
+            long now = System.currentTimeMillis();
+            Long last = lastHeartbeatRefresh.get(sessionId);
+            if (last != null && now - last < HEARTBEAT_REFRESH_INTERVAL_MS) {
+                return;
+            }
+            lastHeartbeatRefresh.put(sessionId, now);
             try {
                 // 1. 获取旧的会话列表
                 RedisCommands<String, String> commands = redisConnection.sync();
@@ -113,6 +153,7 @@ public class UserSessionMetadataManager {
                 if (remainingSessions == null || remainingSessions == 0) {
                     commands.del(USER_SESSIONS_KEY + userId);
                     commands.del(USER_INSTANCE_KEY + userId);
+                    evictNearCache(userId);
                 }
                 
                 log.debug("Removed user session metadata: userId={}, sessionId={}", userId, sessionId);
@@ -122,6 +163,50 @@ public class UserSessionMetadataManager {
         }
     }
 
+    /**
+     * 清理本实例持有的在线元数据（优雅停机排空时调用）
+     * 只移除当前会话；user:instance 仅在仍指向本实例时删除（Lua 比较并删除），避免删掉用户已重连到的新实例
+     * @param userId 用户ID
+     * @param sessionId 会话ID
+     * @param instanceAddress 本实例地址 (IP:Port)
+     */
+    public void clearUserPresence(String userId, String sessionId, String instanceAddress) {
+        if (userId == null || sessionId == null) {
+            return;
+        }
+        try {
+            // 一个脚本内完成：用户此时重连到其它实例写入的新映射/会话集合不会被误删
+            Long deleted = redisConnection.sync().eval(LUA_CLEAR_PRESENCE_IF_OWNER, ScriptOutputType.INTEGER,
+                    new String[] { USER_SESSIONS_KEY + userId, USER_INSTANCE_KEY + userId },
+                    sessionId, instanceAddress);
+            if (deleted != null && deleted > 0) {
+                evictNearCache(userId);
+            }
+            log.debug("Cleared user presence for drain: userId={}, sessionId={}, instanceAddress={}", userId, sessionId, instanceAddress);
+        } catch (Exception e) {
+            log.error("Failed to clear user presence: userId={}, sessionId={}", userId, sessionId, e);
+        }
+    }
+
+    /**
+     * 进入排空状态（此后 register/heartbeat 不再写 Redis）
+     */
+    public void markDraining() {
+        this.draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * 获取本机全部会话（只读视图）
+     * @return 本机会话集合
+     */
+    public Collection<WebSocketSession> getLocalSessions() {
+        return Collections.unmodifiableCollection(LOCAL_SESSIONS.values());
+    }
+
     /**
      * 注册本机会话
      * @param session WebSocket会话
@@ -140,6 +225,8 @@ public class UserSessionMetadataManager {
     public void removeLocalSession(String sessionId) {
         if (sessionId != null) {
             LOCAL_SESSIONS.remove(sessionId);
+            lastHeartbeatRefresh.remove(sessionId);
+            outboundQueueManager.release(sessionId);
             log.debug("Removed local session: {}", sessionId);
         }
     }
@@ -183,6 +270,9 @@ public class UserSessionMetadataManager {
         }
         
         try {
+            if (userInstanceNearCache != null) {
+                return userInstanceNearCache.get(USER_INSTANCE_KEY + userId, key -> redisConnection.sync().get(key));
+            }
             RedisCommands<String, String> commands = redisConnection.sync();
             String instanceAddress = commands.get(USER_INSTANCE_KEY + userId);
             return instanceAddress != null ? instanceAddress : null;
@@ -192,6 +282,12 @@ public class UserSessionMetadataManager {
         }
     }
 
+    private void evictNearCache(String userId) {
+        if (userInstanceNearCache != null) {
+            userInstanceNearCache.evict(USER_INSTANCE_KEY + userId);
+        }
+    }
+
     /**
      * 获取本机会话
      * @param sessionId 会话ID
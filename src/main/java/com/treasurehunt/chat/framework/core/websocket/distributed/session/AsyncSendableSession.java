@@ -0,0 +1,21 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.session;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 支持完成回调式发送的会话
+ * 出站队列的写任务发起发送后立即返回，写出完成（或失败、超时）时再继续下一帧，写线程不阻塞等待对端
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+public interface AsyncSendableSession {
+
+    /**
+     * 异步发送一帧
+     * @return 写出完成时完成，失败或超时时异常完成
+     */
+    CompletableFuture<Void> sendMessageAsync(WebSocketMessage<?> message);
+}
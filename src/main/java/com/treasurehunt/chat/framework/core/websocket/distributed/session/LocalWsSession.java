@@ -1,7 +1,7 @@
 package com.treasurehunt.chat.framework.core.websocket.distributed.session;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsResponseEntity;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
 import org.springframework.http.HttpHeaders;
 import org.springframework.web.socket.*;
 
@@ -15,36 +15,41 @@ import java.util.Map;
 
 /**
  * 本地 WebSocket 会话实现（委托底层 WebSocketSession）
+ * 若提供了出站队列，所有发送都经由队列的单写者执行，调用线程不会被慢客户端阻塞
  */
 public class LocalWsSession implements WsSession {
 
     private final WebSocketSession delegate;
     private final String instanceId;
+    private final SessionOutboundQueue outboundQueue;
 
     public LocalWsSession(WebSocketSession delegate, String instanceId) {
+        this(delegate, instanceId, null);
+    }
+
+    public LocalWsSession(WebSocketSession delegate, String instanceId, SessionOutboundQueue outboundQueue) {
         this.delegate = delegate;
         this.instanceId = instanceId;
+        this.outboundQueue = outboundQueue;
     }
 
     public void send(WsResponseEntity<?> response) throws IOException {
         switch (response.getFrameType()) {
             case TEXT: {
-                ObjectMapper mapper = new ObjectMapper();
-                String json = mapper.writeValueAsString(response.getBody());
-                delegate.sendMessage(new TextMessage(json));
+                sendMessage(WsMessageCodec.encode(response.getBody(), this));
                 break;
             }
             case BINARY: {
                 byte[] bytes = toBytes(response.getBody());
-                delegate.sendMessage(new BinaryMessage(bytes));
+                sendMessage(new BinaryMessage(bytes));
                 break;
             }
             case PING: {
-                delegate.sendMessage(new BinaryMessage(new byte[0]));
+                sendMessage(new BinaryMessage(new byte[0]));
                 break;
             }
             case PONG: {
-                delegate.sendMessage(new BinaryMessage(new byte[0]));
+                sendMessage(new BinaryMessage(new byte[0]));
                 break;
             }
             case CLOSE: {
@@ -52,9 +57,7 @@ public class LocalWsSession implements WsSession {
                 break;
             }
             default: {
-                ObjectMapper mapper = new ObjectMapper();
-                String json = mapper.writeValueAsString(response.getBody());
-                delegate.sendMessage(new TextMessage(json));
+                sendMessage(WsMessageCodec.encode(response.getBody(), this));
             }
         }
     }
@@ -63,8 +66,7 @@ public class LocalWsSession implements WsSession {
         if (body == null) return new byte[0];
         if (body instanceof byte[]) return (byte[]) body;
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8);
+            return WsMessageCodec.writeBytes(body);
         } catch (Exception e) {
             return body.toString().getBytes(StandardCharsets.UTF_8);
         }
@@ -148,6 +150,10 @@ public class LocalWsSession implements WsSession {
 
     @Override
     public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (outboundQueue != null) {
+            outboundQueue.offer(message);
+            return;
+        }
         delegate.sendMessage(message);
     }
 
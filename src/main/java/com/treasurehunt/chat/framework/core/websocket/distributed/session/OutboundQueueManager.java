@@ -0,0 +1,336 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.websocket.SendHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话出站队列管理器
+ *
+ * 本机所有发往客户端的帧（业务响应、notifyPull、控制帧）都经由这里入队，
+ * 由 {@link SessionOutboundQueue} 的单写者串行发送；并按实例导出队列深度、丢弃数、驱逐数等指标
+ *
+ * 写线程池为全实例共享，写线程不能停在慢连接上：
+ * - 数据帧走完成回调式发送（Servlet 为 RemoteEndpoint.Async，Reactive 为 {@link AsyncSendableSession}），
+ *   写任务发起发送后即释放线程，写出完成再继续该会话的下一帧；单会话发送超过 send-time-limit-ms 由容器超时或巡检驱逐
+ * - 控制帧（Ping/Pong）容器只提供阻塞发送，超时设为 blocking-send-time-limit-ms（亚秒级），首次超时即驱逐该会话
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class OutboundQueueManager {
+
+    @Autowired
+    @Qualifier("wsOutboundWriterExecutor")
+    private TaskExecutor writerExecutor;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    /** 单会话最大排队消息数（notifyPull 提示合并后不计入） */
+    @Value("${websocket.outbound.max-queue-size:1000}")
+    private int maxQueueSize;
+
+    /** 单会话最大排队字节数 */
+    @Value("${websocket.outbound.max-buffer-bytes:1048576}")
+    private long maxBufferBytes;
+
+    /** 单次发送最长耗时（毫秒），超过视为慢客户端（异步发送不占写线程） */
+    @Value("${websocket.outbound.send-time-limit-ms:10000}")
+    private long sendTimeLimitMs;
+
+    /** 只能阻塞发送的帧（Ping/Pong）的容器发送超时（毫秒），会占住写线程，必须远小于 1 秒 */
+    @Value("${websocket.outbound.blocking-send-time-limit-ms:500}")
+    private long blockingSendTimeLimitMs;
+
+    /** 卡住发送巡检间隔（毫秒） */
+    @Value("${websocket.outbound.stuck-sweep-interval-ms:1000}")
+    private long stuckSweepIntervalMs;
+
+    /** notifyPull 合并窗口（毫秒），窗口内同一会话的提示合并为一帧；0 表示不等待 */
+    @Value("${websocket.outbound.notify-coalesce-ms:5}")
+    private long notifyCoalesceMs;
+
+    /** 溢出策略：TERMINATE（断开）/ DROP_OLDEST（丢弃最旧） */
+    @Value("${websocket.outbound.overflow-policy:TERMINATE}")
+    private SessionOutboundQueue.OverflowPolicy overflowPolicy;
+
+    @Value("${websocket.instance.ip:unknown}")
+    private String instanceIp;
+
+    @Value("${server.port:0}")
+    private String serverPort;
+
+    private final ConcurrentHashMap<String, SessionOutboundQueue> queues = new ConcurrentHashMap<>();
+
+    /** 合并窗口定时器（只负责到期后把写任务投递到写线程池） */
+    private final ScheduledExecutorService coalesceTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ws-notify-coalesce");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** 卡住发送巡检定时器 */
+    private final ScheduledExecutorService stuckSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ws-outbound-stuck-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** 驱逐执行器：关闭卡住的会话可能阻塞到发送超时（关闭帧排在未完成的发送之后），不占用巡检线程 */
+    private final ExecutorService evictor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ws-outbound-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Tomcat 阻塞发送超时的会话属性名（毫秒，Long） */
+    private static final String TOMCAT_BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    private Counter droppedCounter;
+    private Counter evictedCounter;
+    private Counter hintMergedCounter;
+    private Counter hintFrameCounter;
+
+    @PostConstruct
+    public void init() {
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        String instance = instanceIp + ":" + serverPort;
+        Gauge.builder("chat.ws.outbound.queue.depth", this, OutboundQueueManager::getTotalDepth)
+                .description("本机全部会话出站队列中待发送的帧数")
+                .tag("instance", instance)
+                .register(registry);
+        Gauge.builder("chat.ws.outbound.sessions", queues, ConcurrentHashMap::size)
+                .description("持有出站队列的本机会话数")
+                .tag("instance", instance)
+                .register(registry);
+        droppedCounter = Counter.builder("chat.ws.outbound.dropped")
+                .description("因溢出、会话关闭或驱逐而丢弃的出站帧数")
+                .tag("instance", instance)
+                .register(registry);
+        evictedCounter = Counter.builder("chat.ws.outbound.evicted")
+                .description("因慢消费被断开的会话数")
+                .tag("instance", instance)
+                .register(registry);
+        hintMergedCounter = Counter.builder("chat.ws.outbound.hint.merged")
+                .description("被合并掉的 notifyPull 提示数")
+                .tag("instance", instance)
+                .register(registry);
+        hintFrameCounter = Counter.builder("chat.ws.outbound.hint.frames")
+                .description("合并窗口结束后实际发出的 notifyPull 帧数")
+                .tag("instance", instance)
+                .register(registry);
+        stuckSweeper.scheduleWithFixedDelay(this::sweepStuck, stuckSweepIntervalMs, stuckSweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        coalesceTimer.shutdownNow();
+        stuckSweeper.shutdownNow();
+        evictor.shutdownNow();
+    }
+
+    /**
+     * 获取（必要时创建）会话的出站队列
+     */
+    public SessionOutboundQueue queueFor(WebSocketSession session) {
+        return queues.computeIfAbsent(session.getId(), id -> new SessionOutboundQueue(session, writerExecutor, this));
+    }
+
+    /**
+     * 入队一条消息
+     */
+    public boolean send(WebSocketSession session, WebSocketMessage<?> message) {
+        return queueFor(session).offer(message);
+    }
+
+    /**
+     * 入队一条 notifyPull 提示（同一 conversation 合并）
+     */
+    public boolean sendHint(WebSocketSession session, String conversationId, long serverMsgId,
+                            SessionOutboundQueue.HintEncoder encoder) {
+        return queueFor(session).offerHint(conversationId, serverMsgId, encoder);
+    }
+
+    /**
+     * 发送完已排队的帧后关闭会话
+     */
+    public void closeAfterFlush(WebSocketSession session, CloseStatus status) {
+        queueFor(session).closeAfterFlush(status);
+    }
+
+    /**
+     * 会话关闭时释放队列
+     */
+    public void release(String sessionId) {
+        SessionOutboundQueue queue = sessionId == null ? null : queues.get(sessionId);
+        if (queue != null) {
+            queue.terminate();
+        }
+    }
+
+    /**
+     * 兜底清理：移除已关闭会话残留的队列
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void sweepClosed() {
+        queues.forEach((id, queue) -> {
+            if (queue.isTerminated() || !queue.isSessionOpen()) {
+                queue.terminate();
+            }
+        });
+    }
+
+    /**
+     * 巡检：驱逐卡在发送中超过 send-time-limit-ms 的会话，不依赖该会话再有新消息入队
+     */
+    private void sweepStuck() {
+        try {
+            queues.forEach((id, queue) -> {
+                if (queue.isSendStuck() && !queue.isTerminated()) {
+                    evictor.execute(queue::evictIfStuck);
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Stuck outbound sweep failed", e);
+        }
+    }
+
+    /**
+     * Servlet（Tomcat）传输：异步发送超时设为 send-time-limit-ms，阻塞发送超时设为 blocking-send-time-limit-ms
+     * Reactive 传输的写超时由 ReactorNettyWebSocketSession 自身控制
+     */
+    void applySendTimeout(WebSocketSession session) {
+        try {
+            jakarta.websocket.Session nativeSession = nativeSession(session);
+            if (nativeSession != null) {
+                nativeSession.getAsyncRemote().setSendTimeout(sendTimeLimitMs);
+                nativeSession.getUserProperties().put(TOMCAT_BLOCKING_SEND_TIMEOUT, blockingSendTimeLimitMs);
+            }
+        } catch (Exception e) {
+            log.debug("Failed to apply send timeout: sessionId={}", session.getId(), e);
+        }
+    }
+
+    /**
+     * 发送一帧，不等待写出（供出站队列的写任务调用）
+     * 文本/二进制帧走容器异步发送；其余帧（Ping/Pong）容器只支持阻塞发送，在调用线程上按 blocking-send-time-limit-ms 发送
+     *
+     * @return 写出完成时完成，失败或超时时异常完成
+     */
+    CompletableFuture<Void> sendAsync(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+        if (session instanceof AsyncSendableSession) {
+            return ((AsyncSendableSession) session).sendMessageAsync(message);
+        }
+        jakarta.websocket.Session nativeSession = nativeSession(session);
+        if (nativeSession != null && (message instanceof TextMessage || message instanceof BinaryMessage)) {
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            SendHandler handler = result -> {
+                if (result.isOK()) {
+                    sent.complete(null);
+                } else {
+                    sent.completeExceptionally(result.getException());
+                }
+            };
+            if (message instanceof TextMessage) {
+                nativeSession.getAsyncRemote().sendText(((TextMessage) message).getPayload(), handler);
+            } else {
+                // 共享帧的 ByteBuffer 可能同时发往多个会话，各自用独立的读位置
+                nativeSession.getAsyncRemote().sendBinary(((BinaryMessage) message).getPayload().duplicate(), handler);
+            }
+            return sent;
+        }
+        session.sendMessage(message);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static jakarta.websocket.Session nativeSession(WebSocketSession session) {
+        if (!(session instanceof NativeWebSocketSession)) {
+            return null;
+        }
+        return ((NativeWebSocketSession) session).getNativeSession(jakarta.websocket.Session.class);
+    }
+
+    public int getTotalDepth() {
+        int total = 0;
+        for (SessionOutboundQueue queue : queues.values()) {
+            total += queue.getDepth();
+        }
+        return total;
+    }
+
+    void remove(String sessionId, SessionOutboundQueue queue) {
+        queues.remove(sessionId, queue);
+    }
+
+    void onDropped(int count) {
+        droppedCounter.increment(count);
+    }
+
+    void onEvicted() {
+        evictedCounter.increment();
+    }
+
+    void onHintMerged() {
+        hintMergedCounter.increment();
+    }
+
+    void onHintFrame() {
+        hintFrameCounter.increment();
+    }
+
+    void scheduleDelayed(Runnable task, long delayMs) {
+        try {
+            coalesceTimer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // 定时器已关闭（停机中），直接投递
+            task.run();
+        }
+    }
+
+    long getNotifyCoalesceMs() {
+        return notifyCoalesceMs;
+    }
+
+    int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    long getMaxBufferBytes() {
+        return maxBufferBytes;
+    }
+
+    long getSendTimeLimitMs() {
+        return sendTimeLimitMs;
+    }
+
+    SessionOutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
@@ -1,7 +1,7 @@
 package com.treasurehunt.chat.framework.core.websocket.distributed.session;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsResponseEntity;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
 import org.springframework.http.HttpHeaders;
 import org.springframework.web.socket.*;
 
@@ -24,7 +24,6 @@ public class RemoteWsSession implements WsSession {
     private final String sessionId;
     private final String instanceId;
     private final StatefulRedisConnection<String, String> redisConnection;
-    private final ObjectMapper objectMapper = new ObjectMapper();
 
     public RemoteWsSession(String sessionId, String instanceId, StatefulRedisConnection<String, String> redisConnection) {
         this.sessionId = sessionId;
@@ -35,7 +34,7 @@ public class RemoteWsSession implements WsSession {
     // 统一发送封装（框架使用）
     public void send(WsResponseEntity<?> response) throws IOException {
         // 远程发送仅透传响应载荷与必要元数据
-        String jsonMessage = objectMapper.writeValueAsString(response.getBody());
+        String jsonMessage = WsMessageCodec.writeString(response.getBody());
         Map<String, String> message = new HashMap<>();
         message.put("sessionId", sessionId);
         message.put("frameType", response.getFrameType().name());
@@ -0,0 +1,254 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话存活探测（服务端 ping/pong + 空闲回收）
+ *
+ * - 所有会话共用一个时间轮，每个会话只挂一个定时任务，调度与取消都是 O(1)，不随连接数增加线程
+ * - 距上次收到任意帧超过 ping 间隔时发送协议层 Ping；Ping 后 pong-timeout 内没有任何入站帧视为半开连接，直接断开
+ * - 超过 idle-timeout 没有收到业务帧（Pong 不算）的会话同样断开，回收长期挂起的连接
+ * - 断开后由 afterConnectionClosed 统一清理在线状态，无需等待 Redis TTL 过期
+ *
+ * 死连接由服务端在秒级发现，客户端的 /heartbeat 只承担兜底对账，可以大幅降低发送频率
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+@Component
+public class SessionLivenessMonitor {
+
+    @Autowired
+    private OutboundQueueManager outboundQueueManager;
+
+    @Autowired
+    @Qualifier("wsOutboundWriterExecutor")
+    private TaskExecutor writerExecutor;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    /** 是否启用服务端探活 */
+    @Value("${websocket.liveness.enabled:true}")
+    private boolean enabled;
+
+    /** 无入站帧多久后发送 Ping（毫秒） */
+    @Value("${websocket.liveness.ping-interval-ms:15000}")
+    private long pingIntervalMs;
+
+    /** Ping 后等待任意入站帧的时长（毫秒） */
+    @Value("${websocket.liveness.pong-timeout-ms:5000}")
+    private long pongTimeoutMs;
+
+    /** 无业务帧的最长空闲时长（毫秒），0 表示不回收空闲连接 */
+    @Value("${websocket.liveness.idle-timeout-ms:1800000}")
+    private long idleTimeoutMs;
+
+    /** 时间轮刻度（毫秒） */
+    @Value("${websocket.liveness.tick-ms:500}")
+    private long tickMs;
+
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final ConcurrentHashMap<String, Liveness> tracked = new ConcurrentHashMap<>();
+
+    private HashedWheelTimer timer;
+
+    private Counter pingCounter;
+    private Counter pongTimeoutCounter;
+    private Counter idleReapedCounter;
+
+    @PostConstruct
+    public void init() {
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        Gauge.builder("chat.ws.liveness.sessions", tracked, ConcurrentHashMap::size)
+                .description("纳入存活探测的本机会话数")
+                .register(registry);
+        pingCounter = Counter.builder("chat.ws.liveness.pings").register(registry);
+        pongTimeoutCounter = Counter.builder("chat.ws.liveness.reaped")
+                .tag("reason", "pong_timeout")
+                .description("因 Ping 无响应被断开的会话数")
+                .register(registry);
+        idleReapedCounter = Counter.builder("chat.ws.liveness.reaped")
+                .tag("reason", "idle")
+                .description("因长期无业务帧被断开的会话数")
+                .register(registry);
+
+        if (!enabled) {
+            return;
+        }
+        timer = new HashedWheelTimer(new DefaultThreadFactory("ws-liveness-wheel", true),
+                tickMs, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+        timer.start();
+        log.info("Session liveness monitor started: pingInterval={}ms, pongTimeout={}ms, idleTimeout={}ms",
+                pingIntervalMs, pongTimeoutMs, idleTimeoutMs);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (timer != null) {
+            try {
+                timer.stop();
+            } catch (Exception e) {
+                log.warn("Failed to stop liveness timer cleanly", e);
+            }
+        }
+        tracked.clear();
+    }
+
+    /**
+     * 连接建立后纳入探测
+     */
+    public void register(WebSocketSession session) {
+        if (timer == null || session == null) {
+            return;
+        }
+        Liveness liveness = new Liveness(session);
+        Liveness previous = tracked.put(session.getId(), liveness);
+        if (previous != null) {
+            previous.cancel();
+        }
+        schedule(liveness, pingIntervalMs);
+    }
+
+    /**
+     * 收到入站帧时刷新存活时间
+     *
+     * @param application 是否为业务帧（Pong 等控制帧只证明连接存活，不重置空闲计时）
+     */
+    public void touch(WebSocketSession session, boolean application) {
+        Liveness liveness = session == null ? null : tracked.get(session.getId());
+        if (liveness == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        liveness.lastSeenNanos = now;
+        liveness.pingSentNanos = 0;
+        if (application) {
+            liveness.lastApplicationNanos = now;
+        }
+    }
+
+    /**
+     * 连接关闭后移除
+     */
+    public void unregister(String sessionId) {
+        Liveness liveness = sessionId == null ? null : tracked.remove(sessionId);
+        if (liveness != null) {
+            liveness.cancel();
+        }
+    }
+
+    private void schedule(Liveness liveness, long delayMs) {
+        try {
+            liveness.timeout = timer.newTimeout(t -> check(liveness), Math.max(delayMs, tickMs), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // 时间轮已停止（停机中）
+            log.debug("Liveness timer unavailable: sessionId={}", liveness.session.getId());
+        }
+    }
+
+    private void check(Liveness liveness) {
+        WebSocketSession session = liveness.session;
+        if (tracked.get(session.getId()) != liveness) {
+            return;
+        }
+        if (!session.isOpen()) {
+            tracked.remove(session.getId(), liveness);
+            return;
+        }
+        long now = System.nanoTime();
+        long pingSent = liveness.pingSentNanos;
+        if (pingSent != 0 && elapsedMs(pingSent, now) >= pongTimeoutMs) {
+            pongTimeoutCounter.increment();
+            reap(liveness, "pong timeout");
+            return;
+        }
+        if (idleTimeoutMs > 0 && elapsedMs(liveness.lastApplicationNanos, now) >= idleTimeoutMs) {
+            idleReapedCounter.increment();
+            reap(liveness, "idle timeout");
+            return;
+        }
+        if (pingSent != 0) {
+            // Ping 已发出，等待剩余的 pong 超时时间
+            schedule(liveness, pongTimeoutMs - elapsedMs(pingSent, now));
+            return;
+        }
+        long sinceSeen = elapsedMs(liveness.lastSeenNanos, now);
+        if (sinceSeen < pingIntervalMs) {
+            // 期间有入站帧，无需 Ping
+            schedule(liveness, pingIntervalMs - sinceSeen);
+            return;
+        }
+        // 经出站队列发送，保持单写者
+        liveness.pingSentNanos = now;
+        if (outboundQueueManager.send(session, new PingMessage())) {
+            pingCounter.increment();
+        }
+        schedule(liveness, pongTimeoutMs);
+    }
+
+    /**
+     * 断开会话；close 可能在半开连接上阻塞，放到写线程池执行，不占用时间轮线程
+     */
+    private void reap(Liveness liveness, String reason) {
+        WebSocketSession session = liveness.session;
+        tracked.remove(session.getId(), liveness);
+        log.info("Reaping websocket session: sessionId={}, reason={}", session.getId(), reason);
+        outboundQueueManager.release(session.getId());
+        writerExecutor.execute(() -> {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason(reason));
+            } catch (Exception e) {
+                log.debug("Close reaped session failed: sessionId={}", session.getId(), e);
+            }
+        });
+    }
+
+    private static long elapsedMs(long sinceNanos, long nowNanos) {
+        return (nowNanos - sinceNanos) / 1_000_000;
+    }
+
+    private static final class Liveness {
+        private final WebSocketSession session;
+        private volatile long lastSeenNanos;
+        private volatile long lastApplicationNanos;
+        private volatile long pingSentNanos = 0;
+        private volatile Timeout timeout;
+
+        private Liveness(WebSocketSession session) {
+            this.session = session;
+            long now = System.nanoTime();
+            this.lastSeenNanos = now;
+            this.lastApplicationNanos = now;
+        }
+
+        private void cancel() {
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.session;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个会话的有界出站队列（单写者）
+ *
+ * - 任意线程调用 offer 只负责入队，真正的发送由写线程池中的唯一写任务串行执行；
+ *   数据帧异步发送，写出未完成时写任务立即释放线程，完成回调后再投递下一轮写任务，慢客户端不占用共享写线程
+ * - notifyPull 提示按 conversationId 合并，只保留每个 conversation 的最大 serverMsgId；
+ *   首个提示到达后开启几毫秒的合并窗口，窗口结束时把全部待发提示编码为一帧
+ * - 超出消息数/字节数上限或单次发送超时，按溢出策略处理（断开或丢弃最旧消息）
+ * - 发送有时限：异步发送超过 send-time-limit-ms 失败即驱逐；只能阻塞发送的控制帧按亚秒级超时发送，首次超时即驱逐；
+ *   另由 {@link OutboundQueueManager} 定期巡检，卡在发送中超时的会话即使不再有新消息入队也会被驱逐
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+public class SessionOutboundQueue {
+
+    /**
+     * 溢出策略
+     */
+    public enum OverflowPolicy {
+        /** 断开慢客户端（客户端重连后通过拉取补齐） */
+        TERMINATE,
+        /** 丢弃最旧的消息 */
+        DROP_OLDEST
+    }
+
+    /**
+     * notifyPull 提示编码器（写线程在合并窗口结束后调用，一次编码全部待发提示）
+     */
+    @FunctionalInterface
+    public interface HintEncoder {
+        /**
+         * @param hints conversationId -> 最大 serverMsgId（按首次到达顺序）
+         */
+        WebSocketMessage<?> encode(Map<String, Long> hints) throws Exception;
+    }
+
+    private final WebSocketSession session;
+    private final Executor writer;
+    private final OutboundQueueManager manager;
+
+    private final ConcurrentLinkedQueue<WebSocketMessage<?>> messages = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Long> pendingHints = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private volatile HintEncoder hintEncoder;
+    /** 当前合并窗口的截止时间（纳秒），0 表示没有打开的窗口 */
+    private volatile long hintDueNanos = 0;
+    private volatile long sendStartNanos = 0;
+    private volatile CloseStatus closeAfterFlush;
+    private volatile boolean terminated = false;
+
+    SessionOutboundQueue(WebSocketSession session, Executor writer, OutboundQueueManager manager) {
+        this.session = session;
+        this.writer = writer;
+        this.manager = manager;
+        manager.applySendTimeout(session);
+    }
+
+    /**
+     * 入队一条消息
+     * @return 是否入队成功（会话已关闭或被驱逐时返回 false）
+     */
+    public boolean offer(WebSocketMessage<?> message) {
+        if (terminated || !session.isOpen()) {
+            manager.onDropped(1);
+            return false;
+        }
+        if (isSendStuck()) {
+            evict("send time limit exceeded");
+            manager.onDropped(1);
+            return false;
+        }
+        messages.offer(message);
+        size.incrementAndGet();
+        bufferedBytes.addAndGet(message.getPayloadLength());
+        if (size.get() > manager.getMaxQueueSize() || bufferedBytes.get() > manager.getMaxBufferBytes()) {
+            if (manager.getOverflowPolicy() == OverflowPolicy.TERMINATE) {
+                evict("outbound buffer overflow: size=" + size.get() + ", bytes=" + bufferedBytes.get());
+                return false;
+            }
+            dropOldest();
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * 合并 notifyPull 提示：同一 conversation 只保留最大 serverMsgId
+     */
+    public boolean offerHint(String conversationId, long serverMsgId, HintEncoder encoder) {
+        if (terminated || !session.isOpen()) {
+            manager.onDropped(1);
+            return false;
+        }
+        if (isSendStuck()) {
+            evict("send time limit exceeded");
+            manager.onDropped(1);
+            return false;
+        }
+        this.hintEncoder = encoder;
+        Long prev = pendingHints.putIfAbsent(conversationId, serverMsgId);
+        if (prev != null) {
+            pendingHints.merge(conversationId, serverMsgId, Math::max);
+            manager.onHintMerged();
+        }
+        openHintWindow();
+        return true;
+    }
+
+    /**
+     * 发送完已入队的消息后关闭会话（优雅停机使用）
+     */
+    public void closeAfterFlush(CloseStatus status) {
+        this.closeAfterFlush = status;
+        schedule();
+    }
+
+    public int getDepth() {
+        return size.get() + pendingHints.size();
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    public boolean isSessionOpen() {
+        return session.isOpen();
+    }
+
+    /**
+     * 打开合并窗口：窗口内到达的提示都并入同一帧；窗口为 0 时立即发送
+     */
+    private synchronized void openHintWindow() {
+        if (hintDueNanos != 0) {
+            return;
+        }
+        long windowMs = manager.getNotifyCoalesceMs();
+        if (windowMs <= 0) {
+            hintDueNanos = System.nanoTime();
+            schedule();
+            return;
+        }
+        hintDueNanos = System.nanoTime() + windowMs * 1_000_000;
+        manager.scheduleDelayed(this::schedule, windowMs);
+    }
+
+    private boolean hintsDue() {
+        long due = hintDueNanos;
+        return due != 0 && System.nanoTime() - due >= 0 && !pendingHints.isEmpty();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (Exception e) {
+                scheduled.set(false);
+                log.warn("Outbound writer rejected task: sessionId={}", session.getId(), e);
+            }
+        }
+    }
+
+    private void drain() {
+        boolean inFlight = false;
+        try {
+            WebSocketMessage<?> message;
+            while (!terminated && (message = nextFrame()) != null) {
+                CompletableFuture<Void> sent = write(message);
+                if (!sent.isDone()) {
+                    // 写出未完成：释放写线程，完成回调里继续（期间 scheduled 保持为 true，仍是单写者）
+                    inFlight = true;
+                    sent.whenComplete((v, e) -> afterAsyncSend(e));
+                    return;
+                }
+                sent.join();
+            }
+            CloseStatus status = closeAfterFlush;
+            if (status != null && messages.isEmpty() && pendingHints.isEmpty() && session.isOpen()) {
+                session.close(status);
+            }
+        } catch (Exception e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.debug("Outbound drain failed, evict session: sessionId={}", session.getId(), cause);
+            evict("send failed: " + cause.getMessage());
+        } finally {
+            if (!inFlight) {
+                scheduled.set(false);
+                // 写任务结束后仍有新入队的数据，重新调度
+                if (!terminated && (!messages.isEmpty() || hintsDue())) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * 取下一帧：先发排队的消息，再发到期的合并提示（一次编码全部待发提示）
+     */
+    private WebSocketMessage<?> nextFrame() throws Exception {
+        WebSocketMessage<?> message = messages.poll();
+        if (message != null) {
+            size.decrementAndGet();
+            bufferedBytes.addAndGet(-message.getPayloadLength());
+            return message;
+        }
+        if (!hintsDue()) {
+            return null;
+        }
+        synchronized (this) {
+            hintDueNanos = 0;
+        }
+        Map<String, Long> batch = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, Long>> it = pendingHints.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            // 仅当值未被并发更新时移除，否则留给下一个窗口发送最新值
+            if (pendingHints.remove(e.getKey(), e.getValue())) {
+                batch.put(e.getKey(), e.getValue());
+            }
+        }
+        if (!pendingHints.isEmpty()) {
+            openHintWindow();
+        }
+        if (batch.isEmpty()) {
+            return null;
+        }
+        manager.onHintFrame();
+        return hintEncoder.encode(batch);
+    }
+
+    /**
+     * 异步发送完成回调（可能在容器 I/O 线程上）：失败即驱逐，成功则把后续发送重新投递到写线程池
+     */
+    private void afterAsyncSend(Throwable error) {
+        sendStartNanos = 0;
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            log.debug("Outbound async send failed, evict session: sessionId={}", session.getId(), cause);
+            evict("send failed: " + cause.getMessage());
+        }
+        scheduled.set(false);
+        if (!terminated && (!messages.isEmpty() || hintsDue() || closeAfterFlush != null)) {
+            schedule();
+        }
+    }
+
+    private CompletableFuture<Void> write(WebSocketMessage<?> message) throws Exception {
+        if (!session.isOpen()) {
+            terminate();
+            return CompletableFuture.completedFuture(null);
+        }
+        sendStartNanos = System.nanoTime();
+        CompletableFuture<Void> sent;
+        try {
+            sent = manager.sendAsync(session, message);
+        } catch (Exception e) {
+            sendStartNanos = 0;
+            throw e;
+        }
+        if (sent.isDone()) {
+            sendStartNanos = 0;
+        }
+        return sent;
+    }
+
+    /**
+     * 巡检调用：写任务卡在发送中超过时限时驱逐会话（关闭底层连接使阻塞的发送尽快失败）
+     */
+    void evictIfStuck() {
+        if (!terminated && isSendStuck()) {
+            evict("send time limit exceeded");
+        }
+    }
+
+    boolean isSendStuck() {
+        long start = sendStartNanos;
+        return start != 0 && (System.nanoTime() - start) / 1_000_000 > manager.getSendTimeLimitMs();
+    }
+
+    private void dropOldest() {
+        WebSocketMessage<?> dropped = messages.poll();
+        if (dropped != null) {
+            size.decrementAndGet();
+            bufferedBytes.addAndGet(-dropped.getPayloadLength());
+            manager.onDropped(1);
+        }
+    }
+
+    private void evict(String reason) {
+        if (terminated) {
+            return;
+        }
+        log.warn("Slow consumer evicted: sessionId={}, reason={}", session.getId(), reason);
+        manager.onEvicted();
+        terminate();
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("slow consumer"));
+        } catch (Exception ignore) {
+        }
+    }
+
+    /**
+     * 终止队列：清空剩余数据并计入丢弃
+     */
+    void terminate() {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        int remaining = 0;
+        while (messages.poll() != null) {
+            remaining++;
+        }
+        remaining += pendingHints.size();
+        pendingHints.clear();
+        size.set(0);
+        bufferedBytes.set(0);
+        if (remaining > 0) {
+            manager.onDropped(remaining);
+        }
+        manager.remove(session.getId(), this);
+    }
+}
@@ -1,5 +1,6 @@
 package com.treasurehunt.chat.framework.core.websocket.distributed.spi;
 
+import java.util.Collections;
 import java.util.Set;
 
 /**
@@ -52,6 +53,14 @@ public interface InstanceRegistry {
         return getActiveInstances().contains(instanceId);
     }
     
+    /**
+     * 获取所有活跃实例的通信地址
+     * @return 活跃实例地址集合 (IP:Port)
+     */
+    default Set<String> getActiveInstanceAddresses() {
+        return Collections.emptySet(); // 默认实现，子类可重写
+    }
+
     /**
      * 获取活跃实例数量
      * @return 活跃实例数量
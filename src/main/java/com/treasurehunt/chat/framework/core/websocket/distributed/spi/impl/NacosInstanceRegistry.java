@@ -2,6 +2,7 @@ package com.treasurehunt.chat.framework.core.websocket.distributed.spi.impl;
 
 import com.alibaba.cloud.nacos.NacosServiceManager;
 import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.listener.NamingEvent;
 import com.alibaba.nacos.api.naming.pojo.Instance;
 import com.treasurehunt.chat.framework.core.websocket.distributed.spi.InstanceRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,6 +14,7 @@ import org.springframework.context.event.EventListener;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -43,6 +45,8 @@ public class NacosInstanceRegistry implements InstanceRegistry {
     private NamingService namingService;
     private String currentInstanceId;
     private final Set<String> activeInstances = ConcurrentHashMap.newKeySet();
+    private volatile Set<String> activeAddresses = Collections.emptySet();
+    private volatile boolean subscribed = false;
     
     @EventListener(InstanceRegisteredEvent.class)
     @Order(0)
@@ -82,6 +86,20 @@ public class NacosInstanceRegistry implements InstanceRegistry {
 
         // 刷新活跃实例列表
         refreshActiveInstances();
+
+        // 订阅成员变化，保证一致性哈希等依赖成员列表的组件及时感知扩缩容
+        if (namingService != null && !subscribed) {
+            try {
+                namingService.subscribe(serviceName, event -> {
+                    if (event instanceof NamingEvent) {
+                        refreshActiveInstances();
+                    }
+                });
+                subscribed = true;
+            } catch (Exception ignore) {
+                // 订阅失败时仍依赖注册事件刷新
+            }
+        }
     }
     
     @Override
@@ -121,6 +139,11 @@ public class NacosInstanceRegistry implements InstanceRegistry {
         return null;
     }
     
+    @Override
+    public Set<String> getActiveInstanceAddresses() {
+        return activeAddresses;
+    }
+
     @Override
     public boolean isInstanceActive(String instanceId) {
         return activeInstances.contains(instanceId);
@@ -137,13 +160,16 @@ public class NacosInstanceRegistry implements InstanceRegistry {
     private void refreshActiveInstances() {
         try {
             activeInstances.clear();
+            Set<String> addresses = new HashSet<>();
             if (namingService != null) {
                 List<Instance> instances = namingService.getAllInstances(serviceName);
                 for (Instance instance : instances) {
                     if (instance.isHealthy() && instance.isEnabled()) {
                         activeInstances.add(instance.getInstanceId());
+                        addresses.add(instance.getIp() + ":" + instance.getPort());
                     }
                 }
+                activeAddresses = Collections.unmodifiableSet(addresses);
                 return;
             }
             if (discoveryClient != null) {
@@ -154,8 +180,10 @@ public class NacosInstanceRegistry implements InstanceRegistry {
                         id = serviceName + "-" + si.getHost() + ":" + si.getPort();
                     }
                     activeInstances.add(id);
+                    addresses.add(si.getHost() + ":" + si.getPort());
                 }
             }
+            activeAddresses = Collections.unmodifiableSet(addresses);
         } catch (Exception e) {
             // 记录日志
         }
@@ -2,6 +2,9 @@ package com.treasurehunt.chat.framework.core.websocket.mvc.adapt;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.treasurehunt.chat.framework.core.websocket.mvc.handler.HandlerMethod;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejectionException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketSession;
@@ -14,7 +17,7 @@ import org.springframework.web.socket.WebSocketSession;
 @Component
 public class WebSocketHandlerAdapter {
     
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectMapper objectMapper = WsMessageCodec.mapper();
     
     /**
      * 处理WebSocket请求
@@ -56,6 +59,9 @@ public class WebSocketHandlerAdapter {
             log.debug("成功处理 WebSocket 请求: {}", handlerMethod.getInterfaceName());
             return result;
             
+        } catch (WsRejectionException e) {
+            // 预期内拒绝（限流、校验等）原样抛出，由分发器按拒绝回包；不包装、不打错误日志
+            throw e;
         } catch (Throwable e) {
             log.error("处理WebSocket请求失败: {}", handlerMethod.getInterfaceName(), e);
             throw new RuntimeException("处理器调用失败", e);
@@ -70,15 +76,19 @@ public class WebSocketHandlerAdapter {
     }
     
     /**
-     * 转换payload为指定类型（性能优化：使用convertValue比readValue快）
+     * 转换payload为指定类型
+     * 经 WebSocketFrameDecoder 解码的帧，payload 已经是目标类型，直接使用；
+     * 其余调用方传入的 Map 等中间结构才走 convertValue
      */
     private Object convertPayload(Object request, HandlerMethod.ParameterInfo paramInfo) throws Exception {
         try {
-            // 假设request有getPayload()方法获取原始payload
             Object payload = extractPayload(request);
-            
-            // 使用Jackson的类型转换（性能优化）
-            return objectMapper.convertValue(payload, paramInfo.getPayloadType());
+            if (payload == null || paramInfo.getPayloadType().isInstance(payload)) {
+                return payload;
+            }
+            return paramInfo.getPayloadJavaType() != null
+                ? objectMapper.convertValue(payload, paramInfo.getPayloadJavaType())
+                : objectMapper.convertValue(payload, paramInfo.getPayloadType());
         } catch (Exception e) {
             log.error("转换Payload失败,类型:{}", paramInfo.getPayloadType(), e);
             throw new RuntimeException("Payload转换失败", e);
@@ -86,10 +96,13 @@ public class WebSocketHandlerAdapter {
     }
     
     /**
-     * 提取原始payload（假设请求对象有getPayload方法）
+     * 提取原始payload
      */
     private Object extractPayload(Object request) throws Exception {
-        // 这里使用反射调用getPayload方法，实际项目中可以优化
+        if (request instanceof WebSocketDataWrapper) {
+            return ((WebSocketDataWrapper<?>) request).getPayload();
+        }
+        // 兼容其它带 getPayload 方法的请求对象
         return request.getClass().getMethod("getPayload").invoke(request);
     }
     
@@ -0,0 +1,27 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.annotation;
+
+/**
+ * WebSocket 处理器执行模式
+ * 通过 @WsRequestMapping(execution = ...) 按路由配置
+ *
+ * 无论哪种模式，同一会话的请求都严格按到达顺序执行：前一个请求（包括其返回的 CompletableFuture）
+ * 完成之前，后一个请求不会开始
+ */
+public enum WsExecutionMode {
+
+    /**
+     * 在容器 I/O 线程上直接执行（默认，与原先行为一致），适合纯内存、耗时极短的处理器
+     */
+    INLINE,
+
+    /**
+     * 在虚拟线程上执行，适合有数据库/远程调用等阻塞 I/O 的处理器；
+     * 运行时 JDK 不支持虚拟线程时退回 POOL
+     */
+    VIRTUAL,
+
+    /**
+     * 在有界业务线程池上执行，池满时直接回"服务繁忙"错误响应
+     */
+    POOL
+}
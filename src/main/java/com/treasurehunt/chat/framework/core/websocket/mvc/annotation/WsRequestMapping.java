@@ -11,6 +11,14 @@ import java.lang.annotation.*;
  * public ResponsePayload sendMessage(@WsRequestBody RequestPayload payload) {
  *     return service.handle(payload);
  * }
+ *
+ * 处理器中有阻塞 I/O（数据库事务等）时，可指定执行模式把调用移出容器 I/O 线程：
+ * @WsRequestMapping(value = "sendMessage", execution = WsExecutionMode.VIRTUAL)
+ * 处理器也可以返回 CompletableFuture，完成后再自动发送响应
+ *
+ * 可以批量处理的路由（如 pullMessage）可再声明一个批量处理器：
+ * @WsRequestMapping(value = "pullMessage", batch = true)
+ * public List&lt;Result&gt; pullMessages(@WsRequestBody List&lt;Request&gt; requests, WebSocketSession session)
  */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
@@ -22,4 +30,18 @@ public @interface WsRequestMapping {
      * @return 路由映射值
      */
     String value();
+
+    /**
+     * 处理器执行模式，默认在容器 I/O 线程上直接执行
+     * @return 执行模式
+     */
+    WsExecutionMode execution() default WsExecutionMode.INLINE;
+
+    /**
+     * 是否为该路由的批量处理器
+     * 为 true 时 @WsRequestBody 参数声明为 List&lt;T&gt;（T 为单条请求的 payload 类型），返回与入参等长、顺序一致的 List；
+     * 批量信封（/batch）中同一路由的多条请求会合并为一次调用。同一路由可以同时存在单条处理器和批量处理器
+     * @return 是否批量处理器
+     */
+    boolean batch() default false;
 }
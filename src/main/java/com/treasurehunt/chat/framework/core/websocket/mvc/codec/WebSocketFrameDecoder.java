@@ -0,0 +1,280 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.treasurehunt.chat.framework.core.websocket.mvc.handler.HandlerMethod;
+import com.treasurehunt.chat.framework.core.websocket.mvc.mapping.WebSocketHandlerMapping;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WebSocket帧解码器（单次解析）
+ *
+ * 以流式方式读取帧的顶层字段：先拿到 interfaceName 找到路由，再把 payload 直接反序列化为
+ * 处理器参数的目标类型（启动时预先计算好的 JavaType），不再经过 Map/LinkedHashMap 中间对象和二次 convertValue。
+ * 客户端若把 payload 放在 interfaceName 之前，payload 先缓存为 TokenBuffer，拿到路由后再绑定。
+ * 批量信封（interfaceName=/batch）中的子请求逐项按各自路由绑定，单项绑定失败只标记该项（errorMessage + 400）。
+ *
+ * 开启 websocket.mvc.measure-allocation 后，记录每帧解码期间当前线程分配的字节数（chat.ws.inbound.decode.alloc），
+ * 用于对比优化前后每帧的分配量
+ */
+@Slf4j
+@Component
+public class WebSocketFrameDecoder {
+
+    @Autowired
+    @Qualifier("customWebSocketHandlerMapping")
+    private WebSocketHandlerMapping handlerMapping;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.mvc.measure-allocation:false}")
+    private boolean measureAllocation;
+
+    @Value("${websocket.mvc.codec-metrics:false}")
+    private boolean codecMetrics;
+
+    /** 批量信封最多允许的子请求数，超过视为非法帧 */
+    @Value("${websocket.mvc.batch.max-items:50}")
+    private int maxBatchItems;
+
+    private final ObjectMapper objectMapper = WsMessageCodec.mapper();
+    private final JsonFactory jsonFactory = objectMapper.getFactory();
+    private final JsonFactory cborFactory = WsMessageCodec.factory(WsFrameFormat.CBOR);
+    /** 无路由或无@WsRequestBody参数时按原样读取为 Map/List */
+    private final ObjectReader untypedReader = objectMapper.readerFor(Object.class);
+    /** interfaceName -> 目标类型的 ObjectReader */
+    private final ConcurrentHashMap<String, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private DistributionSummary allocationSummary;
+
+    @PostConstruct
+    public void init() {
+        if (codecMetrics) {
+            WsMessageCodec.enableMetrics(meterRegistry != null ? meterRegistry : Metrics.globalRegistry);
+        }
+        if (measureAllocation && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+            allocationSummary = DistributionSummary.builder("chat.ws.inbound.decode.alloc")
+                    .baseUnit("bytes")
+                    .description("每帧解码期间分配的字节数")
+                    .register(registry);
+        }
+    }
+
+    /**
+     * 解码一帧文本消息（JSON）
+     *
+     * @throws PayloadBindingException payload 无法绑定到处理器参数类型
+     * @throws IOException             帧本身不是合法的 JSON 对象
+     */
+    public WebSocketDataWrapper<Object> decode(String frame) throws IOException {
+        long start = WsMessageCodec.metricsEnabled() ? System.nanoTime() : 0;
+        WebSocketDataWrapper<Object> wrapper = decode(jsonFactory.createParser(frame));
+        // 帧大小按线上 UTF-8 字节数记录，与二进制帧、出站帧口径一致（String.length() 是 UTF-16 字符数，中文会少算）
+        int frameBytes = WsMessageCodec.utf8Length(frame);
+        wrapper.setFrameSize(frameBytes);
+        if (start != 0) {
+            WsMessageCodec.recordDecode(WsFrameFormat.JSON, start, frameBytes);
+        }
+        return wrapper;
+    }
+
+    /**
+     * 解码一帧二进制消息（协商了 chat.cbor 的会话），帧结构与 JSON 相同
+     *
+     * @throws PayloadBindingException payload 无法绑定到处理器参数类型
+     * @throws IOException             帧本身不是合法的 CBOR map
+     */
+    public WebSocketDataWrapper<Object> decode(byte[] frame) throws IOException {
+        long start = WsMessageCodec.metricsEnabled() ? System.nanoTime() : 0;
+        WebSocketDataWrapper<Object> wrapper = decode(cborFactory.createParser(frame));
+        wrapper.setFrameSize(frame.length);
+        if (start != 0) {
+            WsMessageCodec.recordDecode(WsFrameFormat.CBOR, start, frame.length);
+        }
+        return wrapper;
+    }
+
+    private WebSocketDataWrapper<Object> decode(JsonParser frameParser) throws IOException {
+        long allocatedBefore = threadMXBean != null ? threadMXBean.getCurrentThreadAllocatedBytes() : 0;
+        WebSocketDataWrapper<Object> wrapper;
+        try (JsonParser parser = frameParser) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "WebSocket帧必须是对象结构");
+            }
+            wrapper = readWrapper(parser, false);
+        }
+        if (allocationSummary != null) {
+            allocationSummary.record(threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+        }
+        return wrapper;
+    }
+
+    /**
+     * 读取一个请求对象（解析器位于 START_OBJECT 上），顶层帧与批量信封中的每一项共用
+     *
+     * @param batchItem 是否为批量信封中的子请求：子请求不允许再嵌套 batch，
+     *                  payload 一律先缓存，绑定失败只标记该项，不影响同一信封中的其它项
+     */
+    private WebSocketDataWrapper<Object> readWrapper(JsonParser parser, boolean batchItem) throws IOException {
+        WebSocketDataWrapper<Object> wrapper = new WebSocketDataWrapper<>();
+        TokenBuffer deferredPayload = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "interfaceName":
+                    wrapper.setInterfaceName(parser.getValueAsString());
+                    break;
+                case "version":
+                    wrapper.setVersion(value == JsonToken.VALUE_NULL ? null : parser.getValueAsInt());
+                    break;
+                case "payload":
+                    if (wrapper.getInterfaceName() != null && !batchItem) {
+                        wrapper.setPayload(readPayload(wrapper.getInterfaceName(), parser));
+                    } else {
+                        deferredPayload = new TokenBuffer(parser);
+                        deferredPayload.copyCurrentStructure(parser);
+                    }
+                    break;
+                case "batch":
+                    if (batchItem) {
+                        throw new JsonParseException(parser, "批量请求不允许嵌套");
+                    }
+                    wrapper.setBatch(readBatch(parser));
+                    break;
+                // 子请求上的响应字段不读取：errorMessage 非空只表示解码阶段绑定失败
+                case "websocketCode":
+                    if (!batchItem) {
+                        wrapper.setWebsocketCode(parser.getValueAsString());
+                    }
+                    break;
+                case "success":
+                    if (!batchItem) {
+                        wrapper.setSuccess(parser.getValueAsBoolean());
+                    }
+                    break;
+                case "errorMessage":
+                    if (!batchItem) {
+                        wrapper.setErrorMessage(parser.getValueAsString());
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (deferredPayload != null) {
+            try (JsonParser buffered = deferredPayload.asParser(objectMapper)) {
+                buffered.nextToken();
+                wrapper.setPayload(readPayload(wrapper.getInterfaceName(), buffered));
+            } catch (PayloadBindingException e) {
+                if (!batchItem) {
+                    throw e;
+                }
+                log.warn("批量请求子项 payload 绑定失败: {}", e.getInterfaceName(), e);
+                wrapper.setWebsocketCode("400");
+                wrapper.setErrorMessage(e.getMessage());
+            }
+        }
+        return wrapper;
+    }
+
+    /**
+     * 读取批量信封的子请求数组（解析器位于 START_ARRAY 上）
+     */
+    private List<WebSocketDataWrapper<Object>> readBatch(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "batch 必须是数组");
+        }
+        List<WebSocketDataWrapper<Object>> items = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "batch 子项必须是对象结构");
+            }
+            if (items.size() >= maxBatchItems) {
+                throw new JsonParseException(parser, "批量请求条数超过上限: " + maxBatchItems);
+            }
+            items.add(readWrapper(parser, true));
+        }
+        return items;
+    }
+
+    private Object readPayload(String interfaceName, JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        ObjectReader reader = resolveReader(interfaceName);
+        try {
+            return reader.readValue(parser);
+        } catch (IOException e) {
+            throw new PayloadBindingException(interfaceName, e);
+        }
+    }
+
+    /**
+     * 只缓存已注册路由的 reader，未知的 interfaceName 不进入缓存
+     */
+    private ObjectReader resolveReader(String interfaceName) {
+        if (interfaceName == null) {
+            return untypedReader;
+        }
+        ObjectReader reader = readers.get(interfaceName);
+        if (reader != null) {
+            return reader;
+        }
+        HandlerMethod handlerMethod = handlerMapping.getHandler(interfaceName);
+        if (handlerMethod != null && handlerMethod.getPayloadJavaType() != null) {
+            return readers.computeIfAbsent(interfaceName, name -> objectMapper.readerFor(handlerMethod.getPayloadJavaType()));
+        }
+        // 只有批量处理器的路由：子请求 payload 按 List 的元素类型绑定
+        HandlerMethod batchHandler = handlerMapping.getBatchHandler(interfaceName);
+        if (batchHandler != null && batchHandler.getPayloadJavaType() != null
+                && batchHandler.getPayloadJavaType().getContentType() != null) {
+            return readers.computeIfAbsent(interfaceName,
+                    name -> objectMapper.readerFor(batchHandler.getPayloadJavaType().getContentType()));
+        }
+        return untypedReader;
+    }
+
+    /**
+     * payload 与处理器参数类型不匹配（帧结构本身合法，可以按 interfaceName 回错误响应）
+     */
+    public static class PayloadBindingException extends IOException {
+        private final String interfaceName;
+
+        public PayloadBindingException(String interfaceName, Throwable cause) {
+            super("Payload转换失败: " + interfaceName, cause);
+            this.interfaceName = interfaceName;
+        }
+
+        public String getInterfaceName() {
+            return interfaceName;
+        }
+    }
+}
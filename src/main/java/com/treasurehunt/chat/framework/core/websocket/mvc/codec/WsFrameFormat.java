@@ -0,0 +1,39 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.codec;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * WebSocket 帧编码格式，握手时通过 Sec-WebSocket-Protocol 协商
+ *
+ * - 未声明子协议或声明 chat.json：JSON 文本帧（默认，与原先一致）
+ * - 声明 chat.cbor：请求和响应都使用 CBOR 二进制帧
+ *
+ * 约定：文本帧永远是 JSON、二进制帧永远是 CBOR。走其它推送链路（群聊广播等）仍下发 JSON 文本帧，
+ * 协商了 chat.cbor 的客户端按帧类型选择解码方式即可
+ */
+public enum WsFrameFormat {
+
+    JSON("chat.json"),
+    CBOR("chat.cbor");
+
+    /** 服务端支持的子协议，按优先级排列 */
+    public static final String[] SUPPORTED_PROTOCOLS = {CBOR.protocol, JSON.protocol};
+
+    private final String protocol;
+
+    WsFrameFormat(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * 根据会话协商结果确定编码格式
+     */
+    public static WsFrameFormat of(WebSocketSession session) {
+        String accepted = session != null ? session.getAcceptedProtocol() : null;
+        return CBOR.protocol.equals(accepted) ? CBOR : JSON;
+    }
+}
@@ -0,0 +1,260 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket 帧统一编解码器
+ *
+ * 框架内所有出站帧（业务响应、notifyPull、控制帧、错误帧）与入站帧的编解码都经由这里：
+ * - 每种格式全局只有一个 ObjectMapper，序列化器缓存只构建一次（此前每次发送都 new ObjectMapper()，每次都要重建缓存）
+ * - 按运行时类型缓存 ObjectWriter，根序列化器预先解析，发送时不再查找
+ * - 文本帧走 Jackson 自带的 BufferRecycler（线程级复用的字符缓冲）；二进制帧写入线程级复用的 ByteArrayBuilder，
+ *   只在最后按实际长度拷贝一次
+ * - 按会话协商的 {@link WsFrameFormat} 选择 JSON 文本帧或 CBOR 二进制帧
+ * - encode 产出的文本帧不可变，可以原样发给多个会话（fan-out 只序列化一次）；二进制帧发送时会移动 ByteBuffer 位置，需各自 duplicate
+ *
+ * JSON 配置与原先的 new ObjectMapper() 保持一致，线上报文格式不变。
+ * WsResponseEntity / LocalWsSession 等非 Spring 管理的对象也会用到，因此以静态方法提供
+ */
+public final class WsMessageCodec {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectMapper CBOR_MAPPER = new CBORMapper();
+
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> CBOR_WRITERS = new ConcurrentHashMap<>();
+
+    /** 二进制帧的线程级复用缓冲，超过该大小的缓冲用完即丢弃，避免长期占用大块内存 */
+    private static final int MAX_POOLED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<ByteArrayBuilder> BYTE_BUFFERS = ThreadLocal.withInitial(() -> new ByteArrayBuilder(4096));
+
+    /** 编码指标，开启 websocket.mvc.codec-metrics 后才记录 */
+    private static volatile Map<WsFrameFormat, CodecMeters> meters;
+
+    private WsMessageCodec() {
+    }
+
+    /**
+     * 共享的 ObjectMapper（只读使用，不要修改其配置）
+     */
+    public static ObjectMapper mapper() {
+        return MAPPER;
+    }
+
+    public static ObjectMapper mapper(WsFrameFormat format) {
+        return format == WsFrameFormat.CBOR ? CBOR_MAPPER : MAPPER;
+    }
+
+    public static JsonFactory factory(WsFrameFormat format) {
+        return mapper(format).getFactory();
+    }
+
+    /**
+     * 获取（并缓存）指定类型的 ObjectWriter
+     */
+    public static ObjectWriter writerFor(Class<?> type) {
+        return WRITERS.computeIfAbsent(type, MAPPER::writerFor);
+    }
+
+    private static ObjectWriter cborWriterFor(Class<?> type) {
+        return CBOR_WRITERS.computeIfAbsent(type, CBOR_MAPPER::writerFor);
+    }
+
+    public static ObjectReader readerFor(JavaType type) {
+        return MAPPER.readerFor(type);
+    }
+
+    public static ObjectReader readerFor(Class<?> type) {
+        return MAPPER.readerFor(type);
+    }
+
+    /**
+     * 序列化为 JSON 字符串
+     */
+    public static String writeString(Object value) throws JsonProcessingException {
+        if (value == null) {
+            return "null";
+        }
+        return writerFor(value.getClass()).writeValueAsString(value);
+    }
+
+    /**
+     * 序列化为 JSON 字节（UTF-8）
+     */
+    public static byte[] writeBytes(Object value) throws IOException {
+        if (value == null) {
+            return "null".getBytes(StandardCharsets.UTF_8);
+        }
+        return writePooled(writerFor(value.getClass()), value);
+    }
+
+    /**
+     * 序列化为 CBOR 字节
+     */
+    public static byte[] writeCbor(Object value) throws IOException {
+        if (value == null) {
+            return CBOR_MAPPER.writeValueAsBytes(null);
+        }
+        return writePooled(cborWriterFor(value.getClass()), value);
+    }
+
+    private static byte[] writePooled(ObjectWriter writer, Object value) throws IOException {
+        ByteArrayBuilder buffer = BYTE_BUFFERS.get();
+        buffer.reset();
+        byte[] bytes;
+        try {
+            writer.writeValue(buffer, value);
+            bytes = buffer.toByteArray();
+        } finally {
+            buffer.reset();
+        }
+        if (bytes.length > MAX_POOLED_BUFFER) {
+            BYTE_BUFFERS.remove();
+        }
+        return bytes;
+    }
+
+    /**
+     * 编码为文本帧
+     */
+    public static TextMessage textMessage(Object value) throws JsonProcessingException {
+        return new TextMessage(writeString(value));
+    }
+
+    /**
+     * 编码为二进制帧（byte[] 原样发送，其它对象序列化为 JSON 字节）
+     */
+    public static BinaryMessage binaryMessage(Object value) throws IOException {
+        if (value instanceof byte[]) {
+            return new BinaryMessage((byte[]) value);
+        }
+        return new BinaryMessage(writeBytes(value));
+    }
+
+    /**
+     * 按会话协商的格式编码业务帧：JSON 为文本帧，CBOR 为二进制帧
+     */
+    public static WebSocketMessage<?> encode(Object value, WebSocketSession session) throws IOException {
+        return encode(value, WsFrameFormat.of(session));
+    }
+
+    public static WebSocketMessage<?> encode(Object value, WsFrameFormat format) throws IOException {
+        CodecMeters m = meters != null ? meters.get(format) : null;
+        long start = m != null ? System.nanoTime() : 0;
+        WebSocketMessage<?> message;
+        int size;
+        if (format == WsFrameFormat.CBOR) {
+            byte[] bytes = writeCbor(value);
+            message = new BinaryMessage(bytes);
+            size = bytes.length;
+        } else {
+            // 由 UTF-8 字节构造文本帧：字节数组随帧缓存，出站队列统计长度（getPayloadLength）时不再重新编码，
+            // 同一帧发给多个会话时也只编码这一次
+            byte[] bytes = writeBytes(value);
+            message = new TextMessage(bytes);
+            size = bytes.length;
+        }
+        if (m != null) {
+            m.encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            m.frameBytes.record(size);
+        }
+        return message;
+    }
+
+    public static <T> T readValue(String content, Class<T> type) throws JsonProcessingException {
+        return MAPPER.readValue(content, type);
+    }
+
+    /**
+     * 文本按 UTF-8 编码后的字节数（即线上帧的字节数），只计数不编码；不成对的代理字符按编码器替换为 '?' 计 1 字节
+     */
+    static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // 代理对：两个 char 共 4 字节
+                bytes += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符编码为 '?'
+                continue;
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 开启编解码指标：chat.ws.codec.encode（每帧编码耗时）、chat.ws.codec.decode（每帧解码耗时）、
+     * chat.ws.codec.frame.bytes（每帧字节数），均按 codec=json/cbor 区分
+     */
+    public static void enableMetrics(MeterRegistry registry) {
+        Map<WsFrameFormat, CodecMeters> m = new EnumMap<>(WsFrameFormat.class);
+        for (WsFrameFormat format : WsFrameFormat.values()) {
+            m.put(format, new CodecMeters(registry, format.name().toLowerCase()));
+        }
+        meters = m;
+    }
+
+    /**
+     * 记录一帧解码耗时（未开启指标时忽略）
+     */
+    static void recordDecode(WsFrameFormat format, long startNanos, int frameBytes) {
+        CodecMeters m = meters != null ? meters.get(format) : null;
+        if (m != null) {
+            m.decodeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            m.inboundBytes.record(frameBytes);
+        }
+    }
+
+    static boolean metricsEnabled() {
+        return meters != null;
+    }
+
+    private static final class CodecMeters {
+        private final Timer encodeTimer;
+        private final Timer decodeTimer;
+        private final DistributionSummary frameBytes;
+        private final DistributionSummary inboundBytes;
+
+        private CodecMeters(MeterRegistry registry, String codec) {
+            this.encodeTimer = Timer.builder("chat.ws.codec.encode").tag("codec", codec)
+                    .description("每帧编码耗时").register(registry);
+            this.decodeTimer = Timer.builder("chat.ws.codec.decode").tag("codec", codec)
+                    .description("每帧解码耗时").register(registry);
+            this.frameBytes = DistributionSummary.builder("chat.ws.codec.frame.bytes").tag("codec", codec)
+                    .tag("direction", "outbound").baseUnit("bytes").description("每帧字节数").register(registry);
+            this.inboundBytes = DistributionSummary.builder("chat.ws.codec.frame.bytes").tag("codec", codec)
+                    .tag("direction", "inbound").baseUnit("bytes").description("每帧字节数").register(registry);
+        }
+    }
+}
@@ -2,13 +2,19 @@ package com.treasurehunt.chat.framework.core.websocket.mvc.dispatcher;
 
 
 import com.treasurehunt.chat.framework.core.websocket.mvc.adapt.WebSocketHandlerAdapter;
+import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsExecutionMode;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WebSocketFrameDecoder;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
 import com.treasurehunt.chat.framework.core.websocket.mvc.handler.HandlerMethod;
 import com.treasurehunt.chat.framework.core.websocket.mvc.handler.WebSocketExceptionHandlerResolver;
 import com.treasurehunt.chat.framework.core.websocket.mvc.interceptor.WebSocketInterceptorRegistry;
 import com.treasurehunt.chat.framework.core.websocket.mvc.mapping.WebSocketHandlerMapping;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejection;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejectionException;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsResponseEntity;
 import com.treasurehunt.chat.framework.core.websocket.distributed.session.LocalWsSession;
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.OutboundQueueManager;
 import com.treasurehunt.chat.framework.core.websocket.distributed.session.WsSession;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +22,17 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketSession;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
 
 /**
  * WebSocket调度器
@@ -37,14 +54,71 @@ public class WebSocketDispatcher {
     
     @Autowired(required = false)
     private WebSocketExceptionHandlerResolver exceptionHandlerResolver;
+
+    @Autowired(required = false)
+    private OutboundQueueManager outboundQueueManager;
+
+    @Autowired
+    private WebSocketFrameDecoder frameDecoder;
+
+    @Autowired(required = false)
+    private WsHandlerExecutor handlerExecutor;
     
 
     
     // 移除硬编码，改用注解配置
     
+    /**
+     * 调度一帧原始文本消息
+     * 单次解析：按 interfaceName 找到路由后直接把 payload 反序列化为处理器参数类型
+     *
+     * @param frame   文本帧内容
+     * @param session WebSocket会话
+     * @throws IOException 帧不是合法的 JSON 对象
+     */
+    public void dispatch(String frame, WebSocketSession session) throws IOException {
+        WebSocketDataWrapper<Object> request;
+        try {
+            request = frameDecoder.decode(frame);
+        } catch (WebSocketFrameDecoder.PayloadBindingException e) {
+            handleBindingFailure(e, session);
+            return;
+        }
+        dispatch(request, session);
+    }
+
+    /**
+     * 调度一帧二进制消息（会话协商了 chat.cbor 子协议），帧结构与文本帧相同
+     *
+     * @param frame   CBOR 编码的帧内容
+     * @param session WebSocket会话
+     * @throws IOException 帧不是合法的 CBOR map
+     */
+    public void dispatch(byte[] frame, WebSocketSession session) throws IOException {
+        WebSocketDataWrapper<Object> request;
+        try {
+            request = frameDecoder.decode(frame);
+        } catch (WebSocketFrameDecoder.PayloadBindingException e) {
+            handleBindingFailure(e, session);
+            return;
+        }
+        dispatch(request, session);
+    }
+
+    /**
+     * payload 绑定失败：与处理器内转换失败时的行为一致，回错误响应
+     */
+    private void handleBindingFailure(WebSocketFrameDecoder.PayloadBindingException e, WebSocketSession session) {
+        log.error("处理 WebSocket 请求时发生异常，接口: {}, 错误: {}", e.getInterfaceName(), e.getMessage(), e);
+        Object result = handleException(e, session);
+        if (result != null) {
+            sendErrorResponse(null, result.toString(), session);
+        }
+    }
+
     /**
      * 调度WebSocket请求
-     * 类似DispatcherServlet的doDispatch方法
+     * 按路由的执行模式在 I/O 线程或业务线程上执行，同一会话内保持请求顺序
      * 
      * @param webSocketDataWrapper WebSocket请求
      * @param session WebSocket会话
@@ -54,22 +128,64 @@ public class WebSocketDispatcher {
             log.warn("收到空的 WebSocket 请求");
             return;
         }
-        
+        if (handlerExecutor == null) {
+            doDispatch(webSocketDataWrapper, session);
+            return;
+        }
+        WsExecutionMode mode = webSocketDataWrapper.isBatchEnvelope()
+                ? resolveBatchMode(webSocketDataWrapper.getBatch())
+                : resolveMode(webSocketDataWrapper.getInterfaceName());
+        handlerExecutor.execute(session.getId(), mode,
+                () -> doDispatch(webSocketDataWrapper, session),
+                rejection -> sendRejectedResponse(webSocketDataWrapper, rejection, session));
+    }
+
+    private WsExecutionMode resolveMode(String interfaceName) {
+        HandlerMethod handlerMethod = interfaceName != null ? handlerMapping.getHandler(interfaceName) : null;
+        return handlerMethod != null ? handlerMethod.getExecutionMode() : WsExecutionMode.INLINE;
+    }
+
+    /**
+     * 批量信封整体在一个线程上执行：任一子请求的路由要求离开 I/O 线程，整个信封就按该模式执行
+     */
+    private WsExecutionMode resolveBatchMode(List<WebSocketDataWrapper<Object>> items) {
+        for (WebSocketDataWrapper<Object> item : items) {
+            String interfaceName = item.getInterfaceName();
+            HandlerMethod handlerMethod = interfaceName != null ? handlerMapping.getBatchHandler(interfaceName) : null;
+            WsExecutionMode mode = handlerMethod != null ? handlerMethod.getExecutionMode() : resolveMode(interfaceName);
+            if (mode != WsExecutionMode.INLINE) {
+                return mode;
+            }
+        }
+        return WsExecutionMode.INLINE;
+    }
+
+    /**
+     * 执行一次请求处理
+     * 类似DispatcherServlet的doDispatch方法
+     *
+     * @return 处理器返回 CompletionStage 时返回其完成信号（响应在完成后发送），否则返回 null
+     */
+    private CompletionStage<?> doDispatch(WebSocketDataWrapper<?> webSocketDataWrapper, WebSocketSession session) {
+        if (webSocketDataWrapper.isBatchEnvelope()) {
+            return dispatchBatch(webSocketDataWrapper, session);
+        }
         Object result = null;
         Exception exception = null;
+        boolean async = false;
         
         try {
             // 拦截器: preHandle
             if (interceptorRegistry != null && !interceptorRegistry.preHandle(session, webSocketDataWrapper)) {
                 log.debug("拦截器阻止了请求处理");
-                return;
+                return null;
             }
             
             // 1. 获取接口名称
             String interfaceName = extractInterfaceName(webSocketDataWrapper);
             if (interfaceName == null) {
                 log.warn("无法获取请求接口名称: {}", webSocketDataWrapper);
-                return;
+                return null;
             }
             
             // 2. 查找处理器方法（Handler Mapping阶段）
@@ -78,6 +194,15 @@ public class WebSocketDispatcher {
                 // 3. 调用处理器适配器（Handler Adapter阶段）
                 result = handlerAdapter.handle(handlerMethod, webSocketDataWrapper, session);
                 
+                // 处理器返回 CompletableFuture：完成后再执行 postHandle、发送响应和 afterCompletion
+                if (result instanceof CompletionStage) {
+                    async = true;
+                    return ((CompletionStage<?>) result).handle((value, error) -> {
+                        completeAsync(handlerMethod, webSocketDataWrapper, session, value, error);
+                        return null;
+                    });
+                }
+                
                 // 拦截器: postHandle
                 if (interceptorRegistry != null) {
                     interceptorRegistry.postHandle(session, webSocketDataWrapper);
@@ -94,6 +219,9 @@ public class WebSocketDispatcher {
                 sendNotFoundResponse(interfaceName, session);
             }
             
+        } catch (WsRejectionException e) {
+            exception = e;
+            sendRejection(webSocketDataWrapper.getInterfaceName(), e.getRejection(), session);
         } catch (Exception e) {
             exception = e;
             log.error("处理 WebSocket 请求时发生异常，接口: {}, 错误: {}", webSocketDataWrapper.getInterfaceName(), e.getMessage(), e);
@@ -103,13 +231,258 @@ public class WebSocketDispatcher {
                 sendErrorResponse(webSocketDataWrapper, result.toString(), session);
             }
         } finally {
-            // 拦截器: afterCompletion
+            // 拦截器: afterCompletion（异步结果由 completeAsync 负责）
+            if (!async && interceptorRegistry != null) {
+                interceptorRegistry.afterCompletion(session, webSocketDataWrapper, exception);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 处理器返回的 CompletionStage 完成后的收尾，与同步路径的 postHandle/响应/异常处理保持一致
+     */
+    private void completeAsync(HandlerMethod handlerMethod, WebSocketDataWrapper<?> webSocketDataWrapper,
+                               WebSocketSession session, Object value, Throwable error) {
+        Exception exception = null;
+        try {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            }
+            if (interceptorRegistry != null) {
+                interceptorRegistry.postHandle(session, webSocketDataWrapper);
+            }
+            if (value != null) {
+                sendAutomaticResponse(handlerMethod, value, session);
+            }
+            log.debug("成功处理 WebSocket 异步请求: {}", handlerMethod.getInterfaceName());
+        } catch (WsRejectionException e) {
+            exception = e;
+            sendRejection(webSocketDataWrapper.getInterfaceName(), e.getRejection(), session);
+        } catch (Exception e) {
+            exception = e;
+            log.error("处理 WebSocket 请求时发生异常，接口: {}, 错误: {}", webSocketDataWrapper.getInterfaceName(), e.getMessage(), e);
+            Object result = handleException(e, session);
+            if (result != null) {
+                sendErrorResponse(webSocketDataWrapper, result.toString(), session);
+            }
+        } finally {
             if (interceptorRegistry != null) {
                 interceptorRegistry.afterCompletion(session, webSocketDataWrapper, exception);
             }
         }
     }
     
+    /**
+     * 执行批量信封
+     * 拦截器对整个信封只执行一次（鉴权、限流等按一次请求计），子请求共享同一会话上下文；
+     * 声明了批量处理器的路由，同一信封内的子请求合并为一次调用，其余逐项调用单条处理器。
+     * 所有子请求（包括返回 CompletableFuture 的）完成后，按请求顺序回一帧 /batch 响应，每项各自带状态码
+     */
+    private CompletionStage<?> dispatchBatch(WebSocketDataWrapper<?> envelope, WebSocketSession session) {
+        List<WebSocketDataWrapper<Object>> items = envelope.getBatch();
+        Exception exception = null;
+        boolean handedOff = false;
+        try {
+            if (interceptorRegistry != null && !interceptorRegistry.preHandle(session, envelope)) {
+                log.debug("拦截器阻止了批量请求处理");
+                return null;
+            }
+
+            // 同一路由的子请求下标（仅限声明了批量处理器的路由）
+            Map<String, List<Integer>> batchGroups = new LinkedHashMap<>();
+            for (int i = 0; i < items.size(); i++) {
+                String interfaceName = items.get(i).getInterfaceName();
+                if (interfaceName != null && handlerMapping.getBatchHandler(interfaceName) != null) {
+                    batchGroups.computeIfAbsent(interfaceName, k -> new ArrayList<>()).add(i);
+                }
+            }
+
+            // 按首次出现的位置依次调用，各子请求的副作用顺序与请求顺序一致
+            @SuppressWarnings("unchecked")
+            WebSocketDataWrapper<Object>[] responses = new WebSocketDataWrapper[items.size()];
+            List<CompletableFuture<?>> pending = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                WebSocketDataWrapper<Object> item = items.get(i);
+                List<Integer> group = item.getInterfaceName() != null ? batchGroups.get(item.getInterfaceName()) : null;
+                if (group == null) {
+                    int index = i;
+                    pending.add(invokeBatchItem(item, session).thenAccept(response -> responses[index] = response));
+                } else if (group.get(0) == i) {
+                    pending.add(invokeBatchGroup(item.getInterfaceName(), group, items, session)
+                            .thenAccept(groupResponses -> {
+                                for (int k = 0; k < group.size(); k++) {
+                                    responses[group.get(k)] = groupResponses.get(k);
+                                }
+                            }));
+                }
+            }
+
+            handedOff = true;
+            CompletableFuture<Void> all = CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]));
+            if (all.isDone()) {
+                completeBatch(envelope, responses, session);
+                return null;
+            }
+            return all.handle((v, e) -> {
+                completeBatch(envelope, responses, session);
+                return null;
+            });
+        } catch (WsRejectionException e) {
+            exception = e;
+            sendRejection(envelope.getInterfaceName(), e.getRejection(), session);
+        } catch (Exception e) {
+            exception = e;
+            log.error("处理 WebSocket 批量请求时发生异常，错误: {}", e.getMessage(), e);
+            Object result = handleException(e, session);
+            if (result != null) {
+                sendErrorResponse(envelope, result.toString(), session);
+            }
+        } finally {
+            if (!handedOff && interceptorRegistry != null) {
+                interceptorRegistry.afterCompletion(session, envelope, exception);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 批量信封的收尾：postHandle、发送多路复用响应、afterCompletion 各执行一次
+     */
+    private void completeBatch(WebSocketDataWrapper<?> envelope, WebSocketDataWrapper<Object>[] responses,
+                               WebSocketSession session) {
+        Exception exception = null;
+        try {
+            if (interceptorRegistry != null) {
+                interceptorRegistry.postHandle(session, envelope);
+            }
+            WsResponseEntity.ok(WebSocketDataWrapper.batchResponse(Arrays.asList(responses)))
+                    .invokeSend(makeLocalSession(session));
+            log.debug("成功处理 WebSocket 批量请求: {} 项", responses.length);
+        } catch (Exception e) {
+            exception = e;
+            log.error("发送 WebSocket 批量响应失败", e);
+        } finally {
+            if (interceptorRegistry != null) {
+                interceptorRegistry.afterCompletion(session, envelope, exception);
+            }
+        }
+    }
+
+    /**
+     * 调用单条处理器执行一个子请求，异常转为该项的错误响应
+     */
+    private CompletableFuture<WebSocketDataWrapper<Object>> invokeBatchItem(WebSocketDataWrapper<Object> item,
+                                                                           WebSocketSession session) {
+        String interfaceName = item.getInterfaceName();
+        if (item.getErrorMessage() != null) {
+            // 解码阶段 payload 绑定失败
+            return CompletableFuture.completedFuture(
+                    WebSocketDataWrapper.failure(interfaceName, item.getErrorMessage(), item.getWebsocketCode()));
+        }
+        HandlerMethod handlerMethod = interfaceName != null ? handlerMapping.getHandler(interfaceName) : null;
+        if (handlerMethod == null) {
+            log.warn("未找到对应的 WebSocket 处理器: {}", interfaceName);
+            return CompletableFuture.completedFuture(
+                    WsRejection.NOT_FOUND.toWrapper(interfaceName != null ? interfaceName : "unknown"));
+        }
+        try {
+            Object result = handlerAdapter.handle(handlerMethod, item, session);
+            if (result instanceof CompletionStage) {
+                return ((CompletionStage<?>) result).handle((value, error) -> error != null
+                        ? batchItemFailure(interfaceName, error, session)
+                        : batchItemResponse(interfaceName, value)).toCompletableFuture();
+            }
+            return CompletableFuture.completedFuture(batchItemResponse(interfaceName, result));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(batchItemFailure(interfaceName, e, session));
+        }
+    }
+
+    /**
+     * 调用批量处理器一次处理同一路由的多个子请求，返回值按位置对应回各子请求
+     */
+    private CompletableFuture<List<WebSocketDataWrapper<Object>>> invokeBatchGroup(
+            String interfaceName, List<Integer> indices, List<WebSocketDataWrapper<Object>> items, WebSocketSession session) {
+        HandlerMethod handlerMethod = handlerMapping.getBatchHandler(interfaceName);
+        List<Object> payloads = new ArrayList<>(indices.size());
+        for (int index : indices) {
+            WebSocketDataWrapper<Object> item = items.get(index);
+            if (item.getErrorMessage() != null) {
+                // 有子项绑定失败时整组按单项错误返回，不把残缺的列表交给批量处理器
+                return CompletableFuture.completedFuture(failAll(interfaceName, indices.size(),
+                        item.getErrorMessage(), item.getWebsocketCode()));
+            }
+            payloads.add(item.getPayload());
+        }
+        WebSocketDataWrapper<Object> request = WebSocketDataWrapper.builder()
+                .interfaceName(interfaceName)
+                .version(items.get(indices.get(0)).getVersion())
+                .payload(payloads)
+                .build();
+        try {
+            Object result = handlerAdapter.handle(handlerMethod, request, session);
+            if (result instanceof CompletionStage) {
+                return ((CompletionStage<?>) result).handle((value, error) -> error != null
+                        ? failAll(interfaceName, indices.size(), batchItemFailure(interfaceName, error, session))
+                        : batchGroupResponses(interfaceName, indices.size(), value)).toCompletableFuture();
+            }
+            return CompletableFuture.completedFuture(batchGroupResponses(interfaceName, indices.size(), result));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(
+                    failAll(interfaceName, indices.size(), batchItemFailure(interfaceName, e, session)));
+        }
+    }
+
+    private List<WebSocketDataWrapper<Object>> batchGroupResponses(String interfaceName, int size, Object value) {
+        if (!(value instanceof List) || ((List<?>) value).size() != size) {
+            log.error("批量处理器返回结果数量与请求不一致: {}, 期望 {} 项", interfaceName, size);
+            return failAll(interfaceName, size, "批量处理器返回结果数量与请求不一致", "500");
+        }
+        List<WebSocketDataWrapper<Object>> responses = new ArrayList<>(size);
+        for (Object element : (List<?>) value) {
+            responses.add(batchItemResponse(interfaceName, element));
+        }
+        return responses;
+    }
+
+    private List<WebSocketDataWrapper<Object>> failAll(String interfaceName, int size, String errorMessage, String code) {
+        return failAll(interfaceName, size, WebSocketDataWrapper.failure(interfaceName, errorMessage, code));
+    }
+
+    private List<WebSocketDataWrapper<Object>> failAll(String interfaceName, int size, WebSocketDataWrapper<Object> failure) {
+        return new ArrayList<>(Collections.nCopies(size, failure));
+    }
+
+    /**
+     * 子请求的返回值转为响应项：WsRejection 转为错误项，WsResponseEntity 取其 body，
+     * 已是 WebSocketDataWrapper 的原样使用，其余按成功包装
+     */
+    @SuppressWarnings("unchecked")
+    private WebSocketDataWrapper<Object> batchItemResponse(String interfaceName, Object value) {
+        if (value instanceof WsRejection) {
+            return ((WsRejection) value).toWrapper(interfaceName);
+        }
+        Object body = value instanceof WsResponseEntity ? ((WsResponseEntity<?>) value).getBody() : value;
+        if (body instanceof WebSocketDataWrapper) {
+            return (WebSocketDataWrapper<Object>) body;
+        }
+        return WebSocketDataWrapper.success(interfaceName, body, body != null ? "200" : "204");
+    }
+
+    private WebSocketDataWrapper<Object> batchItemFailure(String interfaceName, Throwable error, WebSocketSession session) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof WsRejectionException) {
+            log.debug("WebSocket 批量子请求被拒绝，接口: {}, {}", interfaceName, ((WsRejectionException) cause).getRejection());
+            return ((WsRejectionException) cause).getRejection().toWrapper(interfaceName);
+        }
+        Exception e = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        log.error("处理 WebSocket 批量子请求时发生异常，接口: {}, 错误: {}", interfaceName, e.getMessage(), e);
+        Object result = handleException(e, session);
+        return WebSocketDataWrapper.failure(interfaceName, result != null ? result.toString() : e.getMessage(), "500");
+    }
+
     /**
      * 处理异常
      */
@@ -140,6 +513,11 @@ public class WebSocketDispatcher {
      */
     private void sendAutomaticResponse(HandlerMethod handlerMethod, Object result, WebSocketSession session) {
         try {
+            if (result instanceof WsRejection) {
+                // Controller返回了拒绝结果，按请求接口名回预编码的错误帧
+                sendRejection(handlerMethod.getInterfaceName(), (WsRejection) result, session);
+                return;
+            }
             WsSession wsSession = makeLocalSession(session);
             if (result instanceof WsResponseEntity) {
                 // Controller返回了WsResponseEntity，直接发送（开发者控制了协议元数据）
@@ -174,25 +552,42 @@ public class WebSocketDispatcher {
         }
     }
 
+    /**
+     * 发送拒绝响应：带上原请求的接口名，客户端可据此退避重试
+     * 会话未完成请求超限回 429，业务线程池已满回 503
+     */
+    private void sendRejectedResponse(WebSocketDataWrapper<?> webSocketDataWrapper, WsHandlerExecutor.Rejection rejection,
+                                      WebSocketSession session) {
+        sendRejection(webSocketDataWrapper.getInterfaceName(),
+                rejection == WsHandlerExecutor.Rejection.SESSION_LIMIT ? WsRejection.TOO_MANY_REQUESTS : WsRejection.SERVER_BUSY,
+                session);
+    }
+
     /**
      * 发送未找到处理器(404)响应
      */
     private void sendNotFoundResponse(String interfaceName, WebSocketSession session) {
+        sendRejection(interfaceName != null ? interfaceName : "unknown", WsRejection.NOT_FOUND, session);
+    }
+
+    /**
+     * 发送拒绝结果对应的错误帧
+     * 拒绝属于预期内的失败（限流、安全拦截、校验不通过），不经过异常处理器解析，也不打栈，只记 debug 日志
+     */
+    private void sendRejection(String interfaceName, WsRejection rejection, WebSocketSession session) {
+        String iface = interfaceName != null ? interfaceName : "error";
         try {
-            String iface = interfaceName != null ? interfaceName : "unknown";
-            WebSocketDataWrapper<String> notFound = WebSocketDataWrapper.failure(
-                iface,
-                "未找到对应的 WebSocket 处理器",
-                "404"
-            );
-            WsResponseEntity.ok(notFound).invokeSend(makeLocalSession(session));
-            log.debug("发送404响应: {}", iface);
+            makeLocalSession(session).sendMessage(rejection.frame(iface, WsFrameFormat.of(session)));
+            log.debug("发送拒绝响应: {} -> {}", iface, rejection);
         } catch (Exception e) {
-            log.error("发送404响应失败", e);
+            log.error("发送拒绝响应失败: {}", iface, e);
         }
     }
 
     private WsSession makeLocalSession(WebSocketSession session) {
+        if (outboundQueueManager != null) {
+            return new LocalWsSession(session, getCurrentInstanceId(), outboundQueueManager.queueFor(session));
+        }
         return new LocalWsSession(session, getCurrentInstanceId());
     }
 
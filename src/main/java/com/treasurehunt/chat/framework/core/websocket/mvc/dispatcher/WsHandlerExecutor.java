@@ -0,0 +1,230 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.dispatcher;
+
+import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsExecutionMode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * WebSocket 处理器执行器
+ *
+ * 按 @WsRequestMapping 的执行模式决定处理器在哪个线程上运行，并保证同一会话内请求严格有序：
+ * - 每个会话维护一条任务链，只要链上还有未完成的任务（包括处理器返回、尚未完成的 CompletableFuture），
+ *   后续请求（即使是 INLINE 路由）都排到链尾，前一个完成后才提交下一个
+ * - 会话空闲时 INLINE 路由直接在调用线程执行，不经过任何队列
+ * - 链上没有任务时立即从表中移除，表大小 ≈ 有在途请求的会话数，会话关闭无需额外清理
+ * - 每个会话链上最多 session-max-pending 个未完成请求（含正在执行的），超过的请求直接拒绝，
+ *   单个客户端狂发帧不会无限堆积内存，也不会把自己的排队延迟转嫁给后续请求
+ *
+ * 跨会话公平：一个会话同一时刻最多只有一个任务在业务线程池中（前一个完成后才提交下一个，
+ * 包括返回 CompletableFuture 的异步处理器），下一个任务排到池队列尾部，
+ * 因此池队列天然按会话轮转，重度用户只能占用一个执行位，不会饿死同 Pod 上的其它会话
+ *
+ * VIRTUAL 通过反射获取 Executors.newVirtualThreadPerTaskExecutor（项目按 Java 17 编译），
+ * 运行时不可用时退回有界线程池
+ */
+@Slf4j
+@Component
+public class WsHandlerExecutor {
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    /** 有界业务线程池大小 */
+    @Value("${websocket.mvc.executor.pool-size:32}")
+    private int poolSize;
+
+    /** 有界业务线程池等待队列长度，满了之后拒绝（回"服务繁忙"） */
+    @Value("${websocket.mvc.executor.queue-capacity:2048}")
+    private int queueCapacity;
+
+    /** 单个会话未完成请求上限（含正在执行的），超过后拒绝（回"请求过多"） */
+    @Value("${websocket.mvc.executor.session-max-pending:16}")
+    private int sessionMaxPending;
+
+    private final ConcurrentHashMap<String, SessionChain> chains = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor pool;
+    private ExecutorService virtualExecutor;
+    private Counter sessionRejected;
+    private Counter poolRejected;
+
+    @PostConstruct
+    public void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ws-handler-");
+        threadFactory.setDaemon(true);
+        pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        virtualExecutor = createVirtualExecutor();
+
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        Gauge.builder("chat.ws.handler.sessions.inflight", chains, ConcurrentHashMap::size)
+                .description("有在途处理器任务的会话数")
+                .register(registry);
+        Gauge.builder("chat.ws.handler.pool.queue", pool, p -> p.getQueue().size())
+                .description("业务线程池排队任务数")
+                .register(registry);
+        sessionRejected = Counter.builder("chat.ws.handler.rejected").tag("reason", "session")
+                .description("被拒绝的 WebSocket 请求数").register(registry);
+        poolRejected = Counter.builder("chat.ws.handler.rejected").tag("reason", "pool")
+                .description("被拒绝的 WebSocket 请求数").register(registry);
+        log.info("WebSocket处理器执行器初始化: poolSize={}, queueCapacity={}, sessionMaxPending={}, virtualThreads={}",
+                poolSize, queueCapacity, sessionMaxPending, virtualExecutor != null);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        pool.shutdown();
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 按执行模式执行一个请求，同一会话内保持顺序
+     *
+     * @param sessionId  会话ID
+     * @param mode       执行模式
+     * @param task       请求处理；返回非 null 的 CompletionStage 时，它完成后才算该请求结束
+     * @param onRejected 会话排队已满或业务线程池已满时回调
+     */
+    public void execute(String sessionId, WsExecutionMode mode, Supplier<CompletionStage<?>> task,
+                        Consumer<Rejection> onRejected) {
+        Executor executor = executorFor(mode);
+        if (executor == null && !chains.containsKey(sessionId)) {
+            // INLINE 且会话空闲：直接执行，只有返回了未完成的 future 才需要挂到链上（此时链为空，不会超限）
+            CompletionStage<?> stage = runTask(task);
+            if (stage != null && !stage.toCompletableFuture().isDone()) {
+                enqueue(sessionId, (previous, done) -> stage.whenComplete((r, e) -> done.complete(null)), Integer.MAX_VALUE);
+            }
+            return;
+        }
+        Executor target = executor != null ? executor : pool;
+        boolean accepted = enqueue(sessionId, (previous, done) -> previous.whenComplete((v, e) -> {
+            try {
+                target.execute(() -> {
+                    CompletionStage<?> stage = runTask(task);
+                    if (stage == null) {
+                        done.complete(null);
+                    } else {
+                        stage.whenComplete((r, ex) -> done.complete(null));
+                    }
+                });
+            } catch (RejectedExecutionException rejected) {
+                log.warn("WebSocket处理器线程池已满，拒绝请求: sessionId={}", sessionId);
+                poolRejected.increment();
+                try {
+                    onRejected.accept(Rejection.POOL_FULL);
+                } finally {
+                    done.complete(null);
+                }
+            }
+        }), sessionMaxPending);
+        if (!accepted) {
+            log.warn("WebSocket会话未完成请求数超过上限，拒绝请求: sessionId={}, limit={}", sessionId, sessionMaxPending);
+            sessionRejected.increment();
+            onRejected.accept(Rejection.SESSION_LIMIT);
+        }
+    }
+
+    private Executor executorFor(WsExecutionMode mode) {
+        if (mode == null || mode == WsExecutionMode.INLINE) {
+            return null;
+        }
+        if (mode == WsExecutionMode.VIRTUAL && virtualExecutor != null) {
+            return virtualExecutor;
+        }
+        return pool;
+    }
+
+    /**
+     * 把一个任务挂到会话链尾
+     *
+     * @param limit 会话链上允许的未完成任务数上限
+     * @return 链已满时返回 false，任务未挂上
+     */
+    private boolean enqueue(String sessionId, Link link, int limit) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<Void>> previous = new AtomicReference<>();
+        chains.compute(sessionId, (id, existing) -> {
+            SessionChain c = existing != null ? existing : new SessionChain();
+            if (c.pending >= limit) {
+                return existing;
+            }
+            previous.set(c.tail);
+            c.tail = done;
+            c.pending++;
+            return c;
+        });
+        if (previous.get() == null) {
+            return false;
+        }
+        // 链上最后一个任务完成后移除，会话关闭后也不会残留
+        done.whenComplete((v, e) -> chains.computeIfPresent(sessionId, (id, c) -> --c.pending == 0 ? null : c));
+        link.attach(previous.get(), done);
+        return true;
+    }
+
+    private CompletionStage<?> runTask(Supplier<CompletionStage<?>> task) {
+        try {
+            return task.get();
+        } catch (Throwable t) {
+            log.error("WebSocket处理器任务执行异常", t);
+            return null;
+        }
+    }
+
+    private ExecutorService createVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            log.info("当前JDK不支持虚拟线程，VIRTUAL 路由退回业务线程池执行");
+            return null;
+        }
+    }
+
+    /**
+     * 拒绝原因
+     */
+    public enum Rejection {
+        /** 该会话未完成请求数已达上限 */
+        SESSION_LIMIT,
+        /** 业务线程池及其队列已满 */
+        POOL_FULL
+    }
+
+    @FunctionalInterface
+    private interface Link {
+        void attach(CompletableFuture<Void> previous, CompletableFuture<Void> done);
+    }
+
+    /**
+     * 会话任务链：tail 为最后一个任务的完成信号，pending 为链上未完成任务数
+     */
+    private static final class SessionChain {
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private int pending;
+    }
+}
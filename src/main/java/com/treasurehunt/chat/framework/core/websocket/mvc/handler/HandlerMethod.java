@@ -1,5 +1,7 @@
 package com.treasurehunt.chat.framework.core.websocket.mvc.handler;
 
+import com.fasterxml.jackson.databind.JavaType;
+import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsExecutionMode;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestMapping;
 
 import java.lang.invoke.MethodHandle;
@@ -18,26 +20,46 @@ public class HandlerMethod {
     private final ParameterInfo[] parameters;
     private final String interfaceName;
     private final String responseInterfaceName;
+    private final JavaType payloadJavaType;
+    private final LambdaHandlerInvokers.HandlerInvoker invoker;
     
     public HandlerMethod(Object bean, Method method, MethodHandle methodHandle, 
                        WsRequestMapping mappingAnnotation, ParameterInfo[] parameters) {
+        this(bean, method, methodHandle, mappingAnnotation, parameters, null);
+    }
+    
+    public HandlerMethod(Object bean, Method method, MethodHandle methodHandle, 
+                       WsRequestMapping mappingAnnotation, ParameterInfo[] parameters,
+                       LambdaHandlerInvokers.HandlerInvoker invoker) {
         this.bean = bean;
+        this.invoker = invoker;
         this.method = method;
         this.methodHandle = methodHandle;
         this.mappingAnnotation = mappingAnnotation;
         this.parameters = parameters;
         this.interfaceName = mappingAnnotation.value();
         this.responseInterfaceName = determineResponseInterfaceName();
+        this.payloadJavaType = determinePayloadJavaType();
     }
     
     /**
-     * 使用MethodHandle调用方法，性能优于反射
+     * 调用处理器方法：优先使用启动时生成的直接调用器，不支持的签名退回 MethodHandle
      * @return 方法调用的返回值
      */
     public Object invoke(Object[] args) throws Throwable {
+        if (invoker != null) {
+            return invoker.invoke(args);
+        }
         return methodHandle.invokeWithArguments(args);
     }
     
+    /**
+     * 是否使用直接调用器
+     */
+    public boolean isDirectInvoker() {
+        return invoker != null;
+    }
+    
     /**
      * 确定响应接口名称
      */
@@ -47,6 +69,18 @@ public class HandlerMethod {
                interfaceName.substring(1);
     }
     
+    /**
+     * 确定payload的目标类型（第一个@WsRequestBody参数），解码帧时直接反序列化为该类型
+     */
+    private JavaType determinePayloadJavaType() {
+        for (ParameterInfo parameter : parameters) {
+            if (parameter.isWsPayload()) {
+                return parameter.getPayloadJavaType();
+            }
+        }
+        return null;
+    }
+    
     // Getters
     public Object getBean() { return bean; }
     public Method getMethod() { return method; }
@@ -55,6 +89,8 @@ public class HandlerMethod {
     public ParameterInfo[] getParameters() { return parameters; }
     public String getInterfaceName() { return interfaceName; }
     public String getResponseInterfaceName() { return responseInterfaceName; }
+    public JavaType getPayloadJavaType() { return payloadJavaType; }
+    public WsExecutionMode getExecutionMode() { return mappingAnnotation.execution(); }
     
     /**
      * 参数信息
@@ -63,18 +99,25 @@ public class HandlerMethod {
         private final Class<?> type;
         private final boolean isWsPayload;
         private final Class<?> payloadType;
+        private final JavaType payloadJavaType;
         private final int index;
         
         public ParameterInfo(Class<?> type, boolean isWsPayload, Class<?> payloadType, int index) {
+            this(type, isWsPayload, payloadType, null, index);
+        }
+        
+        public ParameterInfo(Class<?> type, boolean isWsPayload, Class<?> payloadType, JavaType payloadJavaType, int index) {
             this.type = type;
             this.isWsPayload = isWsPayload;
             this.payloadType = payloadType;
+            this.payloadJavaType = payloadJavaType;
             this.index = index;
         }
         
         public Class<?> getType() { return type; }
         public boolean isWsPayload() { return isWsPayload; }
         public Class<?> getPayloadType() { return payloadType; }
+        public JavaType getPayloadJavaType() { return payloadJavaType; }
         public int getIndex() { return index; }
     }
 }
@@ -11,6 +11,8 @@ public interface WebSocketInterceptor {
     
     /**
      * 在消息处理前执行
+     * 需要给客户端回错误帧时（限流、鉴权失败等），抛出 WsRejection#asException() 的预分配无栈异常，
+     * 调度器直接回对应错误帧；返回 false 则静默中断
      * @param session WebSocket会话
      * @param message 原始消息
      * @return true继续处理，false中断
@@ -0,0 +1,157 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.interceptor;
+
+import com.treasurehunt.chat.framework.core.websocket.mvc.mapping.WebSocketHandlerMapping;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket 路由级指标拦截器
+ *
+ * 按 interfaceName 记录：
+ * - chat.ws.route.latency：preHandle 到 afterCompletion 的耗时（含异步处理器的 CompletableFuture），计数即吞吐
+ * - chat.ws.route.frame.bytes：入站帧字节数（文本帧按 UTF-8 字节数）
+ * - chat.ws.route.errors：按异常类型计数
+ * - chat.ws.route.inflight：正在处理的请求数
+ *
+ * 每个路由的 Meter 首次出现时构建并缓存，之后每次调用只是一次 Map 查找，不再创建 Tags；
+ * 未注册的 interfaceName 统一归到 route=UNKNOWN，避免客户端随意传值导致指标基数膨胀。
+ * 排在所有拦截器之前，耗时包含其它拦截器的开销
+ */
+@Slf4j
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@ConditionalOnProperty(name = "websocket.mvc.metrics.enabled", havingValue = "true", matchIfMissing = true)
+public class WebSocketMetricsInterceptor implements WebSocketInterceptor {
+
+    private static final String UNKNOWN_ROUTE = "UNKNOWN";
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    @Qualifier("customWebSocketHandlerMapping")
+    private WebSocketHandlerMapping handlerMapping;
+
+    /** 是否发布耗时直方图桶（用于在监控端聚合 P99），关闭后只有 count/sum/max */
+    @Value("${websocket.mvc.metrics.histogram:true}")
+    private boolean histogram;
+
+    private MeterRegistry registry;
+
+    /** route -> 该路由的全部 Meter */
+    private final ConcurrentHashMap<String, RouteMeters> routes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        registry = meterRegistry != null ? meterRegistry : Metrics.globalRegistry;
+        log.info("WebSocket路由指标拦截器已启用: histogram={}", histogram);
+    }
+
+    @Override
+    public boolean preHandle(WebSocketSession session, WebSocketDataWrapper message) {
+        RouteMeters meters = metersFor(message.getInterfaceName());
+        meters.inflight.incrementAndGet();
+        if (message.getFrameSize() > 0) {
+            meters.frameBytes.record(message.getFrameSize());
+        }
+        message.setDispatchStartNanos(System.nanoTime());
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(WebSocketSession session, WebSocketDataWrapper message, Exception ex) {
+        long start = message.getDispatchStartNanos();
+        if (start == 0) {
+            // 更靠前的拦截器中断了请求，本拦截器的 preHandle 未执行
+            return;
+        }
+        message.setDispatchStartNanos(0);
+        RouteMeters meters = metersFor(message.getInterfaceName());
+        meters.inflight.decrementAndGet();
+        meters.latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (ex != null) {
+            meters.errorCounter(ex.getClass()).increment();
+        }
+    }
+
+    private RouteMeters metersFor(String interfaceName) {
+        String route = interfaceName != null ? interfaceName : UNKNOWN_ROUTE;
+        RouteMeters meters = routes.get(route);
+        if (meters != null) {
+            return meters;
+        }
+        if (!isKnownRoute(route)) {
+            route = UNKNOWN_ROUTE;
+        }
+        return routes.computeIfAbsent(route, RouteMeters::new);
+    }
+
+    private boolean isKnownRoute(String route) {
+        return WebSocketDataWrapper.BATCH_INTERFACE.equals(route)
+                || handlerMapping.getHandler(route) != null
+                || handlerMapping.getBatchHandler(route) != null;
+    }
+
+    /**
+     * 单个路由的 Meter 集合
+     */
+    private final class RouteMeters {
+
+        private final String route;
+        private final Timer latency;
+        private final DistributionSummary frameBytes;
+        private final AtomicInteger inflight = new AtomicInteger();
+        /** 异常类型 -> 计数器，异常类型有限，按需构建 */
+        private final ConcurrentHashMap<Class<?>, Counter> errors = new ConcurrentHashMap<>();
+
+        private RouteMeters(String route) {
+            this.route = route;
+            this.latency = Timer.builder("chat.ws.route.latency")
+                    .tag("route", route)
+                    .publishPercentileHistogram(histogram)
+                    .description("WebSocket 路由处理耗时")
+                    .register(registry);
+            this.frameBytes = DistributionSummary.builder("chat.ws.route.frame.bytes")
+                    .tag("route", route)
+                    .baseUnit("bytes")
+                    .publishPercentileHistogram(histogram)
+                    .description("WebSocket 路由入站帧大小")
+                    .register(registry);
+            Gauge.builder("chat.ws.route.inflight", inflight, AtomicInteger::get)
+                    .tag("route", route)
+                    .description("WebSocket 路由正在处理的请求数")
+                    .register(registry);
+        }
+
+        private Counter errorCounter(Class<?> exceptionType) {
+            Counter counter = errors.get(exceptionType);
+            if (counter != null) {
+                return counter;
+            }
+            return errors.computeIfAbsent(exceptionType, type -> Counter.builder("chat.ws.route.errors")
+                    .tag("route", route)
+                    .tag("exception", type.getSimpleName())
+                    .description("WebSocket 路由处理异常数")
+                    .register(registry));
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package com.treasurehunt.chat.framework.core.websocket.mvc.mapping;
 
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestBody;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestMapping;
 import com.treasurehunt.chat.framework.core.websocket.mvc.handler.HandlerMethod;
+import com.treasurehunt.chat.framework.core.websocket.mvc.handler.LambdaHandlerInvokers;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsController;
 import com.treasurehunt.chat.framework.core.websocket.mvc.config.EnableWebSocketMvc;
 import org.springframework.context.ApplicationContext;
@@ -19,6 +23,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -33,9 +38,16 @@ public class WebSocketHandlerMapping {
     @Autowired
     private ApplicationContext applicationContext;
     
+    /** 是否为处理器方法生成 LambdaMetafactory 直接调用器（关闭后统一走 MethodHandle） */
+    @Value("${websocket.mvc.lambda-invoker:true}")
+    private boolean lambdaInvokerEnabled;
+    
     // interfaceName -> HandlerMethod 映射表（性能优化：启动时就建立缓存）
     private final Map<String, HandlerMethod> handlerMap = new HashMap<>();
     
+    // interfaceName -> 批量处理器（@WsRequestMapping(batch = true)），与单条处理器可共用同一路径
+    private final Map<String, HandlerMethod> batchHandlerMap = new HashMap<>();
+    
     /**
      * 初始化所有处理器映射
      */
@@ -57,7 +69,8 @@ public class WebSocketHandlerMapping {
             }
         }
         
-        log.info("WebSocket 处理器映射初始化完成，共注册 {} 个处理器", handlerMap.size());
+        log.info("WebSocket 处理器映射初始化完成，共注册 {} 个处理器，{} 个批量处理器",
+                handlerMap.size(), batchHandlerMap.size());
     }
 
     private Set<String> resolveEnabledBasePackages() {
@@ -116,8 +129,16 @@ public class WebSocketHandlerMapping {
                     continue;
                 }
                 
+                // 批量处理器的 @WsRequestBody 必须是 List
+                if (annotation.batch() && !isValidBatchMethod(method)) {
+                    log.error("跳过无效的 WebSocket 批量处理器方法: {}.{}, @WsRequestBody 参数必须是 List",
+                            controllerName, method.getName());
+                    continue;
+                }
+                Map<String, HandlerMethod> targetMap = annotation.batch() ? batchHandlerMap : handlerMap;
+                
                 // 检查路径冲突：如果已存在相同的路径，直接报错，不允许启动
-                HandlerMethod existingHandler = handlerMap.get(interfaceName);
+                HandlerMethod existingHandler = targetMap.get(interfaceName);
                 if (existingHandler != null) {
                     String existingControllerName = existingHandler.getBean().getClass().getSimpleName();
                     String existingMethodName = existingHandler.getMethod().getName();
@@ -143,13 +164,18 @@ public class WebSocketHandlerMapping {
                         .findVirtual(controllerClass, method.getName(), methodType)
                         .bindTo(controller);
                     
+                    // 生成直接调用器（性能优化：避免 invokeWithArguments 的通用路径），失败时为 null
+                    LambdaHandlerInvokers.HandlerInvoker invoker = lambdaInvokerEnabled
+                        ? LambdaHandlerInvokers.create(controller, method) : null;
+                    
                     HandlerMethod handlerMethod = new HandlerMethod(
-                        controller, method, methodHandle, annotation, parameterInfos
+                        controller, method, methodHandle, annotation, parameterInfos, invoker
                     );
                     
-                    handlerMap.put(interfaceName, handlerMethod);
-                    log.info("注册 WebSocket 处理器: {} -> {}.{}", 
-                            interfaceName, controllerName, method.getName());
+                    targetMap.put(interfaceName, handlerMethod);
+                    log.info("注册 WebSocket {}处理器: {} -> {}.{}, invoker={}", 
+                            annotation.batch() ? "批量" : "", interfaceName, controllerName, method.getName(),
+                            handlerMethod.isDirectInvoker() ? "lambda" : "methodHandle");
                 } catch (Exception e) {
                     log.error("创建处理器失败: {}.{}", controllerName, method.getName(), e);
                     throw new IllegalStateException("WebSocket处理器注册失败: " + controllerName + "." + method.getName(), e);
@@ -215,6 +241,14 @@ public class WebSocketHandlerMapping {
         return true;
     }
     
+    /**
+     * 批量处理器：恰好一个 @WsRequestBody List 参数 + WebSocketSession
+     */
+    private boolean isValidBatchMethod(Method method) {
+        Class<?>[] paramTypes = method.getParameterTypes();
+        return paramTypes.length == 2 && List.class.isAssignableFrom(paramTypes[0]);
+    }
+    
     /**
      * 分析参数信息（性能优化：启动时预分析）
      */
@@ -235,9 +269,13 @@ public class WebSocketHandlerMapping {
                 WsRequestBody payloadAnnotation = param.getAnnotation(WsRequestBody.class);
                 Class<?> payloadType = payloadAnnotation.value() != Void.class 
                     ? payloadAnnotation.value() : paramType;
+                // 预先构造 JavaType（保留 List<ChatMessage> 等泛型信息），解码时一次反序列化到位
+                JavaType payloadJavaType = payloadAnnotation.value() != Void.class
+                    ? TypeFactory.defaultInstance().constructType(payloadType)
+                    : TypeFactory.defaultInstance().constructType(param.getParameterizedType());
                     
                 parameterInfos[i] = new HandlerMethod.ParameterInfo(
-                    paramType, true, payloadType, i);
+                    paramType, true, payloadType, payloadJavaType, i);
             }
         }
         
@@ -264,6 +302,13 @@ public class WebSocketHandlerMapping {
         return handlerMap.get(interfaceName);
     }
     
+    /**
+     * 根据接口名称获取批量处理器方法（未声明批量处理器时返回 null）
+     */
+    public HandlerMethod getBatchHandler(String interfaceName) {
+        return batchHandlerMap.get(interfaceName);
+    }
+    
     /**
      * 获取所有已注册的接口名称
      */
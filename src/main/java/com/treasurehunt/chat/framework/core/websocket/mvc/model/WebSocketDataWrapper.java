@@ -1,5 +1,7 @@
 package com.treasurehunt.chat.framework.core.websocket.mvc.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -7,6 +9,7 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * WebSocket消息包装器（泛型版本）
@@ -21,6 +24,13 @@ import java.io.Serializable;
  *   "errorMessage": null
  * }
  * 
+ * 批量信封（interfaceName 为 /batch）：
+ * {
+ *   "interfaceName": "/batch",
+ *   "batch": [ { "interfaceName": "/pullMessage", "payload": { ... } }, { "interfaceName": "/checkMessage", "payload": { ... } } ]
+ * }
+ * 服务端按顺序执行后回一帧 /batch 响应，batch 中每项是对应请求的完整响应（各自的 success / websocketCode / errorMessage）
+ * 
  * | 阶段                  | 状态码体系                    | 示例               |
 | ------------------- | ------------------------ | ---------------- |
 | 握手阶段（HTTP）          | ✅ 使用 HTTP 状态码            | 101、400、403、500  |
@@ -63,7 +73,38 @@ public class WebSocketDataWrapper<T> implements Serializable {
 
         private String errorMessage;
 
+        /**
+         * 批量信封中的子请求/子响应，仅 /batch 帧使用；为 null 时不输出，普通帧格式不变
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private List<WebSocketDataWrapper<Object>> batch;
+
+        /**
+         * 入站帧字节数（文本帧按 UTF-8 编码后的字节数，二进制帧按原始字节数），由解码器填写，仅服务端内部使用，不参与序列化
+         */
+        @JsonIgnore
+        private transient int frameSize;
+
+        /**
+         * 开始处理的时间（System.nanoTime），由指标拦截器在 preHandle 填写，0 表示未计时
+         */
+        @JsonIgnore
+        private transient long dispatchStartNanos;
+
         private static final long serialVersionUID = 1L;
+
+        /**
+         * 批量信封的接口名
+         */
+        public static final String BATCH_INTERFACE = "/batch";
+    
+    /**
+     * 是否为批量信封
+     */
+    @JsonIgnore
+    public boolean isBatchEnvelope() {
+        return BATCH_INTERFACE.equals(interfaceName) && batch != null;
+    }
     
     /**
      * 获取接口名称（用于路由）
@@ -166,6 +207,22 @@ public class WebSocketDataWrapper<T> implements Serializable {
                 .build();
     }
 
+    /**
+     * 创建批量信封响应
+     *
+     * @param items 每个子请求对应的响应，顺序与请求一致
+     * @return 批量响应
+     */
+    public static WebSocketDataWrapper<Object> batchResponse(List<WebSocketDataWrapper<Object>> items) {
+        return WebSocketDataWrapper.<Object>builder()
+                .interfaceName(BATCH_INTERFACE)
+                .version(1)
+                .success(true)
+                .websocketCode("200")
+                .batch(items)
+                .build();
+    }
+
     @Override
     public String toString() {
         return "WebSocketDataWrapper{" +
@@ -175,6 +232,7 @@ public class WebSocketDataWrapper<T> implements Serializable {
                 ", success=" + success +
                 ", websocketCode='" + websocketCode + '\'' +
                 ", errorMessage='" + errorMessage + '\'' +
+                (batch != null ? ", batch=" + batch : "") +
                 '}';
     }
 }
@@ -0,0 +1,96 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.model;
+
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 轻量拒绝结果 - 限流、安全拦截、参数校验等"预期内失败"的信号
+ *
+ * 热路径上的拒绝不再走 异常 → 栈回溯 → WebSocketExceptionHandlerResolver 查找 → error 日志：
+ * - 处理器可以直接返回 WsRejection，调度器按请求的 interfaceName 回错误帧
+ * - 拦截器、服务层等不便改返回值的地方抛 {@link #asException()}：异常实例随 WsRejection 预先创建、不带栈，
+ *   抛出时零分配，调度器识别后直接回错误帧，不经过异常处理器解析
+ * - 错误帧按 (接口名, 编码格式) 缓存编码结果，同一种拒绝重复发生时不再重复序列化
+ *
+ * 实例不可变，推荐声明为常量复用
+ */
+public final class WsRejection {
+
+    public static final WsRejection NOT_FOUND = new WsRejection("404", "未找到对应的 WebSocket 处理器");
+    public static final WsRejection TOO_MANY_REQUESTS = new WsRejection("429", "请求过多，请稍后重试");
+    public static final WsRejection SERVER_BUSY = new WsRejection("503", "服务繁忙，请稍后重试");
+
+    /** 单个拒绝缓存的错误帧上限，interfaceName 由客户端传入，超过后不再缓存 */
+    private static final int MAX_CACHED_FRAMES = 256;
+
+    private final String code;
+    private final String message;
+    private final WsRejectionException exception;
+    /** 编码格式 + 接口名 -> 已编码的错误帧 */
+    private final ConcurrentHashMap<String, WebSocketMessage<?>> frames = new ConcurrentHashMap<>();
+
+    private WsRejection(String code, String message) {
+        this.code = code;
+        this.message = message;
+        this.exception = new WsRejectionException(this);
+    }
+
+    public static WsRejection of(String code, String message) {
+        return new WsRejection(code, message);
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * 预先创建的无栈异常，供不便改返回值的调用链抛出
+     */
+    public WsRejectionException asException() {
+        return exception;
+    }
+
+    /**
+     * 转为响应包装（批量响应中的单项、需要附带载荷的场景）
+     */
+    public <T> WebSocketDataWrapper<T> toWrapper(String interfaceName) {
+        return WebSocketDataWrapper.failure(interfaceName, message, code);
+    }
+
+    public <T> WebSocketDataWrapper<T> toWrapper(String interfaceName, T payload) {
+        return WebSocketDataWrapper.failure(interfaceName, message, code, payload);
+    }
+
+    /**
+     * 获取（必要时编码并缓存）错误帧
+     */
+    public WebSocketMessage<?> frame(String interfaceName, WsFrameFormat format) throws IOException {
+        String key = format.name() + interfaceName;
+        WebSocketMessage<?> frame = frames.get(key);
+        if (frame == null) {
+            frame = WsMessageCodec.encode(toWrapper(interfaceName), format);
+            if (frames.size() < MAX_CACHED_FRAMES) {
+                frames.putIfAbsent(key, frame);
+            }
+        }
+        if (frame instanceof BinaryMessage) {
+            // ByteBuffer 的读位置在发送时会前移，每次发送用共享底层字节的独立视图
+            return new BinaryMessage(((BinaryMessage) frame).getPayload().duplicate(), true);
+        }
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        return "WsRejection{code='" + code + "', message='" + message + "'}";
+    }
+}
@@ -0,0 +1,23 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.model;
+
+/**
+ * 携带 {@link WsRejection} 的无栈异常
+ *
+ * 关闭栈回溯与 suppressed 记录，实例随 WsRejection 预先创建并复用，抛出时没有 fillInStackTrace 开销。
+ * 调度器捕获后直接按 WsRejection 回错误帧，不经过 WebSocketExceptionHandlerResolver，也不打 error 日志
+ */
+public final class WsRejectionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient WsRejection rejection;
+
+    WsRejectionException(WsRejection rejection) {
+        super(rejection.getMessage(), null, false, false);
+        this.rejection = rejection;
+    }
+
+    public WsRejection getRejection() {
+        return rejection;
+    }
+}
@@ -1,10 +1,10 @@
 package com.treasurehunt.chat.framework.core.websocket.mvc.model;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
 import com.treasurehunt.chat.framework.core.websocket.distributed.session.WsSession;
 
 import org.springframework.web.socket.BinaryMessage;
-import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -120,14 +120,13 @@ public class WsResponseEntity<T> implements Serializable {
     
     /**
      * 发送文本帧
+     * 会话协商了 chat.cbor 子协议时按 CBOR 编码为二进制帧
      */
     private void sendAsTextFrame(WsSession session) throws IOException {
         if (body != null) {
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonMessage = mapper.writeValueAsString(body);
-            TextMessage textMessage = new TextMessage(jsonMessage);
-            applyFrameHeaders(textMessage);
-            session.sendMessage(textMessage);
+            WebSocketMessage<?> message = WsMessageCodec.encode(body, session);
+            applyFrameHeaders(message);
+            session.sendMessage(message);
         }
     }
     
@@ -199,11 +198,9 @@ public class WsResponseEntity<T> implements Serializable {
             return (byte[]) data;
         }
         
-        // 序列化为JSON后再转为字节数组
+        // 序列化为JSON字节
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonString = mapper.writeValueAsString(data);
-            return jsonString.getBytes("UTF-8");
+            return WsMessageCodec.writeBytes(data);
         } catch (Exception e) {
             return data.toString().getBytes();
         }
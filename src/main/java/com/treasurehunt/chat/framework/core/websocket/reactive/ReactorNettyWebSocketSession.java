@@ -0,0 +1,288 @@
+package com.treasurehunt.chat.framework.core.websocket.reactive;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.AsyncSendableSession;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.netty.Connection;
+import reactor.netty.http.websocket.WebsocketInbound;
+import reactor.netty.http.websocket.WebsocketOutbound;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reactor Netty 连接到 Spring {@link WebSocketSession} 的适配器
+ *
+ * 让现有的 WebSocketHandler / WebSocketDispatcher / @WsController、出站队列、存活探测等组件
+ * 不做任何修改即可运行在 Netty 传输层上：
+ * - 入站帧在事件循环上转换为 Spring 消息，随后 publishOn 到业务调度器按序回调 handler（同一连接串行，保持原有顺序语义）
+ * - 出站队列经 {@link #sendMessageAsync} 发送，写出完成后回调，不占用写线程；sendMessage 保留为阻塞发送（同样有写超时）
+ *
+ * @author gaga
+ * @since 2025-10-06
+ */
+@Slf4j
+public class ReactorNettyWebSocketSession implements WebSocketSession, AsyncSendableSession {
+
+    private final URI uri;
+    private final HttpHeaders handshakeHeaders;
+    private final Map<String, Object> attributes;
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private final WebsocketInbound inbound;
+    private final WebsocketOutbound outbound;
+    private final Duration writeTimeout;
+
+    private volatile String id;
+    private volatile Connection connection;
+    private volatile boolean closed = false;
+    private volatile CloseStatus closeStatus = CloseStatus.NO_STATUS_CODE;
+    private int textMessageSizeLimit;
+    private int binaryMessageSizeLimit;
+
+    public ReactorNettyWebSocketSession(URI uri, HttpHeaders handshakeHeaders, Map<String, Object> attributes,
+                                        InetSocketAddress localAddress, InetSocketAddress remoteAddress,
+                                        WebsocketInbound inbound, WebsocketOutbound outbound,
+                                        int maxFramePayloadLength, Duration writeTimeout) {
+        this.uri = uri;
+        this.handshakeHeaders = HttpHeaders.readOnlyHttpHeaders(handshakeHeaders);
+        this.attributes = attributes;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.inbound = inbound;
+        this.outbound = outbound;
+        this.writeTimeout = writeTimeout;
+        this.textMessageSizeLimit = maxFramePayloadLength;
+        this.binaryMessageSizeLimit = maxFramePayloadLength;
+        inbound.withConnection(c -> {
+            this.connection = c;
+            this.id = c.channel().id().asLongText();
+        });
+    }
+
+    /**
+     * 驱动整个连接生命周期，返回的 Mono 完成即连接结束
+     *
+     * @param handler   Spring WebSocketHandler（CustomerWebSocketHandler / AgentWebSocketHandler）
+     * @param scheduler 业务调度器，handler 中的阻塞调用（Redis、DB）不会占用事件循环
+     */
+    public Mono<Void> handle(WebSocketHandler handler, Scheduler scheduler) {
+        inbound.receiveCloseStatus()
+                .subscribe(s -> closeStatus = new CloseStatus(s.code(), s.reasonText()));
+
+        Mono<Void> established = Mono.<Void>fromRunnable(() -> invoke(handler, () -> handler.afterConnectionEstablished(this)))
+                .subscribeOn(scheduler);
+
+        Mono<Void> messages = inbound.aggregateFrames(textMessageSizeLimit)
+                .receiveFrames()
+                .mapNotNull(this::toMessage)
+                .publishOn(scheduler)
+                .doOnNext(message -> invoke(handler, () -> handler.handleMessage(this, message)))
+                .then();
+
+        Mono<Void> closedCallback = Mono.<Void>fromRunnable(() -> {
+                    closed = true;
+                    invoke(handler, () -> handler.afterConnectionClosed(this, closeStatus));
+                })
+                .subscribeOn(scheduler);
+
+        return established
+                .then(messages)
+                .onErrorResume(e -> Mono.<Void>fromRunnable(() -> invoke(handler, () -> handler.handleTransportError(this, e)))
+                        .subscribeOn(scheduler))
+                .then(closedCallback);
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("WebSocket session is closed: " + id);
+        }
+        try {
+            outbound.sendObject(toFrame(message)).then().block(writeTimeout);
+        } catch (Exception e) {
+            throw new IOException("Failed to send websocket frame: " + id, e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMessageAsync(WebSocketMessage<?> message) {
+        if (!isOpen()) {
+            return CompletableFuture.failedFuture(new IOException("WebSocket session is closed: " + id));
+        }
+        return outbound.sendObject(toFrame(message)).then().timeout(writeTimeout).toFuture();
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            outbound.sendClose(status.getCode(), status.getReason()).block(writeTimeout);
+        } catch (Exception e) {
+            log.debug("Send close frame failed, dispose connection: sessionId={}", id, e);
+            Connection c = connection;
+            if (c != null) {
+                c.dispose();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        Connection c = connection;
+        return !closed && c != null && c.channel().isActive();
+    }
+
+    private WebSocketMessage<?> toMessage(WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            return new TextMessage(((TextWebSocketFrame) frame).text());
+        }
+        if (frame instanceof BinaryWebSocketFrame) {
+            return new BinaryMessage(copy(frame.content()));
+        }
+        if (frame instanceof PongWebSocketFrame) {
+            return new PongMessage(copy(frame.content()));
+        }
+        // Ping 由 Reactor Netty 自动回复 Pong，Close 由 receiveCloseStatus 处理
+        return null;
+    }
+
+    private static WebSocketFrame toFrame(WebSocketMessage<?> message) {
+        if (message instanceof TextMessage) {
+            return new TextWebSocketFrame(((TextMessage) message).getPayload());
+        }
+        if (message instanceof BinaryMessage) {
+            return new BinaryWebSocketFrame(Unpooled.wrappedBuffer(((BinaryMessage) message).getPayload()));
+        }
+        if (message instanceof PingMessage) {
+            return new PingWebSocketFrame(Unpooled.wrappedBuffer(((PingMessage) message).getPayload()));
+        }
+        if (message instanceof PongMessage) {
+            return new PongWebSocketFrame(Unpooled.wrappedBuffer(((PongMessage) message).getPayload()));
+        }
+        throw new IllegalArgumentException("Unsupported message type: " + message.getClass().getName());
+    }
+
+    private static ByteBuffer copy(ByteBuf content) {
+        byte[] bytes = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private void invoke(WebSocketHandler handler, HandlerCallback callback) {
+        try {
+            callback.run();
+        } catch (Exception e) {
+            log.error("WebSocket handler callback failed: sessionId={}, handler={}", id, handler.getClass().getSimpleName(), e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface HandlerCallback {
+        void run() throws Exception;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public URI getUri() {
+        return uri;
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+        return handshakeHeaders;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+        return inbound.selectedSubprotocol();
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {
+        this.textMessageSizeLimit = messageSizeLimit;
+    }
+
+    @Override
+    public int getTextMessageSizeLimit() {
+        return textMessageSizeLimit;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        this.binaryMessageSizeLimit = messageSizeLimit;
+    }
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+        return binaryMessageSizeLimit;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return "ReactorNettyWebSocketSession[id=" + id + ", uri=" + uri + "]";
+    }
+}
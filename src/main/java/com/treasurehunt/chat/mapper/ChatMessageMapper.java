@@ -31,6 +31,11 @@ public interface ChatMessageMapper extends BaseMapper<ChatMessageDO> {
      */
     int insertOne(ChatMessageDO entity);
 
+    /**
+     * 多行插入（合并写入使用，按列表顺序写入，任一行唯一键冲突则整条语句失败）
+     */
+    int insertBatch(@Param("list") List<ChatMessageDO> entities);
+
     /**
      * 降级插入：使用 ON DUPLICATE KEY UPDATE server_msg_id = server_msg_id + 1
      * 牺牲幂等性，由数据库自增 server_msg_id。
@@ -0,0 +1,64 @@
+package com.treasurehunt.chat.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.treasurehunt.chat.domain.ConversationSeqDO;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.SelectKey;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
+
+/**
+ * 会话序号表 Mapper（Redis 不可用时分配 server_msg_id 号段）
+ */
+@Mapper
+public interface ConversationSeqMapper extends BaseMapper<ConversationSeqDO> {
+
+    /**
+     * 原子申请号段：seq += step，新上界通过 LAST_INSERT_ID 在同一连接上取回（写入 seq 字段），并标记 dirty（Redis 尚未同步）
+     * 行锁只持有一条 UPDATE 的时间，并发申请互不重叠
+     *
+     * @return 影响行数，0 表示会话尚无序号行（此时 seq 字段无意义）
+     */
+    @Update("UPDATE conversation_seq SET seq = LAST_INSERT_ID(seq + #{step}), dirty = 1 WHERE conversation_id = #{conversationId}")
+    @SelectKey(statement = "SELECT LAST_INSERT_ID()", keyProperty = "seq", before = false, resultType = Long.class)
+    int allocateSegment(ConversationSeqDO seq);
+
+    /**
+     * 仅当行已是 dirty 时申请号段（降级期间的常规路径，单条按主键 UPDATE）
+     * dirty 期间各实例在 Redis INCR 前都会先同步该行，Redis 序列不会越过 seq，无需再抬到 MAX(server_msg_id)
+     *
+     * @return 影响行数，0 表示无行或行不是 dirty（需走抬升后再申请的路径）
+     */
+    @Update("UPDATE conversation_seq SET seq = LAST_INSERT_ID(seq + #{step}) WHERE conversation_id = #{conversationId} AND dirty = 1")
+    @SelectKey(statement = "SELECT LAST_INSERT_ID()", keyProperty = "seq", before = false, resultType = Long.class)
+    int allocateSegmentIfDirty(ConversationSeqDO seq);
+
+    /**
+     * 建行或把序号抬到不低于给定值（不会回退）
+     */
+    @Insert("INSERT INTO conversation_seq (conversation_id, seq) VALUES (#{conversationId}, #{seq}) " +
+            "ON DUPLICATE KEY UPDATE seq = GREATEST(seq, VALUES(seq))")
+    int raiseTo(@Param("conversationId") String conversationId, @Param("seq") long seq);
+
+    /**
+     * 查询会话已分配的最大序号，无行返回 null
+     */
+    @Select("SELECT seq FROM conversation_seq WHERE conversation_id = #{conversationId}")
+    Long selectSeq(@Param("conversationId") String conversationId);
+
+    /**
+     * 查询降级期间分配过号段、Redis 序列尚未抬升的会话（走 idx_dirty）
+     */
+    @Select("SELECT conversation_id, seq FROM conversation_seq WHERE dirty = 1 LIMIT #{limit}")
+    List<ConversationSeqDO> selectDirty(@Param("limit") int limit);
+
+    /**
+     * Redis 序列已抬到 seq 后清除 dirty；期间又有新号段分配（seq 已变）时不清除
+     */
+    @Update("UPDATE conversation_seq SET dirty = 0 WHERE conversation_id = #{conversationId} AND seq = #{seq} AND dirty = 1")
+    int markSynced(@Param("conversationId") String conversationId, @Param("seq") long seq);
+}
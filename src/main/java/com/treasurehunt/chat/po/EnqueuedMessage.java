@@ -0,0 +1,23 @@
+package com.treasurehunt.chat.po;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 发消息在会话顺序锁内完成的部分：幂等判定、serverMsgId 分配与入队，锁外再等待提交
+ */
+@Data
+@Builder
+public class EnqueuedMessage {
+
+    private boolean duplicateFound;
+
+    private Long serverMsgId;
+
+    /**
+     * 合并写入的提交结果；重复消息或降级路径（已在锁内同步写入）为 null
+     */
+    private CompletableFuture<Void> committed;
+}
@@ -11,6 +11,11 @@ public class IdempotencyCheckResult {
 
     private Long serverMsgId;
 
+    /**
+     * serverMsgId 是否由融合脚本为本条（非重复）消息新分配，为 true 时调用方无需再生成
+     */
+    private boolean allocated;
+
     private boolean usedRedis;
 }
 
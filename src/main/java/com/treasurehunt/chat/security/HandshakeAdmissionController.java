@@ -0,0 +1,232 @@
+package com.treasurehunt.chat.security;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket握手准入控制器（单实例维度）
+ *
+ * 用于抵御实例故障后的重连风暴：
+ * - 令牌桶：限制每秒准入的握手数量（允许一定突发）
+ * - 并发上限：同时处理中的握手数量不超过固定值
+ * - 续连优先：为续连客户端预留一部分令牌和并发名额，新连接只能使用剩余额度
+ * - 超出预算返回 503 + Retry-After（带随机抖动，打散客户端重试）
+ *
+ * 并发名额覆盖整个建连过程：握手准入时取得，连接建立回调（在线状态注册、会话初始化）执行完后才归还，
+ * 名额随会话属性传递（{@link #holdPermit} / {@link #releasePermit}）
+ */
+@Slf4j
+@Component
+public class HandshakeAdmissionController {
+
+    /** 是否启用握手准入控制 */
+    @Value("${websocket.admission.enabled:true}")
+    private boolean enabled;
+
+    /** 令牌桶：每秒补充的令牌数 */
+    @Value("${websocket.admission.rate-per-second:200}")
+    private double ratePerSecond;
+
+    /** 令牌桶：桶容量（允许的突发握手数） */
+    @Value("${websocket.admission.burst:400}")
+    private int burst;
+
+    /** 同时处理中的握手上限 */
+    @Value("${websocket.admission.max-concurrent:64}")
+    private int maxConcurrent;
+
+    /** 为续连客户端预留的额度比例（令牌与并发名额均适用） */
+    @Value("${websocket.admission.resume-reserve-ratio:0.2}")
+    private double resumeReserveRatio;
+
+    /** Retry-After 基础秒数 */
+    @Value("${websocket.admission.retry-after-seconds:2}")
+    private int retryAfterSeconds;
+
+    /** Retry-After 随机抖动上限（秒） */
+    @Value("${websocket.admission.retry-after-jitter-seconds:5}")
+    private int retryAfterJitterSeconds;
+
+    /** 会话属性中保存并发名额的键 */
+    private static final String PERMIT_ATTRIBUTE = HandshakeAdmissionController.class.getName() + ".permit";
+
+    private Semaphore concurrentPermits;
+    private double tokens;
+    private long lastRefillNanos;
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        this.concurrentPermits = new Semaphore(Math.max(1, maxConcurrent));
+        this.tokens = Math.max(1, burst);
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 尝试准入一次握手
+     * 准入成功且持有名额时，调用方通过 {@link #holdPermit} 挂到会话属性上，建连完成后 {@link #releasePermit} 归还
+     *
+     * @param resuming 是否为续连客户端（断线重连）
+     */
+    public AdmissionResult tryAdmit(boolean resuming) {
+        if (!enabled) {
+            return AdmissionResult.admitted(false);
+        }
+        // 1. 并发名额：新连接不能占用预留给续连的部分
+        int reservedPermits = (int) Math.floor(Math.max(1, maxConcurrent) * resumeReserveRatio);
+        if (!resuming && concurrentPermits.availablePermits() <= reservedPermits) {
+            return reject("Too many concurrent handshakes");
+        }
+        if (!concurrentPermits.tryAcquire()) {
+            return reject("Too many concurrent handshakes");
+        }
+        // 2. 令牌桶：新连接不能消耗预留给续连的令牌
+        double reservedTokens = resuming ? 0 : Math.max(1, burst) * resumeReserveRatio;
+        if (!tryTakeToken(reservedTokens)) {
+            concurrentPermits.release();
+            return reject("Handshake rate limit exceeded");
+        }
+        admittedCount.incrementAndGet();
+        return AdmissionResult.admitted(true);
+    }
+
+    /**
+     * 归还并发名额（握手完成或失败时调用）
+     */
+    public void release() {
+        concurrentPermits.release();
+    }
+
+    /**
+     * 把准入时取得的并发名额挂到会话属性上，由建连完成（或握手失败/连接关闭）时归还
+     */
+    public void holdPermit(Map<String, Object> attributes) {
+        attributes.put(PERMIT_ATTRIBUTE, new AtomicBoolean(true));
+    }
+
+    /**
+     * 归还会话属性上挂着的并发名额，重复调用只归还一次
+     */
+    public void releasePermit(Map<String, Object> attributes) {
+        Object permit = attributes.get(PERMIT_ATTRIBUTE);
+        if (permit instanceof AtomicBoolean && ((AtomicBoolean) permit).compareAndSet(true, false)) {
+            attributes.remove(PERMIT_ATTRIBUTE);
+            concurrentPermits.release();
+        }
+    }
+
+    private synchronized boolean tryTakeToken(double reserved) {
+        long now = System.nanoTime();
+        double refill = (now - lastRefillNanos) / 1_000_000_000.0 * ratePerSecond;
+        if (refill > 0) {
+            tokens = Math.min(Math.max(1, burst), tokens + refill);
+            lastRefillNanos = now;
+        }
+        if (tokens - 1 < reserved) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    private AdmissionResult reject(String reason) {
+        long count = rejectedCount.incrementAndGet();
+        if (count % 100 == 1) {
+            log.warn("握手被准入控制拒绝: reason={}, rejectedTotal={}", reason, count);
+        }
+        int jitter = retryAfterJitterSeconds > 0 ? ThreadLocalRandom.current().nextInt(retryAfterJitterSeconds + 1) : 0;
+        return AdmissionResult.rejected(reason, retryAfterSeconds + jitter);
+    }
+
+    /**
+     * 获取准入统计
+     */
+    public AdmissionStats getStats() {
+        return new AdmissionStats(admittedCount.get(), rejectedCount.get(),
+                Math.max(1, maxConcurrent) - concurrentPermits.availablePermits());
+    }
+
+    /**
+     * 准入结果
+     */
+    public static class AdmissionResult {
+        private final boolean admitted;
+        private final boolean permitHeld;
+        private final String reason;
+        private final int retryAfterSeconds;
+
+        private AdmissionResult(boolean admitted, boolean permitHeld, String reason, int retryAfterSeconds) {
+            this.admitted = admitted;
+            this.permitHeld = permitHeld;
+            this.reason = reason;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public static AdmissionResult admitted(boolean permitHeld) {
+            return new AdmissionResult(true, permitHeld, null, 0);
+        }
+
+        public static AdmissionResult rejected(String reason, int retryAfterSeconds) {
+            return new AdmissionResult(false, false, reason, retryAfterSeconds);
+        }
+
+        public boolean isAdmitted() {
+            return admitted;
+        }
+
+        /** 是否持有并发名额（需要在握手结束时归还） */
+        public boolean isPermitHeld() {
+            return permitHeld;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * 准入统计信息
+     */
+    public static class AdmissionStats {
+        private final long admitted;
+        private final long rejected;
+        private final int inFlight;
+
+        public AdmissionStats(long admitted, long rejected, int inFlight) {
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.inFlight = inFlight;
+        }
+
+        public long getAdmitted() {
+            return admitted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("AdmissionStats{admitted=%d, rejected=%d, inFlight=%d}", admitted, rejected, inFlight);
+        }
+    }
+}
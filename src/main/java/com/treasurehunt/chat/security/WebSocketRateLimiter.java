@@ -1,5 +1,6 @@
 package com.treasurehunt.chat.security;
 
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejection;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
@@ -39,7 +40,7 @@ public class WebSocketRateLimiter {
         // 检查全局限制
         if (!checkGlobalRateLimit(currentTime)) {
             log.warn("全局消息速率超限，用户: {}", userId);
-            return RateLimitResult.exceeded("System busy, please try again later");
+            return RateLimitResult.GLOBAL_EXCEEDED;
         }
         
         // 获取用户速率信息
@@ -129,26 +130,39 @@ public class WebSocketRateLimiter {
     
     /**
      * 速率限制结果
+     * 每条消息都会检查一次，常见结果预先创建并复用；超限时携带预分配的拒绝，调用方直接抛出即可：
+     * 单用户超限回 429，全局超限属于服务繁忙，回 503，客户端据此选择退避方式
      */
     public static class RateLimitResult {
+        /** 限流拒绝的客户端提示 */
+        private static final WsRejection TOO_FREQUENT = WsRejection.of("429", "消息发送过于频繁，请稍后再试");
+
+        private static final RateLimitResult ALLOWED = new RateLimitResult(true, null, null);
+        private static final RateLimitResult EXCEEDED =
+                new RateLimitResult(false, "Message sent too frequently, please try again later", TOO_FREQUENT);
+        private static final RateLimitResult GLOBAL_EXCEEDED =
+                new RateLimitResult(false, "System busy, please try again later", WsRejection.SERVER_BUSY);
+
         private final boolean allowed;
         private final String reason;
+        private final WsRejection rejection;
         
-        private RateLimitResult(boolean allowed, String reason) {
+        private RateLimitResult(boolean allowed, String reason, WsRejection rejection) {
             this.allowed = allowed;
             this.reason = reason;
+            this.rejection = rejection;
         }
         
         public static RateLimitResult allowed() {
-            return new RateLimitResult(true, null);
+            return ALLOWED;
         }
         
         public static RateLimitResult exceeded(String reason) {
-            return new RateLimitResult(false, reason);
+            return new RateLimitResult(false, reason, TOO_FREQUENT);
         }
         
         public static RateLimitResult exceeded() {
-            return new RateLimitResult(false, "Message sent too frequently, please try again later");
+            return EXCEEDED;
         }
         
         public boolean isAllowed() {
@@ -158,5 +172,12 @@ public class WebSocketRateLimiter {
         public String getReason() {
             return reason;
         }
+
+        /**
+         * 超限时回给客户端的拒绝（预分配，抛出 asException() 无栈开销）
+         */
+        public WsRejection getRejection() {
+            return rejection;
+        }
     }
 }
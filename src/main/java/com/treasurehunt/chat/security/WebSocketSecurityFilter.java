@@ -1,16 +1,17 @@
 package com.treasurehunt.chat.security;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsMessageCodec;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejection;
 import com.treasurehunt.chat.vo.ChatMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -21,7 +22,6 @@ import java.util.regex.Pattern;
 @Component
 public class WebSocketSecurityFilter {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
     
     // 恶意脚本模式
     private static final List<Pattern> SCRIPT_PATTERNS = Arrays.asList(
@@ -125,8 +125,7 @@ public class WebSocketSecurityFilter {
         try {
             ChatMessage errorMessage = new ChatMessage("security_error", "消息被安全系统拦截: " + reason);
             errorMessage.setTimestamp(new java.util.Date());
-            String jsonMessage = objectMapper.writeValueAsString(errorMessage);
-            session.sendMessage(new TextMessage(jsonMessage));
+            session.sendMessage(WsMessageCodec.textMessage(errorMessage));
             log.warn("发送安全错误消息给用户: {}, 原因: {}", session.getId(), reason);
         } catch (IOException e) {
             log.error("发送安全错误消息失败", e);
@@ -135,19 +134,38 @@ public class WebSocketSecurityFilter {
     
     /**
      * 安全检查结果
+     * 通过结果是单例；不通过的原因是固定的几种文案，按原因缓存结果及其预分配的 400 拒绝，
+     * 拦截恶意消息时不再为每条消息构造结果对象和异常
      */
     public static class SecurityCheckResult {
+        private static final SecurityCheckResult VALID = new SecurityCheckResult(true, null);
+        /** 缓存上限，防止调用方传入动态拼接的原因导致无限增长 */
+        private static final int MAX_CACHED_REASONS = 64;
+        private static final ConcurrentHashMap<String, SecurityCheckResult> INVALID_CACHE = new ConcurrentHashMap<>();
+
         private final boolean valid;
         private final String reason;
+        private final WsRejection rejection;
         private SecurityCheckResult(boolean valid, String reason) {
             this.valid = valid;
             this.reason = reason;
+            this.rejection = valid ? null : WsRejection.of("400", "消息内容不符合安全规范: " + reason);
         }
         public static SecurityCheckResult valid() {
-            return new SecurityCheckResult(true, null);
+            return VALID;
         }
         public static SecurityCheckResult invalid(String reason) {
-            return new SecurityCheckResult(false, reason);
+            if (reason == null) {
+                return new SecurityCheckResult(false, null);
+            }
+            SecurityCheckResult cached = INVALID_CACHE.get(reason);
+            if (cached != null) {
+                return cached;
+            }
+            if (INVALID_CACHE.size() >= MAX_CACHED_REASONS) {
+                return new SecurityCheckResult(false, reason);
+            }
+            return INVALID_CACHE.computeIfAbsent(reason, r -> new SecurityCheckResult(false, r));
         }
         public boolean isValid() {
             return valid;
@@ -156,5 +174,12 @@ public class WebSocketSecurityFilter {
         public String getReason() {
             return reason;
         }
+
+        /**
+         * 不通过时回给客户端的拒绝（预分配，抛出 asException() 无栈开销）
+         */
+        public WsRejection getRejection() {
+            return rejection;
+        }
     }
 }
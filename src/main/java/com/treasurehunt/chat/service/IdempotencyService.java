@@ -1,17 +1,35 @@
 package com.treasurehunt.chat.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.treasurehunt.chat.config.ChatThreadPoolConfig;
+import com.treasurehunt.chat.component.manager.ConversationSeqManager;
 import com.treasurehunt.chat.domain.ChatMessageDO;
 import com.treasurehunt.chat.mapper.ChatMessageMapper;
 import com.treasurehunt.chat.po.IdempRecord;
 import com.treasurehunt.chat.po.IdempotencyCheckResult;
+import com.treasurehuntshop.mall.common.constants.RedisKeyConstants;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 
-import java.util.Random;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 幂等性服务（方案A：Redis 先挡并发 → 占坑者写 DB → 标记 DONE → 其余并发读到 DONE 或少量回查 DB）
@@ -25,11 +43,17 @@ import java.util.Random;
  * ↓
  * 2a. 成功占坑 → 继续业务入库 → 标记 DONE（长TTL）
  * ↓
- * 2b. 键已存在 → 自旋等待 DONE 结果（避免立即查DB）
+ * 2b. 键已存在 → 挂到完成信号上等待 DONE 结果（有上限，不 sleep 轮询，避免立即查DB）
+ *     占坑者在本实例：直接等本地 CompletableFuture；在其它实例：登记等待者，DONE 时经 Redis pub/sub 通知
+ *     等待不阻塞处理线程：检查结果以 CompletableFuture 返回，发消息处理器把它交给 WS 框架，完成后再回响应
  * ↓
  * 2c. 仍未得到结果 → 回查数据库 → 反补缓存
  * ↓
  * 2d. 数据库冲突 → 查询已存在记录 → 反补缓存
+ *
+ * 写消息主路径使用 {@link #reserveAndAllocate} + {@link #resolve}：幂等检查、占坑、分配 serverMsgId 合并为一个 Lua 脚本，
+ * 每条消息的 Redis 往返从 EVAL + EXISTS + INCR 三次降为一次 EVALSHA；入库后同步 EVALSHA 标记 DONE（失败只记日志，由 DB 回查反补）。
+ * 所有脚本启动时 SCRIPT LOAD，之后只传 SHA；Redis 重启丢失脚本缓存（NOSCRIPT）时退回 EVAL 一次并重新装入
  */
 @Slf4j
 @Component
@@ -41,9 +65,10 @@ public class IdempotencyService {
     @Autowired
     private ChatMessageMapper chatMessageMapper;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    @Autowired
+    private ConversationSeqManager conversationSeqManager;
 
-    private static final Random random = new Random();
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     private static final String IDEMP_KEY_PREFIX = "chat:idemp:";
 
@@ -59,19 +84,19 @@ public class IdempotencyService {
     private static final long DONE_TTL_MS = 86_400_000; // 1天
 
     /**
-     * 自旋等待的最大次数（避免立即查DB）
+     * 非首个请求等待 DONE 的上限（毫秒），超时后回查 DB；与原自旋最长约 450ms 相当
      */
-    private static final int MAX_SPIN_RETRIES = 3;
+    private static final long AWAIT_DONE_TIMEOUT_MS = 500;
 
     /**
-     * 自旋等待的基础等待时间（毫秒）
+     * 等待者登记键后缀：存在时 DONE 脚本才发布通知，没有等待者的消息不产生 pub/sub 流量
      */
-    private static final int BASE_SPIN_WAIT_MS = 50;
+    private static final String WAITER_KEY_SUFFIX = ":w";
 
     /**
-     * 自旋等待的最大抖动（毫秒）
+     * DONE 通知频道，消息格式：idempKey|serverMsgId
      */
-    private static final int MAX_SPIN_JITTER_MS = 100;
+    private static final String DONE_CHANNEL = "chat:idemp:done";
 
     /**
      * Lua 脚本：原子占坑（仅当不存在时写入 + 设置短 TTL）
@@ -90,19 +115,244 @@ public class IdempotencyService {
             "end";
 
     /**
-     * Lua 脚本：原子标记完成（覆盖为 DONE + 设置长 TTL）
+     * Lua 脚本：原子标记完成（覆盖为 DONE + 设置长 TTL），有其它实例在等待时发布完成通知
      * 
      * KEYS[1] = idempKey
+     * KEYS[2] = 等待者登记键
      * ARGV[1] = json(payload with status=DONE, result, ts)
      * ARGV[2] = done_ttl_ms
+     * ARGV[3] = 通知频道
+     * ARGV[4] = serverMsgId
      * 
      * 返回: "OK"
      * 
      * 说明：即便键已过期也能"重建"为 DONE，避免"已成功但缓存缺失"的幂等黑洞
      */
     private static final String LUA_MARK_DONE = "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])\n" +
+            "if redis.call('EXISTS', KEYS[2]) == 1 then\n" +
+            "  redis.call('PUBLISH', ARGV[3], KEYS[1] .. '|' .. ARGV[4])\n" +
+            "end\n" +
             "return 'OK'";
 
+    /**
+     * Lua 脚本：登记等待者并读取当前记录（先登记后读取，DONE 在此之前写入则直接读到，之后写入则会发布通知）
+     *
+     * KEYS[1] = idempKey
+     * KEYS[2] = 等待者登记键
+     * ARGV[1] = 登记有效期（毫秒）
+     *
+     * 返回: 当前记录 json，键不存在时为 nil
+     */
+    private static final String LUA_WATCH_DONE = "redis.call('SET', KEYS[2], '1', 'PX', ARGV[1])\n" +
+            "return redis.call('GET', KEYS[1])";
+
+    /**
+     * Lua 脚本：幂等检查 + 占坑 + 分配 serverMsgId（融合，一次往返）
+     *
+     * KEYS[1] = idempKey
+     * KEYS[2] = serverMsgId 序列键（与 MessageIdManager 同一个键）
+     * ARGV[1] = json(payload with status=PENDING, ts, owner)
+     * ARGV[2] = pending_ttl_ms
+     *
+     * 返回:
+     * - {'EXISTS', 已有记录 json}：重复请求，不消耗序号
+     * - {'UNINIT'}：序列键不存在，需要由 MessageIdManager 按 DB 最大值懒初始化，本次不占坑
+     * - {'CREATED', serverMsgId}：占坑成功并分配了序号
+     *
+     * 单机连接下两个键同实例；若迁到集群，需要给两个键加相同的 hash tag
+     */
+    private static final String LUA_RESERVE_AND_ALLOCATE = "local existing = redis.call('GET', KEYS[1])\n" +
+            "if existing then\n" +
+            "  return {'EXISTS', existing}\n" +
+            "end\n" +
+            "if redis.call('EXISTS', KEYS[2]) == 0 then\n" +
+            "  return {'UNINIT'}\n" +
+            "end\n" +
+            "local id = redis.call('INCR', KEYS[2])\n" +
+            "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])\n" +
+            "return {'CREATED', tostring(id)}";
+
+    /**
+     * 脚本 -> SHA1，SHA 在本地计算，与 Redis 是否可用无关
+     */
+    private final Map<String, String> scriptShas = new HashMap<>();
+
+    /**
+     * 本机占坑者标识前缀（host:pid），只解析一次主机名
+     */
+    private static final String OWNER_PREFIX = resolveOwnerPrefix();
+
+
+    @Autowired(required = false)
+    private RedisClient redisClient;
+
+    /** 等到 DONE 信号之后的回查 DB 与调用方后续落库在专用线程池执行，不占 Lettuce 订阅线程和超时调度线程 */
+    @Autowired
+    @Qualifier("idempotencyResumeExecutor")
+    private TaskExecutor idempotencyResumeExecutor;
+
+    /** 异步幂等等待许可：拿到许可的续跑任务在专用线程池中必有排队位置 */
+    private final Semaphore resumePermits = new Semaphore(ChatThreadPoolConfig.IDEMPOTENCY_RESUME_MAX_PENDING);
+
+    /** 订阅 DONE 通知的连接，单机客户端不可用时为 null（其它实例的结果只能等超时后回查 DB） */
+    private StatefulRedisPubSubConnection<String, String> pubSubConnection;
+
+    /** 本实例占坑中的幂等键 -> 完成信号（值为 serverMsgId，放弃或超时为 null） */
+    private final ConcurrentHashMap<String, CompletableFuture<Long>> localOwners = new ConcurrentHashMap<>();
+
+    /** 本实例等待其它实例完成的幂等键 -> 完成信号 */
+    private final ConcurrentHashMap<String, CompletableFuture<Long>> remoteWaits = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        loadScripts();
+        subscribeDoneChannel();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (pubSubConnection != null) {
+            pubSubConnection.close();
+        }
+    }
+
+    private void loadScripts() {
+        RedisCommands<String, String> commands = redisConnection.sync();
+        for (String script : new String[] { LUA_CREATE_PENDING, LUA_MARK_DONE, LUA_RESERVE_AND_ALLOCATE, LUA_WATCH_DONE }) {
+            scriptShas.put(script, commands.digest(script));
+        }
+        try {
+            for (String script : scriptShas.keySet()) {
+                commands.scriptLoad(script);
+            }
+            log.info("幂等 Lua 脚本已装入 Redis: {} 个", scriptShas.size());
+        } catch (Exception e) {
+            // Redis 暂不可用时不阻塞启动，首次执行遇到 NOSCRIPT 会退回 EVAL 并装入
+            log.warn("幂等 Lua 脚本预装入失败，首次执行时再装入", e);
+        }
+    }
+
+    private void subscribeDoneChannel() {
+        if (redisClient == null) {
+            log.info("未找到单机 RedisClient，跨实例幂等等待退化为超时后回查 DB");
+            return;
+        }
+        try {
+            pubSubConnection = redisClient.connectPubSub();
+            pubSubConnection.addListener(new RedisPubSubAdapter<String, String>() {
+                @Override
+                public void message(String channel, String message) {
+                    onDoneMessage(message);
+                }
+            });
+            // 断线重连后 Lettuce 会自动重新订阅
+            pubSubConnection.sync().subscribe(DONE_CHANNEL);
+            log.info("已订阅幂等完成通知: {}", DONE_CHANNEL);
+        } catch (Exception e) {
+            log.warn("订阅幂等完成通知失败，跨实例幂等等待退化为超时后回查 DB", e);
+            pubSubConnection = null;
+        }
+    }
+
+    private void onDoneMessage(String message) {
+        int sep = message.lastIndexOf('|');
+        if (sep <= 0) {
+            return;
+        }
+        CompletableFuture<Long> signal = remoteWaits.get(message.substring(0, sep));
+        if (signal != null) {
+            try {
+                signal.complete(Long.parseLong(message.substring(sep + 1)));
+            } catch (NumberFormatException e) {
+                signal.complete(null);
+            }
+        }
+    }
+
+    /**
+     * 幂等检查 + 占坑 + 分配 serverMsgId（写消息主路径第一步，只执行一次脚本，不等待、不查 DB）
+     *
+     * 脚本分配序号的调用需与入队放在同一次会话顺序锁内，锁内只做这一步；脚本已给出结论时返回 true，
+     * 结论见 {@link Reservation#getResult()}：allocated=true 时 serverMsgId 即本条消息的新 ID，调用方不必再调 MessageIdManager；
+     * duplicateFound=true 为命中 DONE。返回 false 时（键已存在且未完成、序列键未初始化、Redis 异常）在锁外调用 {@link #resolve}
+     */
+    public boolean reserveAndAllocate(Reservation reservation) {
+        final String conversationId = reservation.conversationId;
+        final String seqKey = RedisKeyConstants.CHAT_SERVER_MSG_ID_KEY + conversationId;
+
+        List<Object> reply;
+        reservation.owner = generateOwner();
+        try {
+            RedisCommands<String, String> commands = redisConnection.sync();
+            reservation.commands = commands;
+            // Redis 刚恢复：脚本 INCR 之前先同步降级期间从 conversation_seq 分出去的序号
+            conversationSeqManager.reconcileIfNeeded(conversationId, commands);
+            String jsonPayload = objectMapper.writeValueAsString(IdempRecord.pending(reservation.owner));
+            reply = evalScript(commands, LUA_RESERVE_AND_ALLOCATE, ScriptOutputType.MULTI,
+                    new String[] { reservation.idempKey, seqKey }, jsonPayload, String.valueOf(PENDING_TTL_MS));
+        } catch (Exception ex) {
+            log.warn("Redis reserve-and-allocate failed, fallback to DB. convId={}, clientMsgId={}",
+                    conversationId, reservation.clientMsgId, ex);
+            reservation.status = Reservation.FAILED;
+            return false;
+        }
+
+        String status = (String) reply.get(0);
+        reservation.status = status;
+        if ("CREATED".equals(status)) {
+            Long serverMsgId = Long.parseLong((String) reply.get(1));
+            registerLocalOwner(reservation.idempKey);
+            log.debug("成功占坑并分配serverMsgId: idempKey={}, serverMsgId={}", reservation.idempKey, serverMsgId);
+            reservation.result = IdempotencyCheckResult.builder()
+                    .duplicateFound(false)
+                    .serverMsgId(serverMsgId)
+                    .allocated(true)
+                    .usedRedis(true)
+                    .build();
+            return true;
+        }
+        if ("UNINIT".equals(status)) {
+            return false;
+        }
+
+        // 键已存在：脚本已带回当前记录，DONE 直接命中，不必再 GET
+        IdempRecord record = parseRecord((String) reply.get(1));
+        if (record != null && "DONE".equals(record.getStatus()) && record.isNumericResult()) {
+            Long serverMsgId = Long.parseLong(record.getResult());
+            log.debug("幂等命中DONE记录: idempKey={}, serverMsgId={}", reservation.idempKey, serverMsgId);
+            reservation.result = IdempotencyCheckResult.builder()
+                    .duplicateFound(true)
+                    .serverMsgId(serverMsgId)
+                    .usedRedis(true)
+                    .build();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 写消息主路径第二步（会话顺序锁外）：脚本未给出结论时继续判定，可能等待首个请求的结果或回查 DB
+     * 只有非首个请求需要等待首个请求的结果时才异步完成，其余情况返回已完成的 future；
+     * 结果 allocated=false 且非重复时，调用方照旧通过 MessageIdManager 生成序号
+     */
+    public CompletableFuture<IdempotencyCheckResult> resolve(Reservation reservation) {
+        if (reservation.result != null) {
+            return CompletableFuture.completedFuture(reservation.result);
+        }
+        String conversationId = reservation.conversationId;
+        String clientMsgId = reservation.clientMsgId;
+        if (Reservation.FAILED.equals(reservation.status)) {
+            return CompletableFuture.completedFuture(checkByDatabase(conversationId, clientMsgId));
+        }
+        if ("UNINIT".equals(reservation.status)) {
+            // 会话首条消息（或序列键被淘汰）：走原来的占坑流程，序号由 MessageIdManager 懒初始化后生成
+            log.debug("序列键未初始化，走分步占坑: idempKey={}", reservation.idempKey);
+            return checkBeforePersist(conversationId, clientMsgId);
+        }
+        return resolveExisting(reservation.commands, reservation.idempKey, conversationId, clientMsgId,
+                reservation.owner);
+    }
+
     /**
      * 检查幂等性并处理（方案A的核心方法）
      * 
@@ -110,7 +360,7 @@ public class IdempotencyService {
      * @param clientMsgId    客户端消息ID
      * @return 检查结果，如果 duplicateFound=true 则包含 serverMsgId
      */
-    public IdempotencyCheckResult checkBeforePersist(String conversationId, String clientMsgId) {
+    public CompletableFuture<IdempotencyCheckResult> checkBeforePersist(String conversationId, String clientMsgId) {
         final String idempKey = IDEMP_KEY_PREFIX + conversationId + ":" + clientMsgId;
 
         try {
@@ -123,76 +373,133 @@ public class IdempotencyService {
 
             if ("CREATED".equals(createResult)) {
                 // 我是首个请求：返回 duplicateFound=false，让调用方继续执行业务入库
+                registerLocalOwner(idempKey);
                 log.debug("成功占坑，我是首个请求: idempKey={}, owner={}", idempKey, owner);
-                return IdempotencyCheckResult.builder()
+                return CompletableFuture.completedFuture(IdempotencyCheckResult.builder()
                         .duplicateFound(false)
                         .usedRedis(true)
-                        .build();
+                        .build());
             }
 
             // 2. 我不是首个请求（键已存在）
-            // 2.1 先做短暂"自旋"等待，尽量命中首个请求写回的 DONE，避免打 DB
-            IdempRecord record = spinWaitForResult(commands, idempKey, MAX_SPIN_RETRIES);
-
-            if (record != null && "DONE".equals(record.getStatus()) && record.isNumericResult()) {
-                // 快路径：在自旋中等到 DONE 结果
-                Long serverMsgId = Long.parseLong(record.getResult());
-                log.debug("自旋等待命中快路径: idempKey={}, serverMsgId={}", idempKey, serverMsgId);
-                return IdempotencyCheckResult.builder()
-                        .duplicateFound(true)
-                        .serverMsgId(serverMsgId)
-                        .usedRedis(true)
-                        .build();
-            }
+            return resolveExisting(commands, idempKey, conversationId, clientMsgId, owner);
 
-            // 2.2 仍未得到结果：以 DB 为准（唯一索引保证不重复）
-            log.debug("自旋等待未命中，回查数据库: idempKey={}", idempKey);
-            ChatMessageDO existed = chatMessageMapper.selectByConvIdAndClientMsgId(conversationId, clientMsgId);
+        } catch (Exception ex) {
+            log.warn("Redis idempotency check failed, fallback to DB. convId={}, clientMsgId={}",
+                    conversationId, clientMsgId, ex);
+            return CompletableFuture.completedFuture(checkByDatabase(conversationId, clientMsgId));
+        }
+    }
 
-            if (existed != null) {
-                // 反补缓存，形成自愈闭环
-                Long serverMsgId = existed.getServerMsgId();
-                evalLuaDone(commands, idempKey, IdempRecord.done(serverMsgId, owner), DONE_TTL_MS);
-                log.debug("数据库查询到结果并反补缓存: idempKey={}, serverMsgId={}", idempKey, serverMsgId);
-                return IdempotencyCheckResult.builder()
-                        .duplicateFound(true)
-                        .serverMsgId(serverMsgId)
-                        .usedRedis(false) // 这次查询用了DB，但后续会走Redis
-                        .build();
+    /**
+     * 键已存在（非首个请求）：等 DONE 信号（有上限），仍未得到结果则以 DB 为准
+     * 等待不阻塞当前线程：信号已就绪时同步返回已完成的 future，否则在信号完成后于专用线程池继续；
+     * 专用线程池已满（拿不到许可）时不挂起等待，直接在当前处理线程上回查 DB
+     */
+    private CompletableFuture<IdempotencyCheckResult> resolveExisting(RedisCommands<String, String> commands,
+            String idempKey, String conversationId, String clientMsgId, String owner) {
+        // 2.1 等首个请求写回的 DONE，尽量避免打 DB
+        CompletableFuture<Long> done = awaitDone(commands, idempKey);
+        if (done.isDone()) {
+            return CompletableFuture.completedFuture(
+                    afterAwaitDone(done.join(), commands, idempKey, conversationId, clientMsgId, owner));
+        }
+        if (!resumePermits.tryAcquire()) {
+            log.warn("幂等等待续跑线程池已满，直接回查数据库: idempKey={}", idempKey);
+            return CompletableFuture.completedFuture(
+                    afterAwaitDone(null, commands, idempKey, conversationId, clientMsgId, owner));
+        }
+        CompletableFuture<IdempotencyCheckResult> result = new CompletableFuture<>();
+        // 信号在 Lettuce 订阅线程或超时线程上完成，这里只做入队；调用方的后续落库随 result 完成在续跑线程上执行
+        done.whenComplete((serverMsgId, e) -> {
+            try {
+                idempotencyResumeExecutor.execute(() -> {
+                    try {
+                        result.complete(afterAwaitDone(serverMsgId, commands, idempKey, conversationId, clientMsgId, owner));
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    } finally {
+                        resumePermits.release();
+                    }
+                });
+            } catch (RuntimeException rejected) {
+                // 持有许可时只有停机会被拒绝：直接失败，不在信号线程上查库
+                resumePermits.release();
+                result.completeExceptionally(rejected);
             }
+        });
+        return result;
+    }
 
-            // 2.3 没查到：可能是首个请求正在处理中，或者首个请求失败了
-            // 返回 duplicateFound=false，让当前请求尝试处理（DB唯一索引会兜底）
-            log.warn("自旋等待和数据库查询都未找到结果，可能首个请求失败或超时: idempKey={}", idempKey);
+    /**
+     * 等待结束：命中 DONE 直接返回，否则回查 DB 并反补缓存
+     */
+    private IdempotencyCheckResult afterAwaitDone(Long doneServerMsgId, RedisCommands<String, String> commands,
+            String idempKey, String conversationId, String clientMsgId, String owner) {
+        if (doneServerMsgId != null) {
+            // 快路径：等到 DONE 结果
+            Long serverMsgId = doneServerMsgId;
+            log.debug("等待DONE命中快路径: idempKey={}, serverMsgId={}", idempKey, serverMsgId);
             return IdempotencyCheckResult.builder()
-                    .duplicateFound(false)
+                    .duplicateFound(true)
+                    .serverMsgId(serverMsgId)
                     .usedRedis(true)
                     .build();
+        }
 
-        } catch (Exception ex) {
-            log.warn("Redis idempotency check failed, fallback to DB. convId={}, clientMsgId={}",
-                    conversationId, clientMsgId, ex);
+        // 2.2 仍未得到结果：以 DB 为准（唯一索引保证不重复）
+        log.debug("等待DONE未命中，回查数据库: idempKey={}", idempKey);
+        ChatMessageDO existed = chatMessageMapper.selectByConvIdAndClientMsgId(conversationId, clientMsgId);
 
-            // Redis 失败时，完全依赖 DB（唯一索引兜底）
-            ChatMessageDO existed = chatMessageMapper.selectByConvIdAndClientMsgId(conversationId, clientMsgId);
-            if (existed != null) {
-                return IdempotencyCheckResult.builder()
-                        .duplicateFound(true)
-                        .serverMsgId(existed.getServerMsgId())
-                        .usedRedis(false)
-                        .build();
+        if (existed != null) {
+            // 反补缓存，形成自愈闭环；反补失败不影响本次结果
+            Long serverMsgId = existed.getServerMsgId();
+            try {
+                evalLuaDone(commands, idempKey, IdempRecord.done(serverMsgId, owner), DONE_TTL_MS);
+                log.debug("数据库查询到结果并反补缓存: idempKey={}, serverMsgId={}", idempKey, serverMsgId);
+            } catch (Exception ex) {
+                log.warn("Backfill idempotency DONE failed. idempKey={}", idempKey, ex);
             }
+            return IdempotencyCheckResult.builder()
+                    .duplicateFound(true)
+                    .serverMsgId(serverMsgId)
+                    .usedRedis(false) // 这次查询用了DB，但后续会走Redis
+                    .build();
+        }
 
-            // DB 也没查到，返回非重复，让业务继续（DB 唯一索引会兜底）
+        // 2.3 没查到：可能是首个请求正在处理中，或者首个请求失败了
+        // 返回 duplicateFound=false，让当前请求尝试处理（DB唯一索引会兜底）
+        log.warn("等待DONE和数据库查询都未找到结果，可能首个请求失败或超时: idempKey={}", idempKey);
+        return IdempotencyCheckResult.builder()
+                .duplicateFound(false)
+                .usedRedis(true)
+                .build();
+    }
+
+    /**
+     * Redis 失败时，完全依赖 DB（唯一索引兜底）
+     */
+    private IdempotencyCheckResult checkByDatabase(String conversationId, String clientMsgId) {
+        ChatMessageDO existed = chatMessageMapper.selectByConvIdAndClientMsgId(conversationId, clientMsgId);
+        if (existed != null) {
             return IdempotencyCheckResult.builder()
-                    .duplicateFound(false)
+                    .duplicateFound(true)
+                    .serverMsgId(existed.getServerMsgId())
                     .usedRedis(false)
                     .build();
         }
+
+        // DB 也没查到，返回非重复，让业务继续（DB 唯一索引会兜底）
+        return IdempotencyCheckResult.builder()
+                .duplicateFound(false)
+                .usedRedis(false)
+                .build();
     }
 
     /**
      * 标记成功（占坑者入库成功后调用）
+     * 同步 EVALSHA 写回 DONE：返回前记录已可见，重试请求不会在"已入库但仍是 PENDING"的窗口里退到查 DB；
+     * 写回失败时键保持 PENDING 直至过期，后续重试经 DB 回查并反补
      * 
      * @param conversationId 会话ID
      * @param clientMsgId    客户端消息ID
@@ -202,11 +509,12 @@ public class IdempotencyService {
         final String idempKey = IDEMP_KEY_PREFIX + conversationId + ":" + clientMsgId;
 
         try {
-            RedisCommands<String, String> commands = redisConnection.sync();
-            String owner = generateOwner();
-            evalLuaDone(commands, idempKey, IdempRecord.done(serverMsgId, owner), DONE_TTL_MS);
+            // evalLuaDone 写回 DONE（有其它实例在等待时发布通知）并唤醒本实例内的等待者
+            evalLuaDone(redisConnection.sync(), idempKey, IdempRecord.done(serverMsgId, generateOwner()), DONE_TTL_MS);
             log.debug("标记幂等成功: idempKey={}, serverMsgId={}", idempKey, serverMsgId);
         } catch (Exception ex) {
+            // 本实例内的等待者不依赖 Redis，照常唤醒
+            signalDone(idempKey, serverMsgId);
             log.warn("标记幂等成功失败（不影响业务）: idempKey={}, serverMsgId={}", idempKey, serverMsgId, ex);
             // 失败不影响业务，后续请求会通过DB反补
         }
@@ -250,10 +558,8 @@ public class IdempotencyService {
             IdempRecord record, long ttlMs) {
         try {
             String jsonPayload = objectMapper.writeValueAsString(record);
-            return (String) commands.eval(LUA_CREATE_PENDING,
-                    io.lettuce.core.ScriptOutputType.VALUE,
-                    new String[] { idempKey },
-                    jsonPayload, String.valueOf(ttlMs));
+            return evalScript(commands, LUA_CREATE_PENDING, ScriptOutputType.VALUE,
+                    new String[] { idempKey }, jsonPayload, String.valueOf(ttlMs));
         } catch (Exception e) {
             log.error("执行 Lua 占坑脚本失败: idempKey={}", idempKey, e);
             throw new RuntimeException("Redis Lua script execution failed", e);
@@ -267,10 +573,10 @@ public class IdempotencyService {
             IdempRecord record, long ttlMs) {
         try {
             String jsonPayload = objectMapper.writeValueAsString(record);
-            commands.eval(LUA_MARK_DONE,
-                    io.lettuce.core.ScriptOutputType.STATUS,
-                    new String[] { idempKey },
-                    jsonPayload, String.valueOf(ttlMs));
+            evalScript(commands, LUA_MARK_DONE, ScriptOutputType.STATUS,
+                    new String[] { idempKey, idempKey + WAITER_KEY_SUFFIX },
+                    jsonPayload, String.valueOf(ttlMs), DONE_CHANNEL, record.getResult());
+            signalDone(idempKey, Long.parseLong(record.getResult()));
         } catch (Exception e) {
             log.error("执行 Lua 标记完成脚本失败: idempKey={}", idempKey, e);
             throw new RuntimeException("Redis Lua script execution failed", e);
@@ -278,55 +584,83 @@ public class IdempotencyService {
     }
 
     /**
-     * 自旋等待结果（带抖动避免放大效应）
-     * 
-     * @param commands   Redis 命令
-     * @param idempKey   幂等键
-     * @param maxRetries 最大重试次数
-     * @return 如果读到 DONE 状态返回记录，否则返回 null
+     * 按 SHA 执行脚本（EVALSHA）；脚本缓存丢失时退回 EVAL，EVAL 同时会把脚本重新装入缓存
      */
-    private IdempRecord spinWaitForResult(RedisCommands<String, String> commands,
-            String idempKey, int maxRetries) {
-        for (int i = 0; i < maxRetries; i++) {
-            try {
-                String cached = commands.get(idempKey);
-                if (cached == null) {
-                    // 键过期了，跳转到 DB 查询
-                    break;
-                }
-
-                IdempRecord record = parseRecord(cached);
-                if (record == null) {
-                    break;
-                }
+    private <T> T evalScript(RedisCommands<String, String> commands, String script, ScriptOutputType type,
+            String[] keys, String... args) {
+        try {
+            return commands.evalsha(scriptShas.get(script), type, keys, args);
+        } catch (RedisNoScriptException e) {
+            log.info("Redis 脚本缓存缺失，重新装入");
+            return commands.eval(script, type, keys, args);
+        }
+    }
 
-                if ("DONE".equals(record.getStatus()) && record.isNumericResult()) {
-                    // 等到 DONE 结果，立即返回
-                    return record;
-                }
+    /**
+     * 占坑成功后登记本地完成信号，同实例的重复请求直接挂在上面等待
+     * 占坑者失败未标记 DONE 时，信号在 PENDING TTL 后自行清理，等待者各自按超时回查 DB
+     */
+    private void registerLocalOwner(String idempKey) {
+        CompletableFuture<Long> signal = new CompletableFuture<>();
+        if (localOwners.putIfAbsent(idempKey, signal) == null) {
+            signal.completeOnTimeout(null, PENDING_TTL_MS, TimeUnit.MILLISECONDS)
+                    .whenComplete((v, e) -> localOwners.remove(idempKey, signal));
+        }
+    }
 
-                if ("PENDING".equals(record.getStatus())) {
-                    // 还在处理中，等待一下再重试（带抖动）
-                    int waitMs = BASE_SPIN_WAIT_MS + random.nextInt(MAX_SPIN_JITTER_MS);
-                    try {
-                        Thread.sleep(waitMs);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                    continue;
-                }
+    /**
+     * 唤醒本实例内等待该键的请求（占坑者本地 + 等待其它实例的）
+     */
+    private void signalDone(String idempKey, Long serverMsgId) {
+        CompletableFuture<Long> local = localOwners.get(idempKey);
+        if (local != null) {
+            local.complete(serverMsgId);
+        }
+        CompletableFuture<Long> remote = remoteWaits.get(idempKey);
+        if (remote != null) {
+            remote.complete(serverMsgId);
+        }
+    }
 
-                // 其他状态，跳出循环
-                break;
+    /**
+     * 异步等待 DONE 结果（有上限，不 sleep 轮询）
+     * - 占坑者在本实例：挂在本地信号上
+     * - 占坑者在其它实例：登记等待者并读一次当前记录，已是 DONE 立即完成，否则等 pub/sub 通知
+     *
+     * @return 完成时为 serverMsgId；键已过期、状态异常或超时为 null（调用方回查 DB）
+     */
+    private CompletableFuture<Long> awaitDone(RedisCommands<String, String> commands, String idempKey) {
+        CompletableFuture<Long> local = localOwners.get(idempKey);
+        if (local != null) {
+            // copy：本等待者的超时不影响占坑者的信号
+            return local.copy().completeOnTimeout(null, AWAIT_DONE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
 
-            } catch (Exception e) {
-                log.warn("自旋等待时出错: idempKey={}, retry={}", idempKey, i, e);
-                break;
+        CompletableFuture<Long> signal = new CompletableFuture<>();
+        CompletableFuture<Long> existing = remoteWaits.putIfAbsent(idempKey, signal);
+        if (existing != null) {
+            return existing.copy().completeOnTimeout(null, AWAIT_DONE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        signal.completeOnTimeout(null, AWAIT_DONE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((v, e) -> remoteWaits.remove(idempKey, signal));
+        try {
+            String cached = evalScript(commands, LUA_WATCH_DONE, ScriptOutputType.VALUE,
+                    new String[] { idempKey, idempKey + WAITER_KEY_SUFFIX }, String.valueOf(AWAIT_DONE_TIMEOUT_MS));
+            IdempRecord record = cached != null ? parseRecord(cached) : null;
+            if (record == null) {
+                // 键过期或无法解析，直接回查 DB
+                signal.complete(null);
+            } else if ("DONE".equals(record.getStatus()) && record.isNumericResult()) {
+                signal.complete(Long.parseLong(record.getResult()));
+            } else if (!"PENDING".equals(record.getStatus()) || pubSubConnection == null) {
+                // 其他状态，或收不到跨实例通知：不空等
+                signal.complete(null);
             }
+        } catch (Exception e) {
+            log.warn("登记幂等等待失败: idempKey={}", idempKey, e);
+            signal.complete(null);
         }
-
-        return null;
+        return signal.copy();
     }
 
     /**
@@ -346,13 +680,49 @@ public class IdempotencyService {
      * 格式：host:pid:traceId（简化版：host:pid:timestamp）
      */
     private String generateOwner() {
+        long traceId = System.currentTimeMillis() % 1000000; // 简化版 traceId
+        return OWNER_PREFIX + traceId;
+    }
+
+    /**
+     * 主机名解析可能涉及 DNS，只在类加载时做一次
+     */
+    private static String resolveOwnerPrefix() {
         try {
             String host = java.net.InetAddress.getLocalHost().getHostName();
             long pid = ProcessHandle.current().pid();
-            long traceId = System.currentTimeMillis() % 1000000; // 简化版 traceId
-            return host + ":" + pid + ":" + traceId;
+            return host + ":" + pid + ":";
         } catch (Exception e) {
-            return "unknown:" + System.currentTimeMillis();
+            return "unknown:";
+        }
+    }
+
+    /**
+     * 一次写消息的幂等预留：{@link #reserveAndAllocate} 填写脚本结果，{@link #resolve} 据此继续判定
+     */
+    public static final class Reservation {
+        private static final String FAILED = "FAILED";
+
+        private final String conversationId;
+        private final String clientMsgId;
+        private final String idempKey;
+        private String owner;
+        private RedisCommands<String, String> commands;
+        /** 脚本返回的状态（CREATED / UNINIT / 已存在），Redis 异常为 FAILED */
+        private String status;
+        private IdempotencyCheckResult result;
+
+        public Reservation(String conversationId, String clientMsgId) {
+            this.conversationId = conversationId;
+            this.clientMsgId = clientMsgId;
+            this.idempKey = IDEMP_KEY_PREFIX + conversationId + ":" + clientMsgId;
+        }
+
+        /**
+         * 脚本已给出的结论（新分配或命中 DONE），未给出时为 null
+         */
+        public IdempotencyCheckResult getResult() {
+            return result;
         }
     }
 }
@@ -2,6 +2,8 @@ package com.treasurehunt.chat.vo;
 
 import lombok.Data;
 
+import java.util.List;
+
 /**
  * 通知拉取Payload
  * 对应WebSocketEnvelope中interface="notifyPull"时的payload内容
@@ -28,4 +30,15 @@ public class NotifyPullPayload {
      * 消息状态
      */
     private String status;
+
+    /**
+     * 合并窗口内涉及多个会话时携带：每个会话的最大 serverMsgId（单会话时为空）
+     */
+    private List<ConversationCursor> conversations;
+
+    @Data
+    public static class ConversationCursor {
+        private String conversationId;
+        private Long serverMsgId;
+    }
 }
@@ -1,6 +1,7 @@
 package com.treasurehunt.chat.websocket;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.SessionLivenessMonitor;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
 import com.treasurehunt.chat.framework.core.websocket.mvc.dispatcher.WebSocketDispatcher;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
 import com.treasurehunt.chat.vo.WebSocketUserInfo;
@@ -13,6 +14,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * 客服聊天WebSocket处理器
  * 专门处理客服人员的聊天连接
@@ -21,8 +24,6 @@ import org.springframework.web.socket.*;
 @Component
 public class AgentWebSocketHandler implements WebSocketHandler {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
     
     @Autowired
     private WebSocketSecurityFilter securityFilter;
@@ -36,6 +37,9 @@ public class AgentWebSocketHandler implements WebSocketHandler {
     @Autowired
     private WebSocketDispatcher webSocketDispatcher;
 
+    @Autowired
+    private SessionLivenessMonitor livenessMonitor;
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         log.info("WebSocket连接建立: {}", session.getId());
@@ -72,26 +76,43 @@ public class AgentWebSocketHandler implements WebSocketHandler {
         log.info("客服连接: {}", userId);
         // 将用户信息存储到session属性中
         session.getAttributes().put("userInfo", userInfo);
+
+        // 纳入服务端 ping/pong 存活探测
+        livenessMonitor.register(session);
     }
 
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+        // 任意入站帧都证明连接存活，Pong 不重置空闲计时
+        livenessMonitor.touch(session, !(message instanceof PongMessage));
         // 暂时只处理文本消息,那种需要实时性很高的直播,后续再说,目前暂时用不到
         if (message instanceof TextMessage) {
             String payload = ((TextMessage) message).getPayload();
             log.info("收到消息: {}", payload);
             try {
-                // 解析为 WebSocketRequest
-                WebSocketDataWrapper<String> request = objectMapper.readValue(payload, WebSocketDataWrapper.class);
-                // 使用路由处理器处理消息
-                webSocketDispatcher.dispatch(request, session);
+                // 使用路由处理器处理消息，payload 按路由一次反序列化为处理器参数类型
+                webSocketDispatcher.dispatch(payload, session);
             } catch (Exception e) {
                 log.error("处理客服消息失败", e);
                 WebSocketDataWrapper.failure("error", "消息格式错误", "500");
             }
+        } else if (message instanceof BinaryMessage && WsFrameFormat.of(session) == WsFrameFormat.CBOR) {
+            // 协商了 chat.cbor 子协议的客户端以 CBOR 二进制帧发送请求，帧结构与文本帧相同
+            try {
+                webSocketDispatcher.dispatch(toBytes((BinaryMessage) message), session);
+            } catch (Exception e) {
+                log.error("处理客服消息失败", e);
+            }
         }
     }
 
+    private static byte[] toBytes(BinaryMessage message) {
+        ByteBuffer buffer = message.getPayload();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
         log.error("客服WebSocket传输错误", exception);
@@ -108,6 +129,7 @@ public class AgentWebSocketHandler implements WebSocketHandler {
             connectionManager.unregisterConnection(session.getId(), userInfo.getUserId(), clientIp);
         }
         SessionManager.removeCustomerServiceSession(session);
+        livenessMonitor.unregister(session.getId());
     }
 
     @Override
@@ -1,8 +1,8 @@
 package com.treasurehunt.chat.websocket;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.treasurehunt.chat.framework.core.websocket.distributed.session.SessionLivenessMonitor;
+import com.treasurehunt.chat.framework.core.websocket.mvc.codec.WsFrameFormat;
 import com.treasurehunt.chat.framework.core.websocket.mvc.dispatcher.WebSocketDispatcher;
-import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
 import com.treasurehunt.chat.vo.WebSocketUserInfo;
 import com.treasurehunt.chat.utils.BusinessLineResolver;
 import com.treasurehunt.chat.security.WebSocketConnectionManager;
@@ -11,6 +11,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * 客户聊天WebSocket处理器,websocket是有状态的协议,跟http不同,所以我们这里不能省略掉当前这个类,无法完全跟springmvc一样
  * 专门处理普通用户的聊天连接
@@ -32,14 +34,15 @@ import org.springframework.web.socket.*;
 @Component
 public class CustomerWebSocketHandler implements WebSocketHandler {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-
     @Autowired
     private WebSocketConnectionManager connectionManager;
 
     @Autowired
     private WebSocketDispatcher webSocketDispatcher;
 
+    @Autowired
+    private SessionLivenessMonitor livenessMonitor;
+
     /**
      * 这个就是握手阶段
      * 
@@ -115,6 +118,9 @@ public class CustomerWebSocketHandler implements WebSocketHandler {
         // 将用户信息存储到session属性中
         session.getAttributes().put("userInfo", userInfo);
 
+        // 纳入服务端 ping/pong 存活探测
+        livenessMonitor.register(session);
+
         // 分布式会话管理已集成到WebSocketConnectionManager中，无需额外处理
     }
 
@@ -127,19 +133,28 @@ public class CustomerWebSocketHandler implements WebSocketHandler {
      */
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+        // 任意入站帧都证明连接存活，Pong 不重置空闲计时
+        livenessMonitor.touch(session, !(message instanceof PongMessage));
         // 暂时只处理文本消息
         if (message instanceof TextMessage) {
             String payload = ((TextMessage) message).getPayload();
             log.info("收到客户消息: {}", payload);
-            // 解析为 WebSocketRequest
-            @SuppressWarnings("unchecked")
-            WebSocketDataWrapper<Object> request = (WebSocketDataWrapper<Object>) objectMapper.readValue(payload,WebSocketDataWrapper.class);
-            // 使用新的Dispatcher处理消息（类似Spring MVC）
-            webSocketDispatcher.dispatch(request, session);
+            // 使用新的Dispatcher处理消息（类似Spring MVC），payload 按路由一次反序列化为处理器参数类型
+            webSocketDispatcher.dispatch(payload, session);
 
+        } else if (message instanceof BinaryMessage && WsFrameFormat.of(session) == WsFrameFormat.CBOR) {
+            // 协商了 chat.cbor 子协议的客户端以 CBOR 二进制帧发送请求，帧结构与文本帧相同
+            webSocketDispatcher.dispatch(toBytes((BinaryMessage) message), session);
         }
     }
 
+    private static byte[] toBytes(BinaryMessage message) {
+        ByteBuffer buffer = message.getPayload();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
         log.error("客户WebSocket传输错误", exception);
@@ -160,6 +175,7 @@ public class CustomerWebSocketHandler implements WebSocketHandler {
         }
 
         SessionManager.removeCustomerSession(session);
+        livenessMonitor.unregister(session.getId());
 
         // 分布式会话管理已集成到WebSocketConnectionManager中，无需额外处理
     }
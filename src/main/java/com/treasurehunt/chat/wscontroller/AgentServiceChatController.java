@@ -1,7 +1,9 @@
 package com.treasurehunt.chat.wscontroller;
 
+import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsExecutionMode;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestMapping;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejectionException;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestBody;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsController;
 import com.treasurehunt.chat.wsservice.AgentServiceChatService;
@@ -13,6 +15,8 @@ import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * 客服聊天 WebSocket 控制器
@@ -28,9 +32,10 @@ public class AgentServiceChatController {
 
     /**
      * 处理客服发送消息请求
+     * 非首个请求需要等待首个请求的结果时，服务层返回未完成的 future，框架在其完成后再发送响应，等待期间不占处理线程
      */
-    @WsRequestMapping("/sendMessage")
-    public WebSocketDataWrapper<ReplySendMessageResult> receiveMessage(@WsRequestBody ChatMessage chatMessage,
+    @WsRequestMapping(value = "/sendMessage", execution = WsExecutionMode.VIRTUAL)
+    public CompletableFuture<WebSocketDataWrapper<ReplySendMessageResult>> receiveMessage(@WsRequestBody ChatMessage chatMessage,
             WebSocketSession session)
             throws IOException {
         log.debug("处理客服发送消息请求: {}", chatMessage);
@@ -38,26 +43,38 @@ public class AgentServiceChatController {
         WebSocketUserInfo userInfo = (WebSocketUserInfo) session.getAttributes().get("userInfo");
         if (userInfo == null) {
             log.error("会话中缺少用户信息");
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
         ReplySendMessageResult result = ReplySendMessageResult.builder().build();
         result.setClientMsgId(chatMessage.getClientMsgId());
+        CompletableFuture<ReplySendMessageResult> future;
         try {
             // 调用服务层处理发送消息逻辑
-            result = agentServiceChatService.receiveMessage(chatMessage, session);
-            // 发送结果响应,本身websocket没有响应这个概念的，不像http，一个发送对应一个响应（如果不是void的情况下），这里是为了展示给客户，自己的消息有没有发送成功而返回的响应
-            return WebSocketDataWrapper.success("/replySendRequest", result, "200");
+            future = agentServiceChatService.receiveMessage(chatMessage, session);
         } catch (Exception e) {
-            log.error("处理客服发送消息失败", e);
-            // 发送失败响应,把是哪条消息发送失败了返回给客户端
-            return WebSocketDataWrapper.failure("/replySendRequest", "服务器处理客服发送信息失败", "500",result);
+            future = CompletableFuture.failedFuture(e);
         }
+        return future.handle((replySendMessageResult, error) -> {
+            if (error == null) {
+                // 发送结果响应,本身websocket没有响应这个概念的，不像http，一个发送对应一个响应（如果不是void的情况下），这里是为了展示给客户，自己的消息有没有发送成功而返回的响应
+                return WebSocketDataWrapper.success("/replySendRequest", replySendMessageResult, "200");
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof WsRejectionException) {
+                // 限流、安全拦截：回对应状态码，带上 clientMsgId 便于客户端标记失败
+                log.debug("客服发送消息被拒绝: {}", ((WsRejectionException) cause).getRejection());
+                return ((WsRejectionException) cause).getRejection().toWrapper("/replySendRequest", result);
+            }
+            log.error("处理客服发送消息失败", cause);
+            // 发送失败响应,把是哪条消息发送失败了返回给客户端
+            return WebSocketDataWrapper.failure("/replySendRequest", "服务器处理客服发送信息失败", "500", result);
+        });
     }
 
     /**
      * 处理客服拉取消息请求
      */
-    @WsRequestMapping("/pullMessage")
+    @WsRequestMapping(value = "/pullMessage", execution = WsExecutionMode.POOL)
     public WebSocketDataWrapper<PullMessageRequest> pullMessageHandler(
             @WsRequestBody PullMessageRequest pullMessageRequest, WebSocketSession session)
             throws IOException {
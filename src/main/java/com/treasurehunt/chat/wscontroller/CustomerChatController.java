@@ -5,9 +5,11 @@ import com.treasurehunt.chat.vo.ChatMessage;
 import com.treasurehunt.chat.vo.CheckMessageRequest;
 import com.treasurehunt.chat.vo.PullMessageRequest;
 import com.treasurehunt.chat.wsservice.CustomerChatService;
+import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsExecutionMode;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestBody;
 import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsRequestMapping;
 import com.treasurehunt.chat.framework.core.websocket.mvc.model.WebSocketDataWrapper;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejectionException;
 import com.treasurehunt.chat.vo.ReplySendMessageResult;
 import com.treasurehunt.chat.vo.WebSocketUserInfo;
 import com.treasurehunt.chat.vo.HeartbeatRequest;
@@ -20,7 +22,10 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 /**
@@ -37,9 +42,10 @@ public class CustomerChatController {
     
     /**
      * 处理客户发送消息请求
+     * 非首个请求需要等待首个请求的结果时，服务层返回未完成的 future，框架在其完成后再发送响应，等待期间不占处理线程
      */
-    @WsRequestMapping("/sendMessage")
-    public WebSocketDataWrapper<ReplySendMessageResult> receiveMessage(@WsRequestBody ChatMessage chatMessage, WebSocketSession session) throws IOException {
+    @WsRequestMapping(value = "/sendMessage", execution = WsExecutionMode.VIRTUAL)
+    public CompletableFuture<WebSocketDataWrapper<ReplySendMessageResult>> receiveMessage(@WsRequestBody ChatMessage chatMessage, WebSocketSession session) throws IOException {
         log.debug("处理客服发送消息请求: {}", chatMessage);
         ReplySendMessageResult result = ReplySendMessageResult.builder().build();
         result.setClientMsgId(chatMessage.getClientMsgId());
@@ -47,18 +53,31 @@ public class CustomerChatController {
         WebSocketUserInfo userInfo = (WebSocketUserInfo) session.getAttributes().get("userInfo");
         if (userInfo == null) {
             log.error("会话中缺少用户信息");
-            return WebSocketDataWrapper.failure("/replySendRequest", "会话中缺少用户信息", "500");
+            return CompletableFuture.completedFuture(
+                    WebSocketDataWrapper.failure("/replySendRequest", "会话中缺少用户信息", "500"));
         }
+        CompletableFuture<ReplySendMessageResult> future;
         try {
             // 调用服务层处理发送消息逻辑
-            ReplySendMessageResult replySendMessageResult = customerChatService.receiveMessage(chatMessage, session);
-            // 直接发送WebSocket响应给客户端
-            return WebSocketDataWrapper.success("/replySendRequest", replySendMessageResult, "200");
+            future = customerChatService.receiveMessage(chatMessage, session);
         } catch (Exception e) {
-            log.error("处理客户发送消息失败", e);
-            // 发送失败响应,把是哪条消息发送失败了返回给客户端
-            return WebSocketDataWrapper.failure("/replySendRequest", "处理客户发送消息失败", "500",result);
+            future = CompletableFuture.failedFuture(e);
         }
+        return future.handle((replySendMessageResult, error) -> {
+            if (error == null) {
+                // 直接发送WebSocket响应给客户端
+                return WebSocketDataWrapper.success("/replySendRequest", replySendMessageResult, "200");
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof WsRejectionException) {
+                // 限流、安全拦截：回对应状态码，带上 clientMsgId 便于客户端标记失败
+                log.debug("客户发送消息被拒绝: {}", ((WsRejectionException) cause).getRejection());
+                return ((WsRejectionException) cause).getRejection().toWrapper("/replySendRequest", result);
+            }
+            log.error("处理客户发送消息失败", cause);
+            // 发送失败响应,把是哪条消息发送失败了返回给客户端
+            return WebSocketDataWrapper.failure("/replySendRequest", "处理客户发送消息失败", "500", result);
+        });
     }
 
     /**
@@ -83,19 +102,45 @@ public class CustomerChatController {
     /**
      * 处理客户拉取消息请求
      */
-    @WsRequestMapping("/pullMessage")
+    @WsRequestMapping(value = "/pullMessage", execution = WsExecutionMode.POOL)
     public WebSocketDataWrapper<PullMessageRequest> pullMessageHandler(@WsRequestBody PullMessageRequest pullMessageRequest, WebSocketSession session) throws IOException {
         log.debug("处理客户拉取消息请求: {}", pullMessageRequest);
         try {
             // 调用服务层处理拉取消息逻辑
             PullMessageRequest chatMessages = customerChatService.pullMessage(pullMessageRequest, session);
             return WebSocketDataWrapper.success("/pullMessageRequest", chatMessages, "200");
+        } catch (WsRejectionException e) {
+            return e.getRejection().toWrapper("/pullMessageRequest");
         } catch (Exception e) {
             log.error("处理客户拉取消息失败", e);
             return WebSocketDataWrapper.failure("/pullMessageRequest", "处理客户拉取消息失败", "500");
         }
     }
     
+    /**
+     * 批量拉取消息：批量信封中的多条 /pullMessage 合并到这里一次处理
+     * 返回列表与请求一一对应，每项是该条请求的完整响应
+     */
+    @WsRequestMapping(value = "/pullMessage", batch = true, execution = WsExecutionMode.POOL)
+    public List<WebSocketDataWrapper<PullMessageRequest>> pullMessagesHandler(@WsRequestBody List<PullMessageRequest> pullMessageRequests, WebSocketSession session) throws IOException {
+        log.debug("处理客户批量拉取消息请求: size={}", pullMessageRequests.size());
+        List<WebSocketDataWrapper<PullMessageRequest>> responses = new ArrayList<>(pullMessageRequests.size());
+        try {
+            for (PullMessageRequest result : customerChatService.pullMessages(pullMessageRequests, session)) {
+                responses.add(result != null
+                        ? WebSocketDataWrapper.success("/pullMessageRequest", result, "200")
+                        : CustomerChatService.INVALID_PULL_REQUEST.<PullMessageRequest>toWrapper("/pullMessageRequest"));
+            }
+        } catch (Exception e) {
+            log.error("处理客户批量拉取消息失败", e);
+            responses.clear();
+            for (int i = 0; i < pullMessageRequests.size(); i++) {
+                responses.add(WebSocketDataWrapper.failure("/pullMessageRequest", "处理客户拉取消息失败", "500"));
+            }
+        }
+        return responses;
+    }
+    
 	/**
 	 * 客户端心跳
 	 */
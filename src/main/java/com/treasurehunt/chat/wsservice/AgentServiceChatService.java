@@ -10,10 +10,12 @@ import com.treasurehunt.chat.domain.UserConversationReadDO;
 import com.treasurehunt.chat.enums.ChatErrorCodeEnum;
 import com.treasurehunt.chat.enums.ConversationStatusEnum;
 import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.NotificationDispatcher;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejectionException;
 import com.treasurehunt.chat.mapper.ChatMessageMapper;
 import com.treasurehunt.chat.mapper.ChatConversationMapper;
 import com.treasurehunt.chat.mapper.UserConversationReadMapper;
 import com.treasurehunt.chat.component.cache.GroupMemberCacheManager;
+import com.treasurehunt.chat.po.EnqueuedMessage;
 import com.treasurehunt.chat.po.IdempotencyCheckResult;
 import com.treasurehunt.chat.security.WebSocketRateLimiter;
 import com.treasurehunt.chat.security.WebSocketSecurityFilter;
@@ -24,16 +26,17 @@ import com.treasurehunt.chat.vo.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.treasurehunt.chat.component.async.ChatAsyncExecutor;
+import com.treasurehunt.chat.component.async.ChatMessageGroupWriter;
 import com.treasurehuntshop.mall.common.exception.BaseBizException;
 
 
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.Map;
 import java.util.HashMap;
@@ -79,6 +82,9 @@ public class AgentServiceChatService {
     @Autowired
     private ChatAsyncExecutor chatAsyncExecutor;
 
+    @Autowired
+    private ChatMessageGroupWriter chatMessageGroupWriter;
+
 
 
     /**
@@ -88,14 +94,13 @@ public class AgentServiceChatService {
      * @param session            WebSocket会话
      * @return 发送结果
      */
-    @Transactional(rollbackFor = Exception.class)
-    public ReplySendMessageResult receiveMessage(ChatMessage chatMessage, WebSocketSession session) {
+    public CompletableFuture<ReplySendMessageResult> receiveMessage(ChatMessage chatMessage, WebSocketSession session) {
         log.info("接收客服发送的消息: chatMessage={}", chatMessage);
         try {
             // 1. 从session中获取用户信息（网关透传）
             WebSocketUserInfo userInfo = userContextService.getUserInfo(session);
             if (userInfo == null) {
-                return userContextService.buildMissingUserResponse(chatMessage);
+                return CompletableFuture.completedFuture(userContextService.buildMissingUserResponse(chatMessage));
             }
 
             // payload 缺少 fromUserId/senderId 或 fromUserNo/senderNo 时，使用可用字段互补并兜底
@@ -105,14 +110,14 @@ public class AgentServiceChatService {
             WebSocketRateLimiter.RateLimitResult rateLimitResult = rateLimiter.checkRateLimit(userInfo.getUserId());
             if (!rateLimitResult.isAllowed()) {
                 log.warn("客服消息发送频率超限: userId={}, reason={}", userInfo.getUserId(), rateLimitResult.getReason());
-                throw new RuntimeException("消息发送过于频繁，请稍后再试");
+                throw rateLimitResult.getRejection().asException();
             }
             
             // 1.6. 安全过滤检查
             WebSocketSecurityFilter.SecurityCheckResult securityResult = securityFilter.validateChatMessage(chatMessage);
             if (!securityResult.isValid()) {
                 log.warn("客服消息安全验证失败: userId={}, reason={}", userInfo.getUserId(), securityResult.getReason());
-                throw new RuntimeException("消息内容不符合安全规范: " + securityResult.getReason());
+                throw securityResult.getRejection().asException();
             }
             
             // 1.7. 过滤消息内容（清理恶意内容）
@@ -121,45 +126,105 @@ public class AgentServiceChatService {
             // 1.8. 业务线必填（落库冗余 chat_message.business_line）
             userContextService.applyBusinessLineForPersist(session, chatMessage);
             // 2.x 幂等性与降级（优先 Redis，失败回退 MySQL）
-            IdempotencyCheckResult idem = idempotencyService.checkBeforePersist(chatMessage.getConversationId(), chatMessage.getClientMsgId());
+            // 非首个请求要等首个请求的结果时异步完成，等待期间不占处理线程，落库在结果就绪后继续
+            // serverMsgId 分配与入队在同一会话顺序锁内完成，同会话消息按序号提交；幂等等待、回查 DB 与等待提交都在锁外
+            String conversationId = chatMessage.getConversationId();
+            IdempotencyService.Reservation reservation =
+                    new IdempotencyService.Reservation(conversationId, chatMessage.getClientMsgId());
+            EnqueuedMessage settled = chatMessageGroupWriter.inOrder(conversationId,
+                    () -> idempotencyService.reserveAndAllocate(reservation)
+                            ? enqueueMessage(chatMessage, userInfo, reservation.getResult())
+                            : null);
+            CompletableFuture<EnqueuedMessage> enqueued = settled != null
+                    ? CompletableFuture.completedFuture(settled)
+                    : idempotencyService.resolve(reservation)
+                            .thenApply(idem -> chatMessageGroupWriter.inOrder(conversationId,
+                                    () -> enqueueMessage(chatMessage, userInfo, idem)));
+            return enqueued.thenApply(message -> persistMessage(chatMessage, userInfo, session, message));
+        } catch (WsRejectionException e) {
+            // 限流、安全拦截等预期内拒绝原样抛给控制器，不包装、不打栈
+            throw e;
+        } catch (Exception e) {
+            log.error("客服发送消息失败", e);
+            // 异常必须抛出，不能包裹成失败响应，否则前端会以为是正常的
+            throw new RuntimeException("客服发送消息失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 幂等检查之后（会话顺序锁内）：分配 serverMsgId 并入队，降级路径直接写入
+     */
+    private EnqueuedMessage enqueueMessage(ChatMessage chatMessage, WebSocketUserInfo userInfo,
+            IdempotencyCheckResult idem) {
+        try {
             if (idem.isDuplicateFound()) {
-                ReplySendMessageResult resultPayload = new ReplySendMessageResult(chatMessage.getClientMsgId(),chatMessage.getConversationId(),System.currentTimeMillis(), idem.getServerMsgId(), "PENDING");
-                return resultPayload;
+                return EnqueuedMessage.builder().duplicateFound(true).serverMsgId(idem.getServerMsgId()).build();
             }
-            // 3. 生成serverMsgId（从Redis获取，按会话递增，懒初始化）；若 Redis 不可用则进入降级模式
-            MessageIdGenerateResult genResult = messageIdManager.generateServerMsgId(chatMessage.getConversationId());
+            // 3. 生成serverMsgId：幂等脚本已一并分配则直接使用；否则从Redis获取（按会话递增，懒初始化），
+            // 若 Redis 不可用则进入降级模式
+            MessageIdGenerateResult genResult = idem.isAllocated()
+                    ? MessageIdGenerateResult.builder().redisAvailable(true).serverMsgId(idem.getServerMsgId()).build()
+                    : messageIdManager.generateServerMsgId(chatMessage.getConversationId());
             Long serverMsgId = genResult.getServerMsgId();
             log.info("生成serverMsgId: {}, redisAvailable={}", serverMsgId, genResult.isRedisAvailable());
             // 4. 插入消息到MySQL数据库（使用 Conver 进行转换）
             ChatMessageDO chatMessageDO = Conver.toChatMessageDO(chatMessage, serverMsgId);
             if (genResult.isRedisAvailable()) {
+                // 合并写入：与其它并发消息同一事务提交；发送者已读指针与消息同事务，一起提交或回滚
+                return EnqueuedMessage.builder()
+                        .serverMsgId(serverMsgId)
+                        .committed(chatMessageGroupWriter.submit(chatMessageDO,
+                                () -> updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), serverMsgId)))
+                        .build();
+            }
+            // 降级路径：利用 ON DUPLICATE KEY 自增 server_msg_id，牺牲幂等性；不参与合并，单独一个事务
+            chatMessageGroupWriter.executeInTransaction(() -> {
+                chatMessageMapper.insertOneOnDupIncrAnno(chatMessageDO);
+                updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), serverMsgId);
+            });
+            return EnqueuedMessage.builder().serverMsgId(serverMsgId).build();
+        } catch (Exception e) {
+            log.error("客服发送消息失败", e);
+            throw new RuntimeException("客服发送消息失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 入队之后（锁外）：等待提交、标记幂等成功并返回发送结果
+     */
+    private ReplySendMessageResult persistMessage(ChatMessage chatMessage, WebSocketUserInfo userInfo,
+            WebSocketSession session, EnqueuedMessage enqueued) {
+        try {
+            if (enqueued.isDuplicateFound()) {
+                ReplySendMessageResult resultPayload = new ReplySendMessageResult(chatMessage.getClientMsgId(),chatMessage.getConversationId(),System.currentTimeMillis(), enqueued.getServerMsgId(), "PENDING");
+                return resultPayload;
+            }
+            Long serverMsgId = enqueued.getServerMsgId();
+            if (enqueued.getCommitted() != null) {
                 try {
-                    chatMessageMapper.insertOne(chatMessageDO);
-                    idempotencyService.markSuccess(chatMessage.getConversationId(), chatMessage.getClientMsgId(), serverMsgId);
+                    chatMessageGroupWriter.await(enqueued.getCommitted());
+                    idempotencyService.markSuccess(chatMessage.getConversationId(), chatMessage.getClientMsgId(),
+                            serverMsgId);
                 } catch (DuplicateKeyException e) {
                     // 极少数竞态：DB先前已有记录（例如并发绕过了Redis或PENDING TTL过短）
-                    log.warn("数据库唯一索引冲突，查询已存在的记录: convId={}, clientMsgId={}", 
+                    log.warn("数据库唯一索引冲突，查询已存在的记录: convId={}, clientMsgId={}",
                             chatMessage.getConversationId(), chatMessage.getClientMsgId());
                     Long existedServerMsgId = idempotencyService.handleDuplicateKeyConflict(
                             chatMessage.getConversationId(), chatMessage.getClientMsgId());
                     if (existedServerMsgId != null) {
                         // 找到了已存在的记录，返回该结果（幂等成功）
-                        updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), existedServerMsgId);
-                        ReplySendMessageResult resultPayload = new ReplySendMessageResult(chatMessage.getClientMsgId(),
-                                chatMessage.getConversationId(), System.currentTimeMillis(), existedServerMsgId, "PENDING");
-                        return resultPayload;
+                        updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(),
+                                existedServerMsgId);
+                        return new ReplySendMessageResult(chatMessage.getClientMsgId(),
+                                chatMessage.getConversationId(), System.currentTimeMillis(), existedServerMsgId,
+                                "PENDING");
                     }
-                    // 理论上不会到这里，但为了安全还是抛出异常
+                    // 不是重复消息：serverMsgId 被占用，说明 Redis 序列落后于降级期间分配的号段，先修复再抛出
+                    messageIdManager.onServerMsgIdConflict(chatMessage.getConversationId());
                     throw e;
                 }
-            } else {
-                // 降级路径：利用 ON DUPLICATE KEY 自增 server_msg_id，牺牲幂等性
-                chatMessageMapper.insertOneOnDupIncrAnno(chatMessageDO);
             }
-            
-            // 4.5. 自动更新发送者的已读记录到最新位置（在核心事务中）
-            updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), serverMsgId);
-            
+
             // 5. 返回成功结果（核心事务结束）
             ReplySendMessageResult resultPayload = new ReplySendMessageResult(chatMessage.getClientMsgId(),chatMessage.getConversationId(), System.currentTimeMillis(), serverMsgId, "PENDING");
             
@@ -8,11 +8,14 @@ import com.treasurehunt.chat.domain.ChatMessageDO;
 import com.treasurehunt.chat.domain.MallShopDO;
 import com.treasurehunt.chat.enums.ConversationStatusEnum;
 import com.treasurehunt.chat.framework.core.websocket.distributed.delivery.NotificationDispatcher;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejection;
+import com.treasurehunt.chat.framework.core.websocket.mvc.model.WsRejectionException;
 import com.treasurehunt.chat.mapper.ChatConversationMapper;
 import com.treasurehunt.chat.mapper.ChatMessageMapper;
 import com.treasurehunt.chat.component.routing.AgentRoutingService;
 import com.treasurehunt.chat.component.routing.AgentRoutingService.RouteResult;
 import com.treasurehunt.chat.component.cache.GroupMemberCacheManager;
+import com.treasurehunt.chat.po.EnqueuedMessage;
 import com.treasurehunt.chat.po.IdempotencyCheckResult;
 import com.treasurehunt.chat.security.WebSocketRateLimiter;
 import com.treasurehunt.chat.security.WebSocketSecurityFilter;
@@ -21,6 +24,7 @@ import com.treasurehunt.chat.service.UserContextService;
 import com.treasurehunt.chat.service.RobotAgentService;
 import com.treasurehunt.chat.service.MallShopService;
 import com.treasurehunt.chat.component.async.ChatAsyncExecutor;
+import com.treasurehunt.chat.component.async.ChatMessageGroupWriter;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
 import com.treasurehunt.chat.utils.Conver;
@@ -42,12 +46,12 @@ import com.treasurehunt.chat.mapper.UserConversationReadMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.socket.WebSocketSession;
 
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.Map;
 import java.util.HashMap;
@@ -60,6 +64,9 @@ import java.util.HashMap;
 @Service
 public class CustomerChatService {
 
+    /** 拉取消息缺少会话ID或消息ID：单条与批量拉取回同一个 400 */
+    public static final WsRejection INVALID_PULL_REQUEST = WsRejection.of("400", "会话ID和消息ID不能为空");
+
     @Autowired
     private MessageIdManager messageIdManager;
 
@@ -93,6 +100,9 @@ public class CustomerChatService {
     @Autowired
     private ChatAsyncExecutor chatAsyncExecutor;
 
+    @Autowired
+    private ChatMessageGroupWriter chatMessageGroupWriter;
+
     @Autowired
     private UserConversationReadMapper userConversationReadMapper;
 
@@ -109,8 +119,7 @@ public class CustomerChatService {
      * @param session     WebSocket会话
      * @return 发送结果
      */
-    @Transactional(rollbackFor = Exception.class)
-    public ReplySendMessageResult receiveMessage(ChatMessage chatMessage, WebSocketSession session) {
+    public CompletableFuture<ReplySendMessageResult> receiveMessage(ChatMessage chatMessage, WebSocketSession session) {
         log.info("接收客户端发送的消息: chatMessage={}", chatMessage);
         try {
             // 1. 从session中获取用户信息
@@ -126,7 +135,7 @@ public class CustomerChatService {
             WebSocketRateLimiter.RateLimitResult rateLimitResult = rateLimiter.checkRateLimit(userInfo.getUserId());
             if (!rateLimitResult.isAllowed()) {
                 log.warn("用户消息发送频率超限: userId={}, reason={}", userInfo.getUserId(), rateLimitResult.getReason());
-                throw new RuntimeException("消息发送过于频繁，请稍后再试");
+                throw rateLimitResult.getRejection().asException();
             }
 
             // 1.6. 安全过滤检查
@@ -134,7 +143,7 @@ public class CustomerChatService {
                     .validateChatMessage(chatMessage);
             if (!securityResult.isValid()) {
                 log.warn("消息安全验证失败: userId={}, reason={}", userInfo.getUserId(), securityResult.getReason());
-                throw new RuntimeException("消息内容不符合安全规范: " + securityResult.getReason());
+                throw securityResult.getRejection().asException();
             }
 
             // 1.7. 过滤消息内容（清理恶意内容）
@@ -143,21 +152,82 @@ public class CustomerChatService {
             // 1.8. 业务线必填（落库冗余 chat_message.business_line）
             userContextService.applyBusinessLineForPersist(session, chatMessage);
             // 2.x 幂等性（优先 Redis，失败回退 MySQL）
-            IdempotencyCheckResult idem = idempotencyService.checkBeforePersist(chatMessage.getConversationId(),
-                    chatMessage.getClientMsgId());
+            // 非首个请求要等首个请求的结果时异步完成，等待期间不占处理线程，落库在结果就绪后继续
+            // serverMsgId 分配与入队在同一会话顺序锁内完成，同会话消息按序号提交；幂等等待、回查 DB 与等待提交都在锁外
+            String conversationId = chatMessage.getConversationId();
+            IdempotencyService.Reservation reservation =
+                    new IdempotencyService.Reservation(conversationId, chatMessage.getClientMsgId());
+            EnqueuedMessage settled = chatMessageGroupWriter.inOrder(conversationId,
+                    () -> idempotencyService.reserveAndAllocate(reservation)
+                            ? enqueueMessage(chatMessage, userInfo, reservation.getResult())
+                            : null);
+            CompletableFuture<EnqueuedMessage> enqueued = settled != null
+                    ? CompletableFuture.completedFuture(settled)
+                    : idempotencyService.resolve(reservation)
+                            .thenApply(idem -> chatMessageGroupWriter.inOrder(conversationId,
+                                    () -> enqueueMessage(chatMessage, userInfo, idem)));
+            return enqueued.thenApply(message -> persistMessage(chatMessage, userInfo, session, message));
+        } catch (WsRejectionException e) {
+            // 限流、安全拦截等预期内拒绝原样抛给控制器，不包装、不打栈
+            throw e;
+        } catch (Exception e) {
+            log.error("客户发送消息失败", e);
+            throw new RuntimeException("客户发送消息失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 幂等检查之后（会话顺序锁内）：分配 serverMsgId 并入队，降级路径直接写入
+     */
+    private EnqueuedMessage enqueueMessage(ChatMessage chatMessage, WebSocketUserInfo userInfo,
+            IdempotencyCheckResult idem) {
+        try {
             if (idem.isDuplicateFound()) {
-                return new ReplySendMessageResult(chatMessage.getClientMsgId(),
-                        chatMessage.getConversationId(), System.currentTimeMillis(), idem.getServerMsgId(), "PENDING");
+                return EnqueuedMessage.builder().duplicateFound(true).serverMsgId(idem.getServerMsgId()).build();
             }
-            // 3. 生成serverMsgId（从Redis获取，按会话递增，懒初始化）；若 Redis 不可用则进入降级模式
-            MessageIdGenerateResult genResult = messageIdManager.generateServerMsgId(chatMessage.getConversationId());
+            // 3. 生成serverMsgId：幂等脚本已一并分配则直接使用；否则从Redis获取（按会话递增，懒初始化），
+            // 若 Redis 不可用则进入降级模式
+            MessageIdGenerateResult genResult = idem.isAllocated()
+                    ? MessageIdGenerateResult.builder().redisAvailable(true).serverMsgId(idem.getServerMsgId()).build()
+                    : messageIdManager.generateServerMsgId(chatMessage.getConversationId());
             Long serverMsgId = genResult.getServerMsgId();
             log.info("生成serverMsgId: {}, redisAvailable={}", serverMsgId, genResult.isRedisAvailable());
             // 4. 插入消息到MySQL数据库（使用 Conver 进行转换）
             ChatMessageDO chatMessageDO = Conver.toChatMessageDO(chatMessage, serverMsgId);
             if (genResult.isRedisAvailable()) {
+                // 合并写入：与其它并发消息同一事务提交；发送者已读指针与消息同事务，一起提交或回滚
+                return EnqueuedMessage.builder()
+                        .serverMsgId(serverMsgId)
+                        .committed(chatMessageGroupWriter.submit(chatMessageDO,
+                                () -> updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), serverMsgId)))
+                        .build();
+            }
+            // 降级路径：利用 ON DUPLICATE KEY 自增 server_msg_id，牺牲幂等性；不参与合并，单独一个事务
+            chatMessageGroupWriter.executeInTransaction(() -> {
+                chatMessageMapper.insertOneOnDupIncrAnno(chatMessageDO);
+                updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), serverMsgId);
+            });
+            return EnqueuedMessage.builder().serverMsgId(serverMsgId).build();
+        } catch (Exception e) {
+            log.error("客户发送消息失败", e);
+            throw new RuntimeException("客户发送消息失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 入队之后（锁外）：等待提交、标记幂等成功并返回发送结果
+     */
+    private ReplySendMessageResult persistMessage(ChatMessage chatMessage, WebSocketUserInfo userInfo,
+            WebSocketSession session, EnqueuedMessage enqueued) {
+        try {
+            if (enqueued.isDuplicateFound()) {
+                return new ReplySendMessageResult(chatMessage.getClientMsgId(),
+                        chatMessage.getConversationId(), System.currentTimeMillis(), enqueued.getServerMsgId(), "PENDING");
+            }
+            Long serverMsgId = enqueued.getServerMsgId();
+            if (enqueued.getCommitted() != null) {
                 try {
-                    chatMessageMapper.insertOne(chatMessageDO);
+                    chatMessageGroupWriter.await(enqueued.getCommitted());
                     idempotencyService.markSuccess(chatMessage.getConversationId(), chatMessage.getClientMsgId(),
                             serverMsgId);
                 } catch (DuplicateKeyException e) {
@@ -174,17 +244,12 @@ public class CustomerChatService {
                                 chatMessage.getConversationId(), System.currentTimeMillis(), existedServerMsgId,
                                 "PENDING");
                     }
-                    // 理论上不会到这里，但为了安全还是抛出异常
+                    // 不是重复消息：serverMsgId 被占用，说明 Redis 序列落后于降级期间分配的号段，先修复再抛出
+                    messageIdManager.onServerMsgIdConflict(chatMessage.getConversationId());
                     throw e;
                 }
-            } else {
-                // 降级路径：利用 ON DUPLICATE KEY 自增 server_msg_id，牺牲幂等性
-                chatMessageMapper.insertOneOnDupIncrAnno(chatMessageDO);
             }
 
-            // 4.5. 自动更新发送者的已读记录到最新位置（在核心事务中）
-            updateHasReadToLatest(chatMessage.getConversationId(), userInfo.getUserId(), serverMsgId);
-
             // 5. 返回成功结果（核心事务结束）
             ReplySendMessageResult result = new ReplySendMessageResult(chatMessage.getClientMsgId(),
                     chatMessage.getConversationId(), System.currentTimeMillis(), serverMsgId, "PENDING");
@@ -316,13 +381,12 @@ public class CustomerChatService {
                 throw new RuntimeException("会话中缺少用户信息");
             }
 
+            if (!isValidPullRequest(pullMessageRequest)) {
+                throw INVALID_PULL_REQUEST.asException();
+            }
             String conversationId = pullMessageRequest.getConversationId();
             Long serverMsgId = pullMessageRequest.getServerMsgId();
 
-            if (conversationId == null || serverMsgId == null) {
-                throw new RuntimeException("会话ID和消息ID不能为空");
-            }
-
             // 查询指定消息
             QueryWrapper<ChatMessageDO> queryWrapper = new QueryWrapper<>();
             queryWrapper.eq("conversation_id", conversationId)
@@ -354,12 +418,82 @@ public class CustomerChatService {
                     .message(message)
                     .build();
 
+        } catch (WsRejectionException e) {
+            throw e;
         } catch (Exception e) {
             log.error("客户拉取消息失败", e);
             throw new RuntimeException("客户拉取消息失败: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * 批量拉取消息（批量信封中的多条 /pullMessage 合并为一次调用）
+     * 用户信息只取一次，同一会话的消息合并为一次 server_msg_id IN 查询
+     *
+     * @param pullMessageRequests 拉取请求载荷列表
+     * @param session             WebSocket会话
+     * @return 与请求一一对应的结果，缺少会话ID或消息ID的请求对应位置为 null（调用方按 {@link #INVALID_PULL_REQUEST} 回包，
+     *         与单条拉取一致）
+     */
+    public List<PullMessageRequest> pullMessages(List<PullMessageRequest> pullMessageRequests, WebSocketSession session) {
+        log.info("客户批量拉取消息: size={}", pullMessageRequests.size());
+        try {
+            WebSocketUserInfo userInfo = userContextService.getUserInfo(session);
+            if (userInfo == null) {
+                throw new RuntimeException("会话中缺少用户信息");
+            }
+
+            Map<String, Set<Long>> msgIdsByConversation = new HashMap<>();
+            for (PullMessageRequest request : pullMessageRequests) {
+                if (isValidPullRequest(request)) {
+                    msgIdsByConversation.computeIfAbsent(request.getConversationId(), k -> new HashSet<>())
+                            .add(request.getServerMsgId());
+                }
+            }
+
+            // conversationId:serverMsgId -> 消息
+            Map<String, ChatMessageDO> found = new HashMap<>();
+            for (Map.Entry<String, Set<Long>> entry : msgIdsByConversation.entrySet()) {
+                QueryWrapper<ChatMessageDO> queryWrapper = new QueryWrapper<>();
+                queryWrapper.eq("conversation_id", entry.getKey())
+                        .in("server_msg_id", entry.getValue());
+                for (ChatMessageDO messageDO : chatMessageMapper.selectList(queryWrapper)) {
+                    found.put(messageDO.getConversationId() + ":" + messageDO.getServerMsgId(), messageDO);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            List<PullMessageRequest> results = new ArrayList<>(pullMessageRequests.size());
+            for (PullMessageRequest request : pullMessageRequests) {
+                if (!isValidPullRequest(request)) {
+                    results.add(null);
+                    continue;
+                }
+                ChatMessageDO messageDO = found.get(request.getConversationId() + ":" + request.getServerMsgId());
+                if (messageDO == null) {
+                    log.warn("未找到指定消息: conversationId={}, serverMsgId={}",
+                            request.getConversationId(), request.getServerMsgId());
+                }
+                results.add(PullMessageRequest.builder()
+                        .conversationId(request.getConversationId())
+                        .type(request.getType())
+                        .timestamp(now)
+                        .serverMsgId(request.getServerMsgId())
+                        .message(messageDO != null ? Conver.toChatMessage(messageDO) : null)
+                        .build());
+            }
+            return results;
+
+        } catch (Exception e) {
+            log.error("客户批量拉取消息失败", e);
+            throw new RuntimeException("客户批量拉取消息失败: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isValidPullRequest(PullMessageRequest request) {
+        return request != null && request.getConversationId() != null && request.getServerMsgId() != null;
+    }
+
     /**
      * 分页拉取消息
      *
@@ -0,0 +1,268 @@
+package com.treasurehunt.chat.component.async;
+
+import com.treasurehunt.chat.domain.ChatMessageDO;
+import com.treasurehunt.chat.mapper.ChatMessageMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * ChatMessageGroupWriter：批内按 (conversationId, serverMsgId) 写入、同会话按序号提交、整批失败后逐条重试
+ */
+class ChatMessageGroupWriterTest {
+
+    private ChatMessageMapper mapper;
+    private ChatMessageGroupWriter writer;
+
+    /** 写线程在 insertOne(blocker) 中停住，期间提交的消息会在放行后合并成一批 */
+    private final CountDownLatch blockerEntered = new CountDownLatch(1);
+    private final CountDownLatch releaseBlocker = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() {
+        mapper = mock(ChatMessageMapper.class);
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenAnswer(invocation -> new SimpleTransactionStatus());
+        writer = newWriter(mapper, transactionManager, 5000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        releaseBlocker.countDown();
+        writer.shutdown();
+    }
+
+    private static ChatMessageGroupWriter newWriter(ChatMessageMapper mapper, PlatformTransactionManager transactionManager,
+                                                    long writeTimeoutMs) {
+        ChatMessageGroupWriter w = new ChatMessageGroupWriter();
+        ReflectionTestUtils.setField(w, "chatMessageMapper", mapper);
+        ReflectionTestUtils.setField(w, "transactionManager", transactionManager);
+        ReflectionTestUtils.setField(w, "enabled", true);
+        ReflectionTestUtils.setField(w, "maxBatch", 64);
+        ReflectionTestUtils.setField(w, "windowMicros", 1000L);
+        ReflectionTestUtils.setField(w, "queueCapacity", 1024);
+        ReflectionTestUtils.setField(w, "writeTimeoutMs", writeTimeoutMs);
+        w.init();
+        return w;
+    }
+
+    private static ChatMessageDO message(String conversationId, long serverMsgId) {
+        return ChatMessageDO.builder().conversationId(conversationId).serverMsgId(serverMsgId).build();
+    }
+
+    private CompletableFuture<Void> holdWriterThread() throws InterruptedException {
+        ChatMessageDO blocker = message("blocker", 0);
+        doAnswer(invocation -> {
+            if (invocation.getArgument(0) == blocker) {
+                blockerEntered.countDown();
+                releaseBlocker.await(5, TimeUnit.SECONDS);
+            }
+            return 1;
+        }).when(mapper).insertOne(any());
+        CompletableFuture<Void> committed = writer.submit(blocker, null);
+        assertTrue(blockerEntered.await(2, TimeUnit.SECONDS));
+        return committed;
+    }
+
+    @Test
+    void batchIsWrittenInConversationAndServerMsgIdOrder() throws Exception {
+        List<List<ChatMessageDO>> batches = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            List<ChatMessageDO> rows = invocation.getArgument(0);
+            batches.add(new ArrayList<>(rows));
+            return rows.size();
+        }).when(mapper).insertBatch(anyList());
+        holdWriterThread();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(writer.submit(message("c2", 3), null));
+        futures.add(writer.submit(message("c1", 2), null));
+        futures.add(writer.submit(message("c2", 1), null));
+        futures.add(writer.submit(message("c1", 1), null));
+        releaseBlocker.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(2, TimeUnit.SECONDS);
+
+        assertEquals(1, batches.size());
+        List<String> written = new ArrayList<>();
+        for (ChatMessageDO row : batches.get(0)) {
+            written.add(row.getConversationId() + "/" + row.getServerMsgId());
+        }
+        assertEquals(List.of("c1/1", "c1/2", "c2/1", "c2/3"), written);
+    }
+
+    @Test
+    void concurrentAllocationsCommitInServerMsgIdOrderPerConversation() throws Exception {
+        List<ChatMessageDO> committed = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            List<ChatMessageDO> rows = invocation.getArgument(0);
+            committed.addAll(rows);
+            return rows.size();
+        }).when(mapper).insertBatch(anyList());
+        doAnswer(invocation -> {
+            committed.add(invocation.getArgument(0));
+            return 1;
+        }).when(mapper).insertOne(any());
+
+        int threads = 8;
+        int perThread = 200;
+        String[] conversations = {"c1", "c2", "c3", "c4"};
+        Map<String, AtomicLong> sequences = new HashMap<>();
+        for (String conversationId : conversations) {
+            sequences.put(conversationId, new AtomicLong());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        String conversationId = conversations[(offset + i) % conversations.length];
+                        // 序号分配与入队在同一次 inOrder 内，提交等待在锁外
+                        CompletableFuture<Void> future = writer.inOrder(conversationId, () -> writer.submit(
+                                message(conversationId, sequences.get(conversationId).incrementAndGet()), null));
+                        writer.await(future);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(threads * perThread, committed.size());
+        Map<String, Long> last = new HashMap<>();
+        for (ChatMessageDO row : committed) {
+            long previous = last.getOrDefault(row.getConversationId(), 0L);
+            assertEquals(previous + 1, row.getServerMsgId(), "commit order of " + row.getConversationId());
+            last.put(row.getConversationId(), row.getServerMsgId());
+        }
+        assertTrue(orderingLocks().isEmpty());
+    }
+
+    @Test
+    void batchFailureFallsBackToPerRowWritesAndIsolatesTheFailingRow() throws Exception {
+        ChatMessageDO ok1 = message("c1", 1);
+        ChatMessageDO duplicate = message("c1", 2);
+        ChatMessageDO ok2 = message("c2", 1);
+        doAnswer(invocation -> {
+            throw new DuplicateKeyException("batch");
+        }).when(mapper).insertBatch(anyList());
+        holdWriterThread();
+        // 覆盖 holdWriterThread 的桩：blocker 仍需放行，重复行单独失败
+        doAnswer(invocation -> {
+            ChatMessageDO row = invocation.getArgument(0);
+            if ("blocker".equals(row.getConversationId())) {
+                releaseBlocker.await(5, TimeUnit.SECONDS);
+            }
+            if (row == duplicate) {
+                throw new DuplicateKeyException("uk_conversation_client_msg");
+            }
+            return 1;
+        }).when(mapper).insertOne(any());
+
+        List<Integer> sameTransactionRuns = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> first = writer.submit(ok1, () -> sameTransactionRuns.add(1));
+        CompletableFuture<Void> failed = writer.submit(duplicate, null);
+        CompletableFuture<Void> second = writer.submit(ok2, () -> sameTransactionRuns.add(2));
+        releaseBlocker.countDown();
+
+        first.get(2, TimeUnit.SECONDS);
+        second.get(2, TimeUnit.SECONDS);
+        CompletionException e = assertThrows(CompletionException.class, failed::join);
+        assertInstanceOf(DuplicateKeyException.class, e.getCause());
+        assertThrows(DuplicateKeyException.class, () -> writer.await(failed));
+
+        verify(mapper, times(1)).insertBatch(anyList());
+        verify(mapper).insertOne(ok1);
+        verify(mapper).insertOne(duplicate);
+        verify(mapper).insertOne(ok2);
+        // 多行 INSERT 先失败，同事务回调只在成功的逐条事务中各执行一次
+        assertEquals(List.of(1, 2), sameTransactionRuns);
+    }
+
+    @Test
+    void timedOutWriteIsNotRetriedAfterBatchFailure() throws Exception {
+        writer.shutdown();
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenAnswer(invocation -> new SimpleTransactionStatus());
+        writer = newWriter(mapper, transactionManager, 500);
+
+        ChatMessageDO abandoned = message("c1", 1);
+        ChatMessageDO live = message("c1", 2);
+        AtomicReference<CompletableFuture<Void>> abandonedFuture = new AtomicReference<>();
+        doAnswer(invocation -> {
+            // 批量事务一直拖到 abandoned 的调用方超时放弃后才失败
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!abandonedFuture.get().isDone() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            throw new DuplicateKeyException("batch");
+        }).when(mapper).insertBatch(anyList());
+        holdWriterThread();
+
+        abandonedFuture.set(writer.submit(abandoned, null));
+        Thread.sleep(300);
+        CompletableFuture<Void> liveFuture = writer.submit(live, null);
+        releaseBlocker.countDown();
+
+        liveFuture.get(2, TimeUnit.SECONDS);
+        CompletionException e = assertThrows(CompletionException.class, abandonedFuture.get()::join);
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        assertThrows(IllegalStateException.class, () -> writer.await(abandonedFuture.get()));
+        verify(mapper, times(1)).insertBatch(anyList());
+        verify(mapper, never()).insertOne(abandoned);
+        verify(mapper).insertOne(live);
+    }
+
+    @Test
+    void orderingLockIsReentrantAndRemovedOnceReleased() {
+        String result = writer.inOrder("c1", () -> {
+            assertEquals(1, orderingLocks().size());
+            return writer.inOrder("c1", () -> "nested");
+        });
+
+        assertEquals("nested", result);
+        assertTrue(orderingLocks().isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> orderingLocks() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(writer, "orderingLocks");
+    }
+}
@@ -0,0 +1,187 @@
+package com.treasurehunt.chat.framework.core.websocket.distributed.session;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * SessionOutboundQueue：溢出策略、异步发送期间的单写者顺序、发送失败与卡住发送的驱逐
+ * 写线程池用手动执行的队列代替，测试线程决定写任务何时运行
+ */
+class SessionOutboundQueueTest {
+
+    private WebSocketSession session;
+    private OutboundQueueManager manager;
+    private final Queue<Runnable> writerTasks = new ArrayDeque<>();
+    private final List<WebSocketMessage<?>> sent = new ArrayList<>();
+    private final Queue<CompletableFuture<Void>> sendResults = new ArrayDeque<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s1");
+        when(session.isOpen()).thenReturn(true);
+        manager = mock(OutboundQueueManager.class);
+        when(manager.getMaxQueueSize()).thenReturn(2);
+        when(manager.getMaxBufferBytes()).thenReturn(1024L);
+        when(manager.getSendTimeLimitMs()).thenReturn(10_000L);
+        when(manager.getOverflowPolicy()).thenReturn(SessionOutboundQueue.OverflowPolicy.TERMINATE);
+        // 未预置结果的发送立即成功
+        when(manager.sendAsync(any(), any())).thenAnswer(invocation -> {
+            sent.add(invocation.getArgument(1));
+            CompletableFuture<Void> result = sendResults.poll();
+            return result != null ? result : CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private SessionOutboundQueue newQueue() {
+        return new SessionOutboundQueue(session, writerTasks::add, manager);
+    }
+
+    private void runWriter() {
+        Runnable task;
+        while ((task = writerTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    void terminatePolicyEvictsAndClosesOnOverflow() throws Exception {
+        SessionOutboundQueue queue = newQueue();
+
+        assertTrue(queue.offer(new TextMessage("m1")));
+        assertTrue(queue.offer(new TextMessage("m2")));
+        assertFalse(queue.offer(new TextMessage("m3")));
+
+        assertTrue(queue.isTerminated());
+        assertEquals(0, queue.getDepth());
+        verify(manager).onEvicted();
+        verify(manager).onDropped(3);
+        verify(manager).remove("s1", queue);
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE.withReason("slow consumer"));
+
+        runWriter();
+        assertTrue(sent.isEmpty());
+        assertFalse(queue.offer(new TextMessage("m4")));
+    }
+
+    @Test
+    void byteLimitAlsoCountsAsOverflow() {
+        when(manager.getMaxQueueSize()).thenReturn(100);
+        when(manager.getMaxBufferBytes()).thenReturn(10L);
+        SessionOutboundQueue queue = newQueue();
+
+        assertTrue(queue.offer(new TextMessage("123456")));
+        assertFalse(queue.offer(new TextMessage("123456")));
+
+        assertTrue(queue.isTerminated());
+        verify(manager).onEvicted();
+    }
+
+    @Test
+    void dropOldestPolicyKeepsNewestMessages() {
+        when(manager.getOverflowPolicy()).thenReturn(SessionOutboundQueue.OverflowPolicy.DROP_OLDEST);
+        SessionOutboundQueue queue = newQueue();
+
+        assertTrue(queue.offer(new TextMessage("m1")));
+        assertTrue(queue.offer(new TextMessage("m2")));
+        assertTrue(queue.offer(new TextMessage("m3")));
+        runWriter();
+
+        assertEquals(List.of(new TextMessage("m2"), new TextMessage("m3")), sent);
+        assertFalse(queue.isTerminated());
+        verify(manager).onDropped(1);
+        verify(manager, never()).onEvicted();
+    }
+
+    @Test
+    void inFlightAsyncSendHoldsNextFrameUntilCompletion() {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        sendResults.add(first);
+        SessionOutboundQueue queue = newQueue();
+
+        queue.offer(new TextMessage("m1"));
+        queue.offer(new TextMessage("m2"));
+        runWriter();
+        // m1 写出未完成：写任务已释放线程，m2 仍在队列中，新入队不会另起写任务
+        assertEquals(List.of(new TextMessage("m1")), sent);
+        queue.offer(new TextMessage("m3"));
+        assertTrue(writerTasks.isEmpty());
+
+        first.complete(null);
+        runWriter();
+        assertEquals(List.of(new TextMessage("m1"), new TextMessage("m2"), new TextMessage("m3")), sent);
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    void failedAsyncSendEvictsSession() throws Exception {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        sendResults.add(first);
+        SessionOutboundQueue queue = newQueue();
+
+        queue.offer(new TextMessage("m1"));
+        queue.offer(new TextMessage("m2"));
+        runWriter();
+        first.completeExceptionally(new IOException("broken pipe"));
+        runWriter();
+
+        assertTrue(queue.isTerminated());
+        assertEquals(List.of(new TextMessage("m1")), sent);
+        verify(manager).onEvicted();
+        verify(manager).onDropped(1);
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE.withReason("slow consumer"));
+    }
+
+    @Test
+    void stuckSendIsEvictedBySweepWithoutNewMessages() throws Exception {
+        when(manager.getSendTimeLimitMs()).thenReturn(0L);
+        sendResults.add(new CompletableFuture<>());
+        SessionOutboundQueue queue = newQueue();
+
+        queue.offer(new TextMessage("m1"));
+        runWriter();
+        Thread.sleep(5);
+        assertTrue(queue.isSendStuck());
+
+        queue.evictIfStuck();
+        assertTrue(queue.isTerminated());
+        verify(manager).onEvicted();
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE.withReason("slow consumer"));
+    }
+
+    @Test
+    void offerToStuckSessionEvictsAndRejects() throws Exception {
+        when(manager.getSendTimeLimitMs()).thenReturn(0L);
+        sendResults.add(new CompletableFuture<>());
+        SessionOutboundQueue queue = newQueue();
+
+        queue.offer(new TextMessage("m1"));
+        runWriter();
+        Thread.sleep(5);
+
+        assertFalse(queue.offer(new TextMessage("m2")));
+        assertTrue(queue.isTerminated());
+        verify(manager).onEvicted();
+        verify(manager).onDropped(1);
+    }
+}
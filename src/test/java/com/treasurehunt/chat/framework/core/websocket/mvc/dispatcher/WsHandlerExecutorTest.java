@@ -0,0 +1,272 @@
+package com.treasurehunt.chat.framework.core.websocket.mvc.dispatcher;
+
+import com.treasurehunt.chat.framework.core.websocket.mvc.annotation.WsExecutionMode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * WsHandlerExecutor：同一会话内的顺序（含返回 CompletableFuture 的异步处理器）与会话未完成请求上限
+ */
+class WsHandlerExecutorTest {
+
+    private static final Consumer<WsHandlerExecutor.Rejection> NOT_REJECTED = r -> fail("unexpected rejection: " + r);
+
+    private WsHandlerExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    private WsHandlerExecutor newExecutor(int poolSize, int queueCapacity, int sessionMaxPending) {
+        WsHandlerExecutor e = new WsHandlerExecutor();
+        ReflectionTestUtils.setField(e, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(e, "poolSize", poolSize);
+        ReflectionTestUtils.setField(e, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(e, "sessionMaxPending", sessionMaxPending);
+        e.init();
+        return e;
+    }
+
+    @Test
+    void asyncHandlerCompletesBeforeNextRequestOfSameSessionStarts() throws Exception {
+        executor = newExecutor(4, 16, 16);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch secondRan = new CountDownLatch(1);
+        List<String> events = new CopyOnWriteArrayList<>();
+
+        executor.execute("s1", WsExecutionMode.POOL, () -> {
+            events.add("first-start");
+            firstStarted.countDown();
+            return first;
+        }, NOT_REJECTED);
+        executor.execute("s1", WsExecutionMode.POOL, () -> {
+            events.add("second");
+            secondRan.countDown();
+            return null;
+        }, NOT_REJECTED);
+
+        assertTrue(firstStarted.await(2, TimeUnit.SECONDS));
+        // 第一个处理器已返回但 future 未完成：第二个请求不能开始
+        assertFalse(secondRan.await(200, TimeUnit.MILLISECONDS));
+        events.add("first-done");
+        first.complete(null);
+
+        assertTrue(secondRan.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of("first-start", "first-done", "second"), events);
+    }
+
+    @Test
+    void inlineRequestQueuesBehindPendingAsyncRequest() throws Exception {
+        executor = newExecutor(4, 16, 16);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CountDownLatch secondRan = new CountDownLatch(1);
+
+        // 会话空闲：INLINE 在调用线程上直接执行
+        Thread caller = Thread.currentThread();
+        List<Thread> firstThread = new ArrayList<>();
+        executor.execute("s1", WsExecutionMode.INLINE, () -> {
+            firstThread.add(Thread.currentThread());
+            return first;
+        }, NOT_REJECTED);
+        assertEquals(List.of(caller), firstThread);
+
+        // 链上还有未完成的请求：后续 INLINE 请求排到链尾
+        executor.execute("s1", WsExecutionMode.INLINE, () -> {
+            secondRan.countDown();
+            return null;
+        }, NOT_REJECTED);
+        assertFalse(secondRan.await(200, TimeUnit.MILLISECONDS));
+
+        first.complete(null);
+        assertTrue(secondRan.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void mixedSyncAndAsyncHandlersKeepSubmissionOrder() throws Exception {
+        executor = newExecutor(8, 256, 256);
+        ScheduledExecutorService completer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            int requests = 100;
+            List<Integer> order = new CopyOnWriteArrayList<>();
+            CountDownLatch all = new CountDownLatch(requests);
+            for (int i = 0; i < requests; i++) {
+                int index = i;
+                WsExecutionMode mode = i % 4 == 0 ? WsExecutionMode.INLINE : WsExecutionMode.POOL;
+                executor.execute("s1", mode, () -> {
+                    order.add(index);
+                    all.countDown();
+                    if (index % 3 != 0) {
+                        return null;
+                    }
+                    // 每三个请求中有一个是异步处理器，在其它线程上稍后完成
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    completer.schedule(() -> done.complete(null), 1, TimeUnit.MILLISECONDS);
+                    return done;
+                }, NOT_REJECTED);
+            }
+            assertTrue(all.await(10, TimeUnit.SECONDS));
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                expected.add(i);
+            }
+            assertEquals(expected, order);
+        } finally {
+            completer.shutdownNow();
+        }
+    }
+
+    @Test
+    void pendingRequestDoesNotBlockOtherSessions() throws Exception {
+        executor = newExecutor(4, 16, 16);
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        CountDownLatch otherRan = new CountDownLatch(1);
+
+        executor.execute("s1", WsExecutionMode.POOL, () -> blocked, NOT_REJECTED);
+        executor.execute("s2", WsExecutionMode.POOL, () -> {
+            otherRan.countDown();
+            return null;
+        }, NOT_REJECTED);
+
+        assertTrue(otherRan.await(2, TimeUnit.SECONDS));
+        blocked.complete(null);
+    }
+
+    @Test
+    void sessionChainIsRemovedOnceIdle() throws Exception {
+        executor = newExecutor(4, 16, 16);
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        CountDownLatch ran = new CountDownLatch(1);
+
+        executor.execute("s1", WsExecutionMode.POOL, () -> pending, NOT_REJECTED);
+        executor.execute("s1", WsExecutionMode.POOL, () -> {
+            ran.countDown();
+            return null;
+        }, NOT_REJECTED);
+        assertEquals(1, chains().size());
+
+        pending.complete(null);
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!chains().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(chains().isEmpty());
+    }
+
+    @Test
+    void rejectsRequestsBeyondSessionCapAndAcceptsAgainAfterCompletion() throws Exception {
+        executor = newExecutor(4, 16, 2);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        List<WsHandlerExecutor.Rejection> rejections = new CopyOnWriteArrayList<>();
+        CountDownLatch thirdRan = new CountDownLatch(1);
+
+        executor.execute("s1", WsExecutionMode.POOL, () -> first, NOT_REJECTED);
+        executor.execute("s1", WsExecutionMode.POOL, () -> second, NOT_REJECTED);
+        // 链上已有 2 个未完成请求：第 3 个被拒绝，处理器不会执行
+        executor.execute("s1", WsExecutionMode.POOL, () -> {
+            thirdRan.countDown();
+            return null;
+        }, rejections::add);
+        assertEquals(List.of(WsHandlerExecutor.Rejection.SESSION_LIMIT), rejections);
+        assertFalse(thirdRan.await(100, TimeUnit.MILLISECONDS));
+
+        first.complete(null);
+        second.complete(null);
+        CountDownLatch fourthRan = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!chains().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        executor.execute("s1", WsExecutionMode.POOL, () -> {
+            fourthRan.countDown();
+            return null;
+        }, NOT_REJECTED);
+        assertTrue(fourthRan.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void inlineRequestBehindPendingRequestsCountsTowardSessionCap() {
+        executor = newExecutor(4, 16, 2);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        List<WsHandlerExecutor.Rejection> rejections = new CopyOnWriteArrayList<>();
+
+        // 空闲会话上的 INLINE 请求返回未完成的 future，占 1 个名额
+        executor.execute("s1", WsExecutionMode.INLINE, () -> first, NOT_REJECTED);
+        executor.execute("s1", WsExecutionMode.POOL, () -> second, NOT_REJECTED);
+        executor.execute("s1", WsExecutionMode.INLINE, () -> fail("must not run"), rejections::add);
+
+        assertEquals(List.of(WsHandlerExecutor.Rejection.SESSION_LIMIT), rejections);
+        first.complete(null);
+        second.complete(null);
+    }
+
+    @Test
+    void capIsPerSession() throws Exception {
+        executor = newExecutor(4, 16, 1);
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        CountDownLatch otherRan = new CountDownLatch(1);
+
+        executor.execute("s1", WsExecutionMode.POOL, () -> blocked, NOT_REJECTED);
+        executor.execute("s2", WsExecutionMode.POOL, () -> {
+            otherRan.countDown();
+            return null;
+        }, NOT_REJECTED);
+
+        assertTrue(otherRan.await(2, TimeUnit.SECONDS));
+        blocked.complete(null);
+    }
+
+    @Test
+    void rejectsWithPoolFullWhenBusinessPoolIsSaturated() throws Exception {
+        executor = newExecutor(1, 1, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        List<WsHandlerExecutor.Rejection> rejections = new CopyOnWriteArrayList<>();
+
+        // 占住唯一的工作线程，再占满长度为 1 的队列
+        executor.execute("s1", WsExecutionMode.POOL, () -> {
+            running.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }, NOT_REJECTED);
+        assertTrue(running.await(2, TimeUnit.SECONDS));
+        executor.execute("s2", WsExecutionMode.POOL, () -> null, NOT_REJECTED);
+        executor.execute("s3", WsExecutionMode.POOL, () -> fail("must not run"), rejections::add);
+
+        assertEquals(List.of(WsHandlerExecutor.Rejection.POOL_FULL), rejections);
+        release.countDown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> chains() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(executor, "chains");
+    }
+}